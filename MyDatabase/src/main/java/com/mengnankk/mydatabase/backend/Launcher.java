@@ -6,9 +6,11 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import com.mengnankk.mydatabase.backend.dm.DMConfig;
 import com.mengnankk.mydatabase.backend.dm.DataManager;
 import com.mengnankk.mydatabase.backend.server.Server;
 import com.mengnankk.mydatabase.backend.tbm.TableManager;
+import com.mengnankk.mydatabase.backend.tbm.VacuumConfig;
 import com.mengnankk.mydatabase.backend.tm.TransactionManager;
 import com.mengnankk.mydatabase.backend.utils.Panic;
 import com.mengnankk.mydatabase.backend.vm.VersionManager;
@@ -20,6 +22,8 @@ public class Launcher {
     public static final int port = 9999;
 
     public static final long DEFALUT_MEM = (1<<20)*64;
+    public static final long DEFAULT_FREEZE_INTERVAL = 10 * 60 * 1000;
+    public static final long DEFAULT_VACUUM_INTERVAL = 60 * 1000;
     public static final long KB = 1 << 10;
 	public static final long MB = 1 << 20;
 	public static final long GB = 1 << 30;
@@ -29,37 +33,98 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("pageSize", true, "-pageSize 4KB|8KB|16KB|32KB");
+        options.addOption("cache", true, "-cache lru|clock|lruk|2q");
+        options.addOption("io", true, "-io mmap|channel");
+        options.addOption("flushInterval", true, "-flushInterval 1000");
+        options.addOption("dirtyLimit", true, "-dirtyLimit 2048");
+        options.addOption("checkpointInterval", true, "-checkpointInterval 30000");
+        options.addOption("log", true, "-log sync|group");
+        options.addOption("logArchive", true, "-logArchive /tmp/mydb/archive");
+        options.addOption("freezeInterval", true, "-freezeInterval 600000");
+        options.addOption("vacuumInterval", true, "-vacuumInterval 60000");
+        options.addOption("vacuumBatch", true, "-vacuumBatch 1000");
+        options.addOption("vacuumDelay", true, "-vacuumDelay 10");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            long freezeInterval = DEFAULT_FREEZE_INTERVAL;
+            if(cmd.hasOption("freezeInterval")) {
+                freezeInterval = Long.parseLong(cmd.getOptionValue("freezeInterval"));
+            }
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), parseDMConfig(cmd), freezeInterval, parseVacuumConfig(cmd));
             return;
         }
         if(cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), parseDMConfig(cmd));
             return;
         }
         System.out.println("Usage: launcher (open|create) DBPath");
     }
 
-    private static void createDB(String path) {
+    private static void createDB(String path, DMConfig conf) {
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
+        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm, conf);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
         tm.close();
         dm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, DMConfig conf, long freezeInterval, VacuumConfig vacuumConf) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, tm, conf);
         VersionManager vm = new VersionManagerImpl(tm, dm);
-        TableManager tbm = TableManager.open(path, vm, dm);
+        TableManager tbm = TableManager.open(path, vm, dm, freezeInterval, vacuumConf);
         new Server(port, tbm).start();
     }
 
+    private static DMConfig parseDMConfig(CommandLine cmd) {
+        DMConfig conf = new DMConfig();
+        if(cmd.hasOption("pageSize")) {
+            // 只在创建时生效
+            conf.pageSize = (int)parseMem(cmd.getOptionValue("pageSize"));
+        }
+        if(cmd.hasOption("cache")) {
+            conf.replacement = cmd.getOptionValue("cache");
+        }
+        if(cmd.hasOption("io")) {
+            conf.io = cmd.getOptionValue("io");
+        }
+        if(cmd.hasOption("flushInterval")) {
+            conf.flushInterval = Long.parseLong(cmd.getOptionValue("flushInterval"));
+        }
+        if(cmd.hasOption("dirtyLimit")) {
+            conf.dirtyLimit = Integer.parseInt(cmd.getOptionValue("dirtyLimit"));
+        }
+        if(cmd.hasOption("checkpointInterval")) {
+            conf.checkpointInterval = Long.parseLong(cmd.getOptionValue("checkpointInterval"));
+        }
+        if(cmd.hasOption("log")) {
+            conf.logFlush = cmd.getOptionValue("log");
+        }
+        if(cmd.hasOption("logArchive")) {
+            conf.logArchive = cmd.getOptionValue("logArchive");
+        }
+        return conf;
+    }
+
+    private static VacuumConfig parseVacuumConfig(CommandLine cmd) {
+        VacuumConfig conf = new VacuumConfig();
+        conf.interval = DEFAULT_VACUUM_INTERVAL;
+        if(cmd.hasOption("vacuumInterval")) {
+            conf.interval = Long.parseLong(cmd.getOptionValue("vacuumInterval"));
+        }
+        if(cmd.hasOption("vacuumBatch")) {
+            conf.batchRows = Integer.parseInt(cmd.getOptionValue("vacuumBatch"));
+        }
+        if(cmd.hasOption("vacuumDelay")) {
+            conf.batchDelay = Long.parseLong(cmd.getOptionValue("vacuumDelay"));
+        }
+        return conf;
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
@@ -1,63 +1,90 @@
 package com.mengnankk.mydatabase.backend.common;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 import com.mengnankk.mydatabase.common.Error;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存
+ *
+ * 缓存按 key 分成若干段，每段一把锁，不同段的访问互不阻塞。
+ * 同一资源的并发加载共享同一个 future，后来的线程直接等待该 future。
+ * maxResource > 0 时，引用计数降为 0 的资源仍驻留在缓存中，
+ * 缓存满时按淘汰策略（默认 LRU）选出一个未被引用的资源驱逐；
+ * maxResource == 0 时缓存不限容量，引用计数降为 0 立即驱逐。
+ * 驱逐的资源在段锁下移出，写回（releaseForCache）在锁外进行，不阻塞同段的其他资源；
+ * 写回完成之前同一 key 的装入会等待，不会读到旧的数据。
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;                     // 实际缓存的数据
-    private HashMap<Long, Integer> references;          // 元素的引用个数
-    private HashMap<Long, Boolean> getting;             // 正在获取某资源的线程
+    private static final int SEGMENTS_NO = 16;
 
-    private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
-    private Lock lock;
+    private final List<Segment<T>> segments;
+    private final int maxResource;                      // 缓存的最大缓存资源数
+    private final AtomicInteger count;                  // 缓存中元素的个数
+    private final boolean retainUnpinned;               // 是否保留未被引用的资源
+
+    private final Lock policyLock;
+    private final LinkedHashSet<Long> unpinned;         // 未被引用的资源，按最近释放的顺序排列
 
     public AbstractCache(int maxResource) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.retainUnpinned = maxResource > 0;
+        this.count = new AtomicInteger(0);
+        this.segments = new ArrayList<>(SEGMENTS_NO);
+        for(int i = 0; i < SEGMENTS_NO; i ++) {
+            segments.add(new Segment<>());
+        }
+        this.policyLock = new ReentrantLock();
+        this.unpinned = new LinkedHashSet<>();
     }
 
     protected T get(long key) throws Exception {
+        Segment<T> seg = segmentFor(key);
+        Holder<T> h;
         while(true) {
-            lock.lock();
-            if(getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
+            seg.lock.lock();
+            h = seg.map.get(key);
+            if(h != null) {
+                // 资源在缓存中或正在被其他线程获取，增加引用后等待其就绪
+                h.refs ++;
+                if(h.refs == 1 && h.loaded) {
+                    recordPin(key);
                 }
-                continue;
+                seg.lock.unlock();
+                recordAccess(key);
+                return await(h);
             }
-
-            if(cache.containsKey(key)) {
-                // 资源在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
+            CompletableFuture<Void> evicting = seg.evicting.get(key);
+            if(evicting != null) {
+                // 正在写回，等写回完成再装入
+                seg.lock.unlock();
+                evicting.join();
+                continue;
             }
 
             // 尝试获取该资源
-            if(maxResource > 0 && count == maxResource) {
-                lock.unlock();
-                throw Error.CacheFullException;
+            if(!reserve()) {
+                seg.lock.unlock();
+                if(!evictOne()) {
+                    throw Error.CacheFullException;
+                }
+                continue;
             }
-            count ++;
-            getting.put(key, true);
-            lock.unlock();
+            h = new Holder<>();
+            h.refs = 1;
+            seg.map.put(key, h);
+            seg.lock.unlock();
             break;
         }
 
@@ -65,19 +92,20 @@ public abstract class AbstractCache<T> {
         try {
             obj = getForCache(key);
         } catch(Exception e) {
-            lock.lock();
-            count --;
-            getting.remove(key);
-            lock.unlock();
+            seg.lock.lock();
+            seg.map.remove(key);
+            seg.lock.unlock();
+            count.decrementAndGet();
+            h.future.completeExceptionally(e);
             throw e;
         }
 
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
-        
+        seg.lock.lock();
+        h.value = obj;
+        h.loaded = true;
+        seg.lock.unlock();
+        h.future.complete(obj);
+        recordAccess(key);
         return obj;
     }
 
@@ -85,20 +113,43 @@ public abstract class AbstractCache<T> {
      * 强行释放一个缓存
      */
     protected void release(long key) {
-        lock.lock();
+        Segment<T> seg = segmentFor(key);
+        Holder<T> h;
+        CompletableFuture<Void> evicting;
+        seg.lock.lock();
         try {
-            int ref = references.get(key)-1;
-            if(ref == 0) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count --;
-            } else {
-                references.put(key, ref);
+            h = seg.map.get(key);
+            h.refs --;
+            if(h.refs > 0) {
+                return;
             }
+            if(retainUnpinned) {
+                recordUnpin(key);
+                return;
+            }
+            evicting = detach(seg, key);
         } finally {
-            lock.unlock();
+            seg.lock.unlock();
+        }
+        writeBack(seg, key, h, evicting);
+    }
+
+    /**
+     * 在资源驻留且未被引用时对其执行 action，执行期间该资源不会被其他线程取出
+     * 资源不在缓存或正被引用时返回 false
+     */
+    protected boolean doIfUnpinned(long key, Consumer<T> action) {
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            Holder<T> h = seg.map.get(key);
+            if(h == null || !h.loaded || h.refs > 0) {
+                return false;
+            }
+            action.accept(h.value);
+            return true;
+        } finally {
+            seg.lock.unlock();
         }
     }
 
@@ -106,20 +157,222 @@ public abstract class AbstractCache<T> {
      * 关闭缓存，写回所有资源
      */
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
+        for(Segment<T> seg : segments) {
+            List<T> loaded = new ArrayList<>();
+            seg.lock.lock();
+            try {
+                Iterator<Holder<T>> it = seg.map.values().iterator();
+                while(it.hasNext()) {
+                    Holder<T> h = it.next();
+                    if(h.loaded) {
+                        loaded.add(h.value);
+                    }
+                    it.remove();
+                    count.decrementAndGet();
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+            for(T obj : loaded) {
                 releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
             }
+        }
+        policyLock.lock();
+        try {
+            unpinned.clear();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * 对每个已装入的资源执行 action，不论是否被引用；执行时持有该资源所在段的锁
+     */
+    protected void forEachResident(Consumer<T> action) {
+        for(Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                for(Holder<T> h : seg.map.values()) {
+                    if(h.loaded) {
+                        action.accept(h.value);
+                    }
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 缓存中当前驻留的资源数
+     */
+    protected int size() {
+        return count.get();
+    }
+
+    /**
+     * 当前驻留在缓存中的所有资源的 key
+     */
+    protected List<Long> residentKeys() {
+        List<Long> keys = new ArrayList<>();
+        for(Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                for(Map.Entry<Long, Holder<T>> e : seg.map.entrySet()) {
+                    if(e.getValue().loaded) {
+                        keys.add(e.getKey());
+                    }
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        return keys;
+    }
+
+    // 占用一个缓存位置，缓存已满时返回false
+    private boolean reserve() {
+        if(maxResource <= 0) {
+            count.incrementAndGet();
+            return true;
+        }
+        while(true) {
+            int c = count.get();
+            if(c >= maxResource) {
+                return false;
+            }
+            if(count.compareAndSet(c, c+1)) {
+                return true;
+            }
+        }
+    }
+
+    // 驱逐一个未被引用的资源，没有可驱逐的资源时返回false
+    private boolean evictOne() {
+        while(true) {
+            long key = selectVictim();
+            if(key < 0) {
+                return false;
+            }
+            Segment<T> seg = segmentFor(key);
+            Holder<T> h;
+            CompletableFuture<Void> evicting;
+            seg.lock.lock();
+            try {
+                h = seg.map.get(key);
+                if(h == null || !h.loaded || h.refs > 0) {
+                    // 选出后又被其他线程取走，换一个
+                    continue;
+                }
+                recordRemove(key);
+                evicting = detach(seg, key);
+            } finally {
+                seg.lock.unlock();
+            }
+            writeBack(seg, key, h, evicting);
+            return true;
+        }
+    }
+
+    // 在段锁下把资源移出缓存，记为正在写回
+    private CompletableFuture<Void> detach(Segment<T> seg, long key) {
+        seg.map.remove(key);
+        CompletableFuture<Void> evicting = new CompletableFuture<>();
+        seg.evicting.put(key, evicting);
+        return evicting;
+    }
+
+    // 在锁外写回资源，写回完成后才让出缓存位置，并让等待的装入继续
+    private void writeBack(Segment<T> seg, long key, Holder<T> h, CompletableFuture<Void> evicting) {
+        try {
+            releaseForCache(h.value);
         } finally {
-            lock.unlock();
+            seg.lock.lock();
+            try {
+                seg.evicting.remove(key);
+            } finally {
+                seg.lock.unlock();
+            }
+            count.decrementAndGet();
+            evicting.complete(null);
         }
     }
 
+    private T await(Holder<T> h) throws Exception {
+        try {
+            return h.future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof Exception) {
+                throw (Exception)cause;
+            }
+            throw e;
+        }
+    }
+
+    private Segment<T> segmentFor(long key) {
+        int h = Long.hashCode(key);
+        h ^= (h >>> 16);
+        return segments.get(h & (SEGMENTS_NO-1));
+    }
+
+    /**
+     * 资源被访问（命中或装入）时调用
+     */
+    protected void recordAccess(long key) {
+    }
+
+    /**
+     * 驻留资源的引用计数由 0 变为 1 时调用
+     */
+    protected void recordPin(long key) {
+        policyLock.lock();
+        try {
+            unpinned.remove(key);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * 资源的引用计数降为 0 时调用，此后它可以被驱逐
+     */
+    protected void recordUnpin(long key) {
+        policyLock.lock();
+        try {
+            unpinned.add(key);
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * 资源被驱逐时调用
+     */
+    protected void recordRemove(long key) {
+    }
+
+    /**
+     * 选出一个待驱逐资源的 key，没有可驱逐资源时返回 -1
+     * 默认淘汰最早被释放的资源
+     */
+    protected long selectVictim() {
+        policyLock.lock();
+        try {
+            Iterator<Long> it = unpinned.iterator();
+            if(!it.hasNext()) {
+                return -1;
+            }
+            long key = it.next();
+            it.remove();
+            return key;
+        } finally {
+            policyLock.unlock();
+        }
+    }
 
     /**
      * 当资源不在缓存时的获取行为
@@ -129,4 +382,17 @@ public abstract class AbstractCache<T> {
      * 当资源被驱逐时的写回行为
      */
     protected abstract void releaseForCache(T obj);
+
+    private static class Segment<T> {
+        final Lock lock = new ReentrantLock();
+        final HashMap<Long, Holder<T>> map = new HashMap<>();
+        final HashMap<Long, CompletableFuture<Void>> evicting = new HashMap<>();     // 已移出、正在写回的资源
+    }
+
+    private static class Holder<T> {
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        T value;
+        boolean loaded;
+        int refs;
+    }
 }
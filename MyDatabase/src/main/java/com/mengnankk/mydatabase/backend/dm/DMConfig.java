@@ -0,0 +1,41 @@
+package com.mengnankk.mydatabase.backend.dm;
+
+import com.mengnankk.mydatabase.backend.dm.logger.FlushStrategy;
+import com.mengnankk.mydatabase.backend.dm.logger.LoggerImpl;
+import com.mengnankk.mydatabase.backend.dm.pageCache.PageSize;
+import com.mengnankk.mydatabase.backend.dm.pageCache.ReplacementPolicy;
+
+/**
+ * DM 的可调参数，由 Launcher 根据命令行填写，未指定的使用默认值
+ */
+public class DMConfig {
+    // 页面大小（字节），只在创建数据库时使用，4KB 到 32KB 之间的2的幂；打开时使用数据文件中记录的值
+    public int pageSize = PageSize.DEFAULT;
+
+    // 页面置换策略：lru, clock, lruk, 2q
+    public String replacement = ReplacementPolicy.LRU;
+
+    public static final String IO_CHANNEL = "channel";
+    public static final String IO_MMAP = "mmap";
+    // .db 文件的读写方式：channel 为 FileChannel 读写，mmap 为内存映射
+    public String io = IO_CHANNEL;
+
+    // 后台写回线程的唤醒间隔（毫秒），<= 0 时不启动写回线程，脏页只在驱逐和关闭时写回
+    public long flushInterval = 1000;
+    // 脏页数超过该值时提前唤醒写回线程，<= 0 时取缓存页数的四分之一
+    public int dirtyLimit = 0;
+    // 每批最多写回的页数，每批 fsync 一次
+    public int flushBatch = 256;
+
+    // 日志刷盘方式：sync 每条日志 fsync 一次，group 为组提交，提交事务时才等待日志落盘
+    public String logFlush = FlushStrategy.SYNC;
+    // 组提交的日志缓冲区大小（字节）
+    public int logBuffer = 1 << 20;
+    // 日志段大小（字节），段写满后换到新段
+    public long logSegmentSize = LoggerImpl.DEFAULT_SEGMENT_SIZE;
+    // 检查点之前的日志段移到该目录，为 null 时直接删除
+    public String logArchive = null;
+
+    // 检查点间隔（毫秒），<= 0 时只在关闭和恢复后做检查点
+    public long checkpointInterval = 30000;
+}
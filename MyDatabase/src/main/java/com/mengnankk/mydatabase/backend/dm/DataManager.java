@@ -1,7 +1,10 @@
 package com.mengnankk.mydatabase.backend.dm;
 
+import java.io.File;
+
 import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
 import com.mengnankk.mydatabase.backend.dm.logger.Logger;
+import com.mengnankk.mydatabase.backend.dm.logger.FlushStrategy;
 import com.mengnankk.mydatabase.backend.dm.page.PageOne;
 import com.mengnankk.mydatabase.backend.dm.pageCache.PageCache;
 import com.mengnankk.mydatabase.backend.tm.TransactionManager;
@@ -9,27 +12,51 @@ import com.mengnankk.mydatabase.backend.tm.TransactionManager;
 public interface DataManager {
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    int free(long uid) throws Exception;
+    void flushLog();
+    void checkpoint();
+    int pageSize();
     void close();
 
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
-        Logger lg = Logger.create(path);
+        return create(path, mem, tm, new DMConfig());
+    }
+
+    public static DataManager create(String path, long mem, TransactionManager tm, DMConfig conf) {
+        PageCache pc = PageCache.create(path, mem, conf);
+        Logger lg = Logger.create(path, FlushStrategy.newStrategy(conf.logFlush, conf.logBuffer),
+                conf.logSegmentSize, conf.logArchive == null ? null : new File(conf.logArchive));
+        pc.setLogger(lg);
 
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(path, pc, lg, tm);
         dm.initPageOne();
+        dm.startCheckpointer(conf.checkpointInterval);
         return dm;
     }
 
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
-        Logger lg = Logger.open(path);
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        return open(path, mem, tm, new DMConfig());
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, DMConfig conf) {
+        PageCache pc = PageCache.open(path, mem, conf);
+        Logger lg = Logger.open(path, FlushStrategy.newStrategy(conf.logFlush, conf.logBuffer),
+                conf.logSegmentSize, conf.logArchive == null ? null : new File(conf.logArchive));
+        pc.setLogger(lg);
+        DataManagerImpl dm = new DataManagerImpl(path, pc, lg, tm);
+        boolean recovered = false;
         if(!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+            Recover.recover(tm, lg, pc, PageOne.getCheckpointLsn(dm.pageOne), PageOne.getCheckpointPages(dm.pageOne));
+            recovered = true;
         }
-        dm.fillPageIndex();
+        dm.initPageIndex(recovered);
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        if(recovered) {
+            // 恢复的结果落盘，下次恢复不必再重放这些日志
+            dm.checkpoint();
+        }
+        dm.startCheckpointer(conf.checkpointInterval);
 
         return dm;
     }
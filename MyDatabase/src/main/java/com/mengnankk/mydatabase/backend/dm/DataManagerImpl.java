@@ -1,7 +1,15 @@
 package com.mengnankk.mydatabase.backend.dm;
 
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.mengnankk.mydatabase.backend.common.AbstractCache;
 import com.mengnankk.mydatabase.backend.common.SubArray;
@@ -12,32 +20,58 @@ import com.mengnankk.mydatabase.backend.dm.page.Page;
 import com.mengnankk.mydatabase.backend.dm.page.PageOne;
 import com.mengnankk.mydatabase.backend.dm.page.PageX;
 import com.mengnankk.mydatabase.backend.dm.pageCache.PageCache;
+import com.mengnankk.mydatabase.backend.dm.pageIndex.FreeSpaceMap;
 import com.mengnankk.mydatabase.backend.dm.pageIndex.PageIndex;
 import com.mengnankk.mydatabase.backend.dm.pageIndex.PageInfo;
 import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+import com.mengnankk.mydatabase.backend.tm.TransactionManagerImpl;
 import com.mengnankk.mydatabase.backend.utils.Panic;
 import com.mengnankk.mydatabase.backend.utils.Types;
 import com.mengnankk.mydatabase.common.Error;
 
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
+    String path;
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
+    // 写日志并标记页面LSN时持读锁，检查点取日志末尾时持写锁，
+    // 保证末尾之前的日志修改过的页面都已带上 recLsn
+    private ReadWriteLock logLock;
+    private Lock checkpointLock;
+    private Map<Long, Long> firstLsn;       // 事务写下的第一条日志的LSN，检查点不能越过仍活跃的事务
+    private ScheduledExecutorService checkpointer;
+    private Map<Integer, Integer> itemRefs;    // 各页面上被引用的 DataItem 数，有引用的页面不能整理
+    private ThreadLocal<Integer> insertPage;    // 线程上次插入的页面，下次优先插入该页
+
+    public DataManagerImpl(String path, PageCache pc, Logger logger, TransactionManager tm) {
         super(0);
+        this.path = path;
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.pIndex = new PageIndex(pc.getPageSize());
+        this.logLock = new ReentrantReadWriteLock();
+        this.checkpointLock = new ReentrantLock();
+        this.firstLsn = new ConcurrentHashMap<>();
+        this.itemRefs = new ConcurrentHashMap<>();
+        this.insertPage = ThreadLocal.withInitial(() -> 0);
     }
 
     @Override
     public DataItem read(long uid) throws Exception {
-        DataItemImpl di = (DataItemImpl)super.get(uid);
+        DataItemImpl di;
+        try {
+            di = (DataItemImpl)super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            }
+            throw e;
+        }
         if(!di.isValid()) {
             di.release();
             return null;
@@ -47,90 +81,297 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        // 确保数据是UTF-8编码
-        if(data != null) {
-            String str = new String(data, StandardCharsets.UTF_8);
-            data = str.getBytes(StandardCharsets.UTF_8);
-        }
-        
         byte[] raw = DataItem.wrapDataItemRaw(data);
-        if(raw.length > PageX.MAX_FREE_SPACE) {
+        if(raw.length > PageX.maxFreeSpace(pc.getPageSize())) {
             throw Error.DataTooLargeException;
         }
 
-        PageInfo pi = null;
         for(int i = 0; i < 5; i ++) {
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
+            PageInfo pi = pIndex.select(raw.length, insertPage.get());
+            if (pi == null) {
                 break;
-            } else {
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+            }
+            long uid = insertInto(xid, pi.pgno, raw);
+            if(uid != 0) {
+                insertPage.set(pi.pgno);
+                return uid;
             }
         }
-        if(pi == null) {
-            throw Error.DatabaseBusyException;
-        }
+        // 没有合适的页面，或选中的页面都要整理才放得下而整理不成（页面正被引用），改用新页面
+        // 新页面不经过 pIndex 选取，直接由本线程插入，一定放得下；插入后和其他页面一样放回 pIndex，
+        // 本线程下次插入时优先取回它
+        int pgno = pc.newPage(PageX.initRaw(pc.getPageSize()));
+        long uid = insertInto(xid, pgno, raw);
+        insertPage.set(pgno);
+        return uid;
+    }
 
+    // 插入到 pgno 页，连续空间不够又无法整理时返回 0；结束后把页面放回 pIndex
+    private long insertInto(long xid, int pgno, byte[] raw) throws Exception {
         Page pg = null;
         int freeSpace = 0;
         try {
-            pg = pc.getPage(pi.pgno);
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
-
-            short offset = PageX.insert(pg, raw);
-
-            pg.release();
-            return Types.addressToUid(pi.pgno, offset);
+            pg = pc.getPage(pgno);
+            if(!PageX.hasRoom(pg, raw.length) && !(compact(pg) && PageX.hasRoom(pg, raw.length))) {
+                // 只记下连续空间，避免马上又被选中
+                freeSpace = PageX.getContiguousSpace(pg);
+                return 0;
+            }
+            long uid;
+            pg.rLock();
+            logLock.readLock().lock();
+            try {
+                int pos = PageX.allocSlot(pg);
+                uid = Types.addressToUid(pgno, pos);
+                long lsn = log(xid, Recover.insertLog(xid, uid, raw));
+                PageX.insert(pg, pos, raw);
+                pg.setLsn(lsn);
+            } finally {
+                logLock.readLock().unlock();
+                pg.rUnLock();
+            }
+            freeSpace = PageX.getFreeSpace(pg);
+            return uid;
 
         } finally {
             // 将取出的pg重新插入pIndex
             if(pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
+                pg.release();
+            }
+            pIndex.add(pgno, freeSpace);
+        }
+    }
+
+    /**
+     * 整理页面，收回失效数据的空间
+     * 整理会移动数据，只在没有 DataItem 引用该页时进行；拿不到页面的排他锁也放弃
+     */
+    private boolean compact(Page pg) {
+        if(!pg.tryLock()) {
+            return false;
+        }
+        try {
+            if(itemRefs.containsKey(pg.getPageNumber())) {
+                return false;
+            }
+            PageX.compact(pg);
+            return true;
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    /**
+     * 把 uid 处的 DataItem 标记为非法，以 SUPER_XID 的名义记日志，返回其占用的字节数，已经非法时返回 0
+     * 槽式页的这部分空间记入 pIndex，下次插入时整理收回；旧格式页中的数据全部失效后整页改为槽式页
+     */
+    @Override
+    public int free(long uid) throws Exception {
+        DataItemImpl di;
+        try {
+            di = (DataItemImpl)super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return 0;
+            }
+            throw e;
+        }
+        int length;
+        try {
+            di.before();
+            if(!di.isValid()) {
+                di.unBefore();
+                return 0;
+            }
+            di.setInvalid();
+            di.after(TransactionManagerImpl.SUPER_XID);
+            SubArray raw = di.getRaw();
+            length = raw.end - raw.start;
+        } finally {
+            di.release();
+        }
+        int pgno = Types.uidToPgno(uid);
+        Page pg = pc.getPage(pgno);
+        try {
+            if(PageX.isSlotted(pg)) {
+                pIndex.addFreeSpace(pgno, length);
             } else {
-                pIndex.add(pi.pgno, freeSpace);
+                convert(pg);
             }
+        } finally {
+            pg.release();
         }
+        return length;
+    }
+
+    /**
+     * 旧格式页中的数据全部失效后，把它改为空的槽式页并立即落盘，
+     * 之后的槽式页日志不会作用到旧格式的页面上
+     */
+    private void convert(Page pg) {
+        if(!pg.tryLock()) {
+            return;
+        }
+        try {
+            if(PageX.isSlotted(pg) || itemRefs.containsKey(pg.getPageNumber()) || !PageX.isAllInvalid(pg)) {
+                return;
+            }
+            PageX.convert(pg);
+        } finally {
+            pg.unlock();
+        }
+        pc.flushPage(pg);
+        pIndex.addFreeSpace(pg.getPageNumber(), PageX.maxFreeSpace(pc.getPageSize()));
+    }
+
+    @Override
+    public int pageSize() {
+        return pc.getPageSize();
     }
 
     @Override
     public void close() {
         super.close();
-        logger.close();
-
+        if(checkpointer != null) {
+            checkpointer.shutdown();
+            try {
+                checkpointer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        // 其他页面都落盘之后才能写入正常关闭的标记
+        checkpoint();
+        FreeSpaceMap.save(path, pIndex, pc.getPageNumber());
         PageOne.setVcClose(pageOne);
+        pc.flushPage(pageOne);
         pageOne.release();
         pc.close();
+        logger.close();
     }
 
-    // 为xid生成update日志
+    // 为xid生成update日志，并记录到页面的LSN上
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        logLock.readLock().lock();
+        try {
+            long lsn = log(xid, log);
+            di.page().setLsn(lsn);
+        } finally {
+            logLock.readLock().unlock();
+        }
+    }
+
+    private long log(long xid, byte[] log) {
+        long lsn = logger.log(log);
+        firstLsn.putIfAbsent(xid, lsn);
+        return lsn;
+    }
+
+    /**
+     * 等待目前为止写下的日志全部落盘，提交事务前调用
+     * 事务修改索引时以 SUPER_XID 写日志，所以不能只等该事务自己的日志
+     */
+    @Override
+    public void flushLog() {
+        logger.flush(Long.MAX_VALUE);
+    }
+
+    /**
+     * 模糊检查点
+     * 不阻塞事务，把此刻之前的脏页写回，然后在 PageOne 中记下恢复的起点：
+     * 取日志末尾、仍未写回的页面的 recLsn、仍活跃事务的第一条日志三者中最小的LSN，
+     * 最后回收起点之前的日志空间
+     */
+    @Override
+    public void checkpoint() {
+        checkpointLock.lock();
+        try {
+            long endLsn;
+            logLock.writeLock().lock();
+            try {
+                endLsn = logger.endLsn();
+            } finally {
+                logLock.writeLock().unlock();
+            }
+
+            pc.flushAll();
+            long redoLsn = Math.min(endLsn, pc.getMinRecLsn());
+            long ckptLsn = Math.min(redoLsn, oldestActiveLsn());
+            // 后台写回线程可能刚写了页面还没有 fsync，检查点落盘之前再刷一次
+            pc.flushAll();
+
+            PageOne.setCheckpoint(pageOne, ckptLsn, pc.getPageNumber());
+            pc.flushPage(pageOne);
+            logger.reclaim(ckptLsn);
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    // 仍活跃的事务中最早写下的日志的LSN，顺便清理已结束的事务
+    private long oldestActiveLsn() {
+        long min = Long.MAX_VALUE;
+        Iterator<Map.Entry<Long, Long>> it = firstLsn.entrySet().iterator();
+        while(it.hasNext()) {
+            Map.Entry<Long, Long> e = it.next();
+            if(!tm.isActive(e.getKey())) {
+                it.remove();
+            } else if(e.getValue() < min) {
+                min = e.getValue();
+            }
+        }
+        return min;
+    }
+
+    // 每隔 intervalMillis 做一次检查点，<= 0 时不启动
+    void startCheckpointer(long intervalMillis) {
+        if(intervalMillis <= 0) {
+            return;
+        }
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "checkpointer");
+            t.setDaemon(true);
+            return t;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
     }
 
     public void releaseDataItem(DataItem di) {
         super.release(di.getUid());
     }
 
+    /**
+     * 解析 uid 处的 DataItem，数据已被整理掉时抛出 NullEntryException
+     * 在页面共享锁下解析并登记引用，与整理页面互斥
+     */
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short)(uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        int pgno = (int)(uid & ((1L << 32) - 1));
+        int pgno = Types.uidToPgno(uid);
         Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+        pg.rLock();
+        try {
+            int offset = PageX.itemOffset(pg, Types.uidToPos(uid));
+            if(offset >= 0) {
+                itemRefs.merge(pgno, 1, Integer::sum);
+                return DataItem.parseDataItem(pg, offset, uid, this);
+            }
+        } finally {
+            pg.rUnLock();
+        }
+        pg.release();
+        throw Error.NullEntryException;
     }
 
     @Override
     protected void releaseForCache(DataItem di) {
+        itemRefs.computeIfPresent(di.page().getPageNumber(), (k, v) -> v == 1 ? null : v-1);
         di.page().release();
     }
 
     // 在创建文件时初始化PageOne
     void initPageOne() {
-        int pgno = pc.newPage(PageOne.InitRaw());
+        int pgno = pc.newPage(PageOne.InitRaw(pc.getPageSize()));
         assert pgno == 1;
         try {
             pageOne = pc.getPage(pgno);
@@ -150,8 +391,18 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return PageOne.checkVc(pageOne);
     }
 
-    // 初始化pageIndex
-    void fillPageIndex() {
+    /**
+     * 初始化pageIndex
+     * 上次正常关闭时从空闲空间表加载，否则（崩溃恢复后、表缺失或不符）逐页扫描
+     */
+    void initPageIndex(boolean recovered) {
+        if(!recovered && FreeSpaceMap.load(path, pIndex, pc.getPageNumber())) {
+            return;
+        }
+        fillPageIndex();
+    }
+
+    private void fillPageIndex() {
         int pageNumber = pc.getPageNumber();
         for(int i = 2; i <= pageNumber; i ++) {
             Page pg = null;
@@ -160,6 +411,10 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             } catch (Exception e) {
                 Panic.panic(e);
             }
+            if(PageX.isBlank(pg)) {
+                // 新建页面的初始内容没有落盘，也没有插入过数据
+                PageX.convert(pg);
+            }
             pIndex.add(pg.getPageNumber(), PageX.getFreeSpace(pg));
             pg.release();
         }
@@ -1,11 +1,16 @@
 package com.mengnankk.mydatabase.backend.dm;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import com.google.common.primitives.Bytes;
 
@@ -18,48 +23,62 @@ import com.mengnankk.mydatabase.backend.dm.pageCache.PageCache;
 import com.mengnankk.mydatabase.backend.tm.TransactionManager;
 import com.mengnankk.mydatabase.backend.utils.Panic;
 import com.mengnankk.mydatabase.backend.utils.Parser;
+import com.mengnankk.mydatabase.backend.utils.Types;
 
 public class Recover {
 
-    private static final byte LOG_TYPE_INSERT = 0;
+    private static final byte LOG_TYPE_INSERT = 0;         // 旧格式页的插入日志，按字节偏移定位
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_SLOT_INSERT = 2;    // 槽式页的插入日志，按 uid 定位
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
-    static class InsertLogInfo {
+    // 解析过的日志，数据部分仍在 log 中，应用时直接从 log 拷入页面
+    static class LogRecord {
+        byte type;
         long xid;
         int pgno;
-        short offset;
-        byte[] raw;
+        int pos;            // 页内位置，即 uid 的低32位
+        byte[] log;
     }
 
-    static class UpdateLogInfo {
-        long xid;
-        int pgno;
-        short offset;
-        byte[] oldRaw;
-        byte[] newRaw;
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+        recover(tm, lg, pc, 0, 0);
     }
 
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
-        System.out.println("Recovering...");
+    /**
+     * 从检查点 ckptLsn 开始恢复，检查点时的 ckptPages 个页面都已落盘，不会被截断
+     *
+     * 日志只顺序读一遍：已结束事务的日志按页号分区用于 redo，活跃事务的日志按事务归类用于 undo。
+     * 不同分区的页面互不相交，redo 在各分区间并行，分区内保持日志顺序；
+     * redo 全部完成后，各活跃事务的 undo 并行进行，每个事务内倒序执行。
+     */
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, long ckptLsn, int ckptPages) {
+        System.out.println("Recovering from LSN " + ckptLsn + "...");
+
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        List<List<LogRecord>> redoParts = new ArrayList<>(parallelism);
+        for(int i = 0; i < parallelism; i ++) {
+            redoParts.add(new ArrayList<>());
+        }
+        Map<Long, List<LogRecord>> undoLogs = new LinkedHashMap<>();
+        // 每个事务的状态只查一次
+        Map<Long, Boolean> active = new HashMap<>();
 
-        lg.rewind();
-        int maxPgno = 0;
+        lg.rewind(ckptLsn);
+        int maxPgno = ckptPages;
         while(true) {
             byte[] log = lg.next();
             if(log == null) break;
-            int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
+            LogRecord rec = parseLog(log);
+            if(rec.pgno > maxPgno) {
+                maxPgno = rec.pgno;
             }
-            if(pgno > maxPgno) {
-                maxPgno = pgno;
+            if(active.computeIfAbsent(rec.xid, tm::isActive)) {
+                undoLogs.computeIfAbsent(rec.xid, k -> new ArrayList<>()).add(rec);
+            } else {
+                redoParts.get(rec.pgno % parallelism).add(rec);
             }
         }
         if(maxPgno == 0) {
@@ -68,82 +87,92 @@ public class Recover {
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
-
-        undoTranscations(tm, lg, pc);
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Callable<Void>> redoTasks = new ArrayList<>();
+            for(List<LogRecord> part : redoParts) {
+                redoTasks.add(() -> {
+                    for(LogRecord rec : part) {
+                        doLog(pc, rec, REDO);
+                    }
+                    return null;
+                });
+            }
+            runAll(pool, redoTasks);
+            System.out.println("Redo Transactions Over.");
+
+            List<Callable<Void>> undoTasks = new ArrayList<>();
+            for(List<LogRecord> logs : undoLogs.values()) {
+                undoTasks.add(() -> {
+                    for (int i = logs.size()-1; i >= 0; i --) {
+                        doLog(pc, logs.get(i), UNDO);
+                    }
+                    return null;
+                });
+            }
+            runAll(pool, undoTasks);
+        } finally {
+            pool.shutdown();
+        }
+        for(long xid : undoLogs.keySet()) {
+            tm.abort(xid);
+        }
         System.out.println("Undo Transactions Over.");
 
         System.out.println("Recovery Over.");
     }
 
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
-                }
+    private static void runAll(ForkJoinPool pool, List<Callable<Void>> tasks) {
+        for(Future<Void> f : pool.invokeAll(tasks)) {
+            try {
+                f.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Panic.panic(e);
             }
         }
     }
 
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
-            }
+    private static LogRecord parseLog(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log);
+        LogRecord rec = new LogRecord();
+        rec.type = log[OF_TYPE];
+        rec.xid = buf.getLong(OF_XID);
+        rec.log = log;
+        if(rec.type == LOG_TYPE_INSERT) {
+            rec.pgno = buf.getInt(OF_INSERT_PGNO);
+            rec.pos = buf.getShort(OF_INSERT_OFFSET);
+        } else {
+            // 槽式页插入日志与更新日志的 uid 位置相同
+            long uid = buf.getLong(OF_UPDATE_UID);
+            rec.pgno = Types.uidToPgno(uid);
+            rec.pos = Types.uidToPos(uid);
         }
+        return rec;
+    }
 
-        // 对所有active log进行倒序undo
-        for(Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size()-1; i >= 0; i --) {
-                byte[] log = logs.get(i);
-                if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
-                }
+    // 在页面的排他锁下应用一条日志，undo 时不同事务可能修改同一页面
+    private static void doLog(PageCache pc, LogRecord rec, int flag) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(rec.pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        pg.lock();
+        try {
+            if(rec.type == LOG_TYPE_INSERT) {
+                doInsertLog(pg, rec, flag);
+            } else if(rec.type == LOG_TYPE_SLOT_INSERT) {
+                doSlotInsertLog(pg, rec, flag);
+            } else {
+                doUpdateLog(pg, rec, flag);
             }
-            tm.abort(entry.getKey());
+        } finally {
+            pg.unlock();
+            pg.release();
         }
     }
 
-    private static boolean isInsertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
-    }
-
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE+1;
@@ -160,84 +189,47 @@ public class Recover {
         return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
     }
 
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
-        UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short)(uid & ((1L << 16) - 1));
-        uid >>>= 32;
-        li.pgno = (int)(uid & ((1L << 32) - 1));
+    private static void doUpdateLog(Page pg, LogRecord rec, int flag) {
+        byte[] log = rec.log;
         int length = (log.length - OF_UPDATE_RAW) / 2;
-        li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW+length);
-        li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW+length, OF_UPDATE_RAW+length*2);
-        return li;
-    }
-
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
-        int pgno;
-        short offset;
-        byte[] raw;
-        if(flag == REDO) {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.newRaw;
-        } else {
-            UpdateLogInfo xi = parseUpdateLog(log);
-            pgno = xi.pgno;
-            offset = xi.offset;
-            raw = xi.oldRaw;
-        }
-        Page pg = null;
-        try {
-            pg = pc.getPage(pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        try {
-            PageX.recoverUpdate(pg, raw, offset);
-        } finally {
-            pg.release();
-        }
+        int start = flag == REDO ? OF_UPDATE_RAW + length : OF_UPDATE_RAW;
+        PageX.recoverUpdate(pg, rec.pos, log, start, length);
     }
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // 旧格式：[LogType] [XID] [Pgno] [Offset] [Raw]
     private static final int OF_INSERT_PGNO = OF_XID+8;
     private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
 
-    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
-        byte[] logTypeRaw = {LOG_TYPE_INSERT};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+    private static void doInsertLog(Page pg, LogRecord rec, int flag) {
+        byte[] log = rec.log;
+        if(flag == UNDO) {
+            byte[] raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+            DataItem.setDataItemRawInvalid(raw);
+            PageX.recoverInsert(pg, raw, (short)rec.pos);
+        } else {
+            PageX.recoverInsert(pg, log, OF_INSERT_RAW, log.length - OF_INSERT_RAW, (short)rec.pos);
+        }
     }
 
-    private static InsertLogInfo parseInsertLog(byte[] log) {
-        InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
-        return li;
+    // [LogType] [XID] [UID] [Raw]
+    private static final int OF_SLOT_INSERT_RAW = OF_UPDATE_UID+8;
+
+    public static byte[] insertLog(long xid, long uid, byte[] raw) {
+        byte[] logTypeRaw = {LOG_TYPE_SLOT_INSERT};
+        byte[] xidRaw = Parser.long2Byte(xid);
+        byte[] uidRaw = Parser.long2Byte(uid);
+        return Bytes.concat(logTypeRaw, xidRaw, uidRaw, raw);
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
-        InsertLogInfo li = parseInsertLog(log);
-        Page pg = null;
-        try {
-            pg = pc.getPage(li.pgno);
-        } catch(Exception e) {
-            Panic.panic(e);
-        }
-        try {
-            if(flag == UNDO) {
-                DataItem.setDataItemRawInvalid(li.raw);
-            }
-            PageX.recoverInsert(pg, li.raw, li.offset);
-        } finally {
-            pg.release();
+    private static void doSlotInsertLog(Page pg, LogRecord rec, int flag) {
+        byte[] log = rec.log;
+        if(flag == UNDO) {
+            byte[] raw = Arrays.copyOfRange(log, OF_SLOT_INSERT_RAW, log.length);
+            DataItem.setDataItemRawInvalid(raw);
+            PageX.recoverSlotInsert(pg, rec.pos, raw, 0, raw.length);
+        } else {
+            PageX.recoverSlotInsert(pg, rec.pos, log, OF_SLOT_INSERT_RAW, log.length - OF_SLOT_INSERT_RAW);
         }
     }
 }
@@ -7,8 +7,8 @@ import com.google.common.primitives.Bytes;
 import com.mengnankk.mydatabase.backend.common.SubArray;
 import com.mengnankk.mydatabase.backend.dm.DataManagerImpl;
 import com.mengnankk.mydatabase.backend.dm.page.Page;
+import com.mengnankk.mydatabase.backend.dm.page.PageX;
 import com.mengnankk.mydatabase.backend.utils.Parser;
-import com.mengnankk.mydatabase.backend.utils.Types;
 
 public interface DataItem {
     SubArray data();
@@ -28,6 +28,11 @@ public interface DataItem {
     byte[] getOldRaw();
     SubArray getRaw();
 
+    // 页面大小为 pageSize 时，单个 dataitem 最多能存放的数据长度
+    public static int maxDataSize(int pageSize) {
+        return PageX.maxFreeSpace(pageSize) - DataItemImpl.OF_DATA;
+    }
+
     public static byte[] wrapDataItemRaw(byte[] raw) {
         byte[] valid = new byte[1];
         byte[] size = Parser.short2Byte((short)raw.length);
@@ -35,15 +40,24 @@ public interface DataItem {
     }
 
     // 从页面的offset处解析处dataitem
-    public static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    public static DataItem parseDataItem(Page pg, int offset, long uid, DataManagerImpl dm) {
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
-        short length = (short)(size + DataItemImpl.OF_DATA);
-        long uid = Types.addressToUid(pg.getPageNumber(), offset);
+        int length = getRawLength(raw, offset);
         return new DataItemImpl(new SubArray(raw, offset, offset+length), new byte[length], pg, uid, dm);
     }
 
     public static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte)1;
     }
+
+    // raw 中 offset 处的 dataitem 是否合法
+    public static boolean isRawValid(byte[] raw, int offset) {
+        return raw[offset+DataItemImpl.OF_VALID] == (byte)0;
+    }
+
+    // raw 中 offset 处的 dataitem 的总长度
+    public static int getRawLength(byte[] raw, int offset) {
+        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset+DataItemImpl.OF_SIZE, offset+DataItemImpl.OF_DATA));
+        return size + DataItemImpl.OF_DATA;
+    }
 }
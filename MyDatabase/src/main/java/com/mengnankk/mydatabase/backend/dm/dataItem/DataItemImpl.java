@@ -43,6 +43,11 @@ public class DataItemImpl implements DataItem {
         return raw.raw[raw.start+OF_VALID] == (byte)0;
     }
 
+    // 标记为非法，在 before() 和 after() 之间调用
+    public void setInvalid() {
+        raw.raw[raw.start+OF_VALID] = (byte)1;
+    }
+
     @Override
     public SubArray data() {
         return new SubArray(raw.raw, raw.start+OF_DATA, raw.end);
@@ -51,6 +56,7 @@ public class DataItemImpl implements DataItem {
     @Override
     public void before() {
         wLock.lock();
+        pg.rLock();
         pg.setDirty(true);
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
@@ -58,12 +64,14 @@ public class DataItemImpl implements DataItem {
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        pg.rUnLock();
         wLock.unlock();
     }
 
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this);
+        pg.rUnLock();
         wLock.unlock();
     }
 
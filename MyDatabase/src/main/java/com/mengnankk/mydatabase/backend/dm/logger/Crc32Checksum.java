@@ -0,0 +1,13 @@
+package com.mengnankk.mydatabase.backend.dm.logger;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+public class Crc32Checksum implements LogChecksum {
+    @Override
+    public int checksum(ByteBuffer buf) {
+        CRC32 crc = new CRC32();
+        crc.update(buf.duplicate());
+        return (int)crc.getValue();
+    }
+}
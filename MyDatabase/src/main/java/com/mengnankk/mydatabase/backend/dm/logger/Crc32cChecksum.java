@@ -0,0 +1,16 @@
+package com.mengnankk.mydatabase.backend.dm.logger;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * CRC32C，JVM 会用 CPU 的 crc32 指令实现，新建的日志段默认使用
+ */
+public class Crc32cChecksum implements LogChecksum {
+    @Override
+    public int checksum(ByteBuffer buf) {
+        CRC32C crc = new CRC32C();
+        crc.update(buf.duplicate());
+        return (int)crc.getValue();
+    }
+}
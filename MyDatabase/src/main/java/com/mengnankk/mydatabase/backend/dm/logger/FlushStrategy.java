@@ -2,6 +2,28 @@ package com.mengnankk.mydatabase.backend.dm.logger;
 
 import java.nio.channels.FileChannel;
 
+import com.mengnankk.mydatabase.backend.utils.Panic;
+import com.mengnankk.mydatabase.common.Error;
+
 public interface FlushStrategy {
     void flush(FileChannel fc);
+
+    public static final String SYNC = "sync";
+    public static final String GROUP = "group";
+
+    // 按名字创建刷盘策略：sync 每条日志 fsync 一次，group 为组提交
+    public static FlushStrategy newStrategy(String name, int bufferSize) {
+        if(name == null || "".equals(name)) {
+            name = SYNC;
+        }
+        switch(name) {
+            case SYNC:
+                return new SyncFlushStrategy();
+            case GROUP:
+                return new GroupCommitStrategy(bufferSize);
+            default:
+                Panic.panic(Error.InvalidLogFlushException);
+        }
+        return null;
+    }
 }
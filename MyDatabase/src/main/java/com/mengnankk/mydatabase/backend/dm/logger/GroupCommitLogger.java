@@ -0,0 +1,190 @@
+package com.mengnankk.mydatabase.backend.dm.logger;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.mengnankk.mydatabase.backend.utils.Panic;
+import com.mengnankk.mydatabase.common.Error;
+
+/**
+ * 组提交日志
+ *
+ * 写日志的线程以 CAS 推进 tail，在环形缓冲区中预留一段空间，拷入日志后按 LSN 顺序发布；
+ * 单独的刷盘线程把已发布的连续日志一次写入文件，每批只 fsync 一次。
+ * log 把日志放进缓冲区就返回，需要持久化的调用者（如提交事务）用 flush(lsn) 等待自己的日志落盘。
+ * 缓冲区中的位置即 LSN 对容量取模，flushedLsn 之前的空间可以复用。
+ * 拷贝完成但前面的日志还没发布的线程登记在 waiters 中挂起，前一条日志发布时唤醒它。
+ */
+public class GroupCommitLogger extends LoggerImpl {
+    private static final int PUBLISH_SPINS = 64;
+
+    private final byte[] ring;
+    private final int capacity;
+
+    private final AtomicLong tail;          // 已预留到的LSN
+    private volatile long published;        // 此LSN之前的日志都已拷入缓冲区
+    private final ConcurrentHashMap<Long, Thread> waiters;     // LSN -> 等待在该LSN发布日志的线程
+
+    private final Lock flushLock;
+    private final Condition flushed;
+    private volatile boolean closed;
+    private Thread flusher;
+
+    GroupCommitLogger(String prefix, List<LogSegment> segments, long segmentSize, File archiveDir, GroupCommitStrategy strategy) {
+        super(prefix, segments, segmentSize, archiveDir, strategy);
+        this.capacity = strategy.getBufferSize();
+        this.ring = new byte[capacity];
+        this.tail = new AtomicLong();
+        this.waiters = new ConcurrentHashMap<>();
+        this.flushLock = new ReentrantLock();
+        this.flushed = flushLock.newCondition();
+    }
+
+    @Override
+    void start() {
+        long end = super.endLsn();
+        tail.set(end);
+        published = end;
+        flushedLsn = end;
+        flusher = new Thread(this::flushLoop, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @Override
+    public long log(byte[] data) {
+        byte[] logEntry = wrapLog(data);
+        int len = logEntry.length;
+        if(len > capacity) {
+            // 缓冲区永远放不下，等待只会挂死
+            Panic.panic(Error.DataTooLargeException);
+        }
+        long lsn;
+        while(true) {
+            lsn = tail.get();
+            if(lsn + len - flushedLsn > capacity) {
+                // 缓冲区已满，等刷盘线程腾出空间
+                awaitFlushed(lsn + len - capacity - 1);
+                continue;
+            }
+            if(tail.compareAndSet(lsn, lsn + len)) {
+                break;
+            }
+        }
+
+        int pos = (int)(lsn % capacity);
+        int first = Math.min(len, capacity - pos);
+        System.arraycopy(logEntry, 0, ring, pos, first);
+        System.arraycopy(logEntry, first, ring, 0, len - first);
+
+        // 按LSN顺序发布，刷盘线程只写连续的日志
+        awaitPublished(lsn);
+        published = lsn + len;
+        Thread next = waiters.remove(lsn + len);
+        if(next != null) {
+            LockSupport.unpark(next);
+        }
+        LockSupport.unpark(flusher);
+        return lsn;
+    }
+
+    // 等前面的日志都发布，前一条日志通常马上就拷完，先短暂自旋再挂起
+    private void awaitPublished(long lsn) {
+        for(int i = 0; i < PUBLISH_SPINS; i ++) {
+            if(published == lsn) {
+                return;
+            }
+            Thread.onSpinWait();
+        }
+        // 先登记再检查：发布者要么看到登记，要么本线程看到新的 published
+        waiters.put(lsn, Thread.currentThread());
+        while(published != lsn) {
+            LockSupport.park(this);
+        }
+        waiters.remove(lsn);
+    }
+
+    /**
+     * 等待LSN为lsn的日志落盘，lsn超过已写入的日志时等待目前所有的日志落盘
+     */
+    @Override
+    public void flush(long lsn) {
+        long end = tail.get();
+        if(lsn >= end) {
+            lsn = end - 1;
+        }
+        awaitFlushed(lsn);
+    }
+
+    @Override
+    public long endLsn() {
+        return tail.get();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        super.close();
+    }
+
+    private void awaitFlushed(long lsn) {
+        if(lsn < flushedLsn) {
+            return;
+        }
+        LockSupport.unpark(flusher);
+        flushLock.lock();
+        try {
+            while(lsn >= flushedLsn) {
+                flushed.await(10, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        while(true) {
+            long start = flushedLsn;
+            long end = published;
+            if(start == end) {
+                if(closed) {
+                    break;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+                continue;
+            }
+
+            int pos = (int)(start % capacity);
+            int len = (int)(end - start);
+            int first = Math.min(len, capacity - pos);
+            appendLogs(start, ring, pos, first);
+            if(first < len) {
+                appendLogs(start + first, ring, 0, len - first);
+            }
+            syncLogs();
+
+            flushLock.lock();
+            try {
+                flushedLsn = end;
+                flushed.signalAll();
+            } finally {
+                flushLock.unlock();
+            }
+        }
+    }
+}
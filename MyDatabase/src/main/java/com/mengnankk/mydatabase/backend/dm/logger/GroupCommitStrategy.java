@@ -0,0 +1,34 @@
+package com.mengnankk.mydatabase.backend.dm.logger;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import com.mengnankk.mydatabase.backend.dm.pageCache.PageSize;
+import com.mengnankk.mydatabase.backend.utils.Panic;
+
+/**
+ * 组提交：日志先放入内存中的环形缓冲区，由 GroupCommitLogger 的刷盘线程成批写入并 fsync
+ */
+public class GroupCommitStrategy implements FlushStrategy {
+    // 最长的日志（update 日志带新旧两份数据）约为两个最大页面，缓冲区至少放得下两条这样的日志
+    static final int MIN_BUFFER_SIZE = 8 * PageSize.MAX;
+
+    private final int bufferSize;
+
+    public GroupCommitStrategy(int bufferSize) {
+        this.bufferSize = Math.max(bufferSize, MIN_BUFFER_SIZE);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public void flush(FileChannel fc) {
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.mengnankk.mydatabase.backend.dm.logger;
+
+import java.nio.ByteBuffer;
+
+import com.mengnankk.mydatabase.backend.utils.Panic;
+import com.mengnankk.mydatabase.common.Error;
+
+/**
+ * 日志记录的校验算法，由日志段头部的 Version 决定
+ */
+public interface LogChecksum {
+    /**
+     * 计算 buf 中 position 到 limit 之间字节的校验值，不改变 buf 的 position
+     */
+    int checksum(ByteBuffer buf);
+
+    public static final int VERSION_LEGACY = 0;     // 升级前的单文件日志，逐字节多项式校验
+    public static final int VERSION_CRC32 = 1;
+    public static final int VERSION_CRC32C = 2;
+
+    public static LogChecksum forVersion(int version) {
+        switch(version) {
+            case VERSION_LEGACY:
+                return new PolyChecksum();
+            case VERSION_CRC32:
+                return new Crc32Checksum();
+            case VERSION_CRC32C:
+                return new Crc32cChecksum();
+            default:
+                Panic.panic(Error.BadLogFileException);
+        }
+        return null;
+    }
+}
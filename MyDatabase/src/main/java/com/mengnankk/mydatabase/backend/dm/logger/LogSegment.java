@@ -0,0 +1,310 @@
+package com.mengnankk.mydatabase.backend.dm.logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.google.common.primitives.Bytes;
+import com.mengnankk.mydatabase.backend.utils.Panic;
+import com.mengnankk.mydatabase.backend.utils.Parser;
+import com.mengnankk.mydatabase.common.Error;
+
+/**
+ * 日志段
+ *
+ * 段文件名为 <path>.log.<BaseLSN>，结构如下：
+ * [Magic 4] [Version 4] [BaseLSN 8] [Log1] [Log2] ... [LogN]
+ * 每条日志 [Size 4] [Checksum 4] [Data]，Checksum 为 Data 的校验值，算法由 Version 决定（见 LogChecksum）
+ * 新建的段使用 CRC32C，之前写下的 CRC32 段仍按 CRC32 读取
+ * 段内第一条日志的LSN为 BaseLSN，之后的日志LSN依次递增，与前一个段的末尾衔接
+ *
+ * 升级前的单个日志文件 <path>.log 作为只读的旧格式段打开：
+ * [XChecksum 4] ([Magic 4] [BaseLSN 8]) [Log1] ... [LogN]
+ * 其日志的 Checksum 为逐字节的多项式校验，XChecksum 为全部日志的累计校验
+ */
+class LogSegment {
+
+    static final int MAGIC = 0xDB10C0DF;
+    static final int VERSION = LogChecksum.VERSION_CRC32C;
+
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    private static final int OF_BASE_LSN = OF_VERSION + 4;
+    static final int HEADER_SIZE = OF_BASE_LSN + 8;
+
+    // 旧格式
+    private static final int LEGACY_MAGIC = 0xDB10C0DE;
+    private static final int LEGACY_HEADER_SIZE = 4;
+    private static final int LEGACY_EXT_HEADER_SIZE = 16;
+
+    private static final int OF_SIZE = 0;
+    private static final int OF_CHECKSUM = OF_SIZE + 4;
+    private static final int OF_DATA = OF_CHECKSUM + 4;
+
+    final File file;
+    final long baseLsn;
+    private final int headerSize;
+    private final boolean legacy;
+    private final int version;
+    private final LogChecksum checksum;
+    private int xChecksum;              // 旧格式的累计校验
+    private RandomAccessFile raf;
+    private FileChannel fc;
+    long end;           // 段内日志的末尾LSN
+
+    private LogSegment(File file, RandomAccessFile raf, long baseLsn, int headerSize, boolean legacy, int version) {
+        this.file = file;
+        this.version = version;
+        this.checksum = LogChecksum.forVersion(version);
+        this.raf = raf;
+        this.fc = raf.getChannel();
+        this.baseLsn = baseLsn;
+        this.headerSize = headerSize;
+        this.legacy = legacy;
+    }
+
+    static File segmentFile(String prefix, long baseLsn) {
+        return new File(String.format("%s.%020d", prefix, baseLsn));
+    }
+
+    // 列出 prefix 下所有的段文件，按 BaseLSN 排序
+    static List<File> list(String prefix) {
+        File p = new File(prefix).getAbsoluteFile();
+        String name = p.getName() + ".";
+        File[] files = p.getParentFile().listFiles((dir, n) -> n.startsWith(name) && n.length() == name.length() + 20
+                && n.substring(name.length()).chars().allMatch(Character::isDigit));
+        List<File> res = new ArrayList<>();
+        if(files != null) {
+            res.addAll(Arrays.asList(files));
+        }
+        res.sort((a, b) -> a.getName().compareTo(b.getName()));
+        return res;
+    }
+
+    static LogSegment create(File f, long baseLsn) {
+        try {
+            if(!f.createNewFile()) {
+                Panic.panic(Error.FileExistsException);
+            }
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            LogSegment seg = new LogSegment(f, raf, baseLsn, HEADER_SIZE, false, VERSION);
+            byte[] header = Bytes.concat(Parser.int2Byte(MAGIC), Parser.int2Byte(VERSION), Parser.long2Byte(baseLsn));
+            seg.fc.write(ByteBuffer.wrap(header), 0);
+            seg.fc.force(false);
+            seg.end = baseLsn;
+            return seg;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        }
+    }
+
+    /**
+     * 打开一个段文件，头部不完整或 Magic 不符时返回null
+     */
+    static LogSegment open(File f) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            byte[] header = new byte[HEADER_SIZE];
+            if(raf.length() < HEADER_SIZE) {
+                raf.close();
+                return null;
+            }
+            raf.getChannel().read(ByteBuffer.wrap(header), 0);
+            if(Parser.parseInt(Arrays.copyOfRange(header, OF_MAGIC, OF_VERSION)) != MAGIC) {
+                raf.close();
+                return null;
+            }
+            int version = Parser.parseInt(Arrays.copyOfRange(header, OF_VERSION, OF_BASE_LSN));
+            if(version == LogChecksum.VERSION_LEGACY) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            long baseLsn = Parser.parseLong(Arrays.copyOfRange(header, OF_BASE_LSN, HEADER_SIZE));
+            LogSegment seg = new LogSegment(f, raf, baseLsn, HEADER_SIZE, false, version);
+            seg.end = baseLsn + raf.length() - HEADER_SIZE;
+            return seg;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        }
+    }
+
+    /**
+     * 以只读方式打开升级前的单个日志文件
+     */
+    static LogSegment openLegacy(File f) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(f, "rw");
+            long length = raf.length();
+            if(length < LEGACY_HEADER_SIZE) {
+                raf.close();
+                Panic.panic(Error.BadLogFileException);
+            }
+            byte[] header = new byte[LEGACY_EXT_HEADER_SIZE];
+            raf.getChannel().read(ByteBuffer.wrap(header), 0);
+            LogSegment seg;
+            if(length >= LEGACY_EXT_HEADER_SIZE && Parser.parseInt(Arrays.copyOfRange(header, 4, 8)) == LEGACY_MAGIC) {
+                long baseLsn = Parser.parseLong(Arrays.copyOfRange(header, 8, 16));
+                seg = new LogSegment(f, raf, baseLsn, LEGACY_EXT_HEADER_SIZE, true, LogChecksum.VERSION_LEGACY);
+            } else {
+                seg = new LogSegment(f, raf, LEGACY_HEADER_SIZE, LEGACY_HEADER_SIZE, true, LogChecksum.VERSION_LEGACY);
+            }
+            seg.xChecksum = Parser.parseInt(Arrays.copyOfRange(header, 0, 4));
+            seg.end = seg.baseLsn + length - seg.headerSize;
+            return seg;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        }
+    }
+
+    /**
+     * 校验段内的日志，截断第一条非法日志及其之后的部分
+     * 旧格式的日志文件还要核对全部日志的累计校验
+     */
+    void validate() {
+        int calcXCheck = 0;
+        long lsn = baseLsn;
+        while(true) {
+            LogEntry entry = read(lsn);
+            if(entry == null) break;
+            if(legacy) {
+                calcXCheck = PolyChecksum.update(calcXCheck, ByteBuffer.wrap(entry.header));
+                calcXCheck = PolyChecksum.update(calcXCheck, ByteBuffer.wrap(entry.data));
+            }
+            lsn += entry.length();
+        }
+        if(legacy && calcXCheck != xChecksum) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        truncate(lsn);
+    }
+
+    // 旧格式或旧版本的段不再追加日志，新日志总是按当前版本包装
+    boolean isWritable() {
+        return !legacy && version == VERSION;
+    }
+
+    private static final LogChecksum WRAP_CHECKSUM = LogChecksum.forVersion(VERSION);
+
+    /**
+     * 把 data 包装成一条日志，使用新建段的校验算法
+     */
+    static byte[] wrap(byte[] data) {
+        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + data.length);
+        buf.putInt(OF_SIZE, data.length);
+        buf.putInt(OF_CHECKSUM, WRAP_CHECKSUM.checksum(ByteBuffer.wrap(data)));
+        buf.position(OF_DATA);
+        buf.put(data);
+        return buf.array();
+    }
+
+    /**
+     * 读取LSN为lsn的日志，不存在或校验失败时返回null
+     * 日志头和数据分两次直接读入各自的数组，不再拼接拷贝
+     */
+    LogEntry read(long lsn) {
+        try {
+            long position = lsn - baseLsn + headerSize;
+            long size = fc.size();
+            if (position + OF_DATA >= size) return null;
+
+            byte[] header = new byte[OF_DATA];
+            readFully(ByteBuffer.wrap(header), position);
+            ByteBuffer headerBuf = ByteBuffer.wrap(header);
+            int dataSize = headerBuf.getInt(OF_SIZE);
+            int expectedChecksum = headerBuf.getInt(OF_CHECKSUM);
+
+            if (dataSize < 0 || position + OF_DATA + dataSize > size) return null;
+
+            byte[] data = new byte[dataSize];
+            ByteBuffer dataBuf = ByteBuffer.wrap(data);
+            readFully(dataBuf, position + OF_DATA);
+            dataBuf.flip();
+            if (expectedChecksum != checksum.checksum(dataBuf)) {
+                return null;
+            }
+            return new LogEntry(header, data);
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        }
+    }
+
+    private void readFully(ByteBuffer buf, long position) throws IOException {
+        while(buf.hasRemaining()) {
+            if(fc.read(buf, position + buf.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    // 在段末尾写入若干条完整日志（或其一部分），lsn 必须等于当前末尾
+    void write(long lsn, byte[] src, int off, int len) {
+        assert lsn == end;
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(src, off, len);
+            long position = lsn - baseLsn + headerSize;
+            while(buf.hasRemaining()) {
+                fc.write(buf, position + buf.position() - off);
+            }
+            end = lsn + len;
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    long size() {
+        return end - baseLsn;
+    }
+
+    FileChannel channel() {
+        return fc;
+    }
+
+    void force() {
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    void truncate(long lsn) {
+        try {
+            fc.truncate(lsn - baseLsn + headerSize);
+            end = lsn;
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    void close() {
+        try {
+            fc.close();
+            raf.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    // 封装日志结构
+    static class LogEntry {
+        byte[] header;
+        byte[] data;
+
+        LogEntry(byte[] header, byte[] data) {
+            this.header = header;
+            this.data = data;
+        }
+
+        int length() {
+            return header.length + data.length;
+        }
+    }
+}
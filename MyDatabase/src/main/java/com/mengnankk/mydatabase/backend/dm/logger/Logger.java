@@ -1,78 +1,97 @@
 package com.mengnankk.mydatabase.backend.dm.logger;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import com.mengnankk.mydatabase.backend.utils.Panic;
-import com.mengnankk.mydatabase.backend.utils.Parser;
 import com.mengnankk.mydatabase.common.Error;
 
 public interface Logger {
-    void log(byte[] data);
+    long log(byte[] data);
+    void flush(long lsn);
+    long endLsn();
+    void reclaim(long lsn);
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
+    void rewind(long lsn);
     void close();
 
     public static Logger create(String path,FlushStrategy strategy) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        try {
-            if(!f.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
-            }
-        } catch (Exception e) {
-            Panic.panic(e);
-        }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
-        }
+        return create(path, strategy, LoggerImpl.DEFAULT_SEGMENT_SIZE, null);
+    }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+    /**
+     * 新建日志，archiveDir 为 null 时回收的段直接删除
+     */
+    public static Logger create(String path, FlushStrategy strategy, long segmentSize, File archiveDir) {
+        String prefix = path+LoggerImpl.LOG_SUFFIX;
+        if(new File(prefix).exists() || !LogSegment.list(prefix).isEmpty()) {
+            Panic.panic(Error.FileExistsException);
         }
+        // 第一条日志的LSN从段头大小开始，LSN 0 保留为“没有日志”
+        LogSegment seg = LogSegment.create(LogSegment.segmentFile(prefix, LogSegment.HEADER_SIZE), LogSegment.HEADER_SIZE);
 
-        return new LoggerImpl(raf, fc, 0,strategy);
+        LoggerImpl lg = newLogger(prefix, Collections.singletonList(seg), segmentSize, archiveDir, strategy);
+        lg.start();
+        return lg;
     }
 
     public static Logger open(String path,FlushStrategy strategy) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        if(!f.exists()) {
-            Panic.panic(Error.FileNotExistsException);
+        return open(path, strategy, LoggerImpl.DEFAULT_SEGMENT_SIZE, null);
+    }
+
+    public static Logger open(String path, FlushStrategy strategy, long segmentSize, File archiveDir) {
+        String prefix = path+LoggerImpl.LOG_SUFFIX;
+        // 旧版本回收日志空间时中断留下的临时文件，原日志文件仍然完整
+        new File(prefix+LoggerImpl.TMP_SUFFIX).delete();
+
+        List<LogSegment> segments = new ArrayList<>();
+        File legacy = new File(prefix);
+        if(legacy.exists()) {
+            segments.add(LogSegment.openLegacy(legacy));
         }
-        if(!f.canRead() || !f.canWrite()) {
-            Panic.panic(Error.FileCannotRWException);
+        List<File> files = LogSegment.list(prefix);
+        for(int i = 0; i < files.size(); i ++) {
+            LogSegment seg = LogSegment.open(files.get(i));
+            if(seg == null) {
+                // 新建段时崩溃会留下头部不完整的段，它必然是最后一个，且头部落盘之前不会写入日志；
+                // 其他情况说明日志已损坏。移到一边而不删除，留作排查
+                File f = files.get(i);
+                if(i != files.size() - 1 || f.length() > LogSegment.HEADER_SIZE) {
+                    Panic.panic(Error.BadLogFileException);
+                }
+                File bad = new File(f.getPath()+LoggerImpl.BAD_SUFFIX);
+                try {
+                    Files.move(f.toPath(), bad.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+                System.out.println("Incomplete log segment header, moved " + f.getName() + " to " + bad.getName());
+                continue;
+            }
+            segments.add(seg);
         }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
+        if(segments.isEmpty()) {
+            Panic.panic(Error.FileNotExistsException);
         }
 
-        LoggerImpl lg = new LoggerImpl(raf, fc,0,strategy);
+        LoggerImpl lg = newLogger(prefix, segments, segmentSize, archiveDir, strategy);
         lg.init();
+        lg.start();
 
         return lg;
     }
+
+    static LoggerImpl newLogger(String prefix, List<LogSegment> segments, long segmentSize, File archiveDir, FlushStrategy strategy) {
+        if(strategy instanceof GroupCommitStrategy) {
+            return new GroupCommitLogger(prefix, segments, segmentSize, archiveDir, (GroupCommitStrategy)strategy);
+        }
+        return new LoggerImpl(prefix, segments, segmentSize, archiveDir, strategy);
+    }
 }
@@ -1,181 +1,202 @@
 package com.mengnankk.mydatabase.backend.dm.logger;
 
-import com.google.common.primitives.Bytes;
 import com.mengnankk.mydatabase.backend.utils.Panic;
-import com.mengnankk.mydatabase.backend.utils.Parser;
 import com.mengnankk.mydatabase.common.Error;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-import java.util.Arrays;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * 日志由若干个段文件 <path>.log.<BaseLSN> 组成，段的结构见 LogSegment
+ * 只有最后一个段可写，写满 segmentSize 后落盘封存，再新建一个段接着写
+ * 打开时只校验最后一个段并截断其非法尾部，之前的段在封存前已经落盘
+ * 检查点之前的段可以删除，或者移动到归档目录中
+ */
 public class LoggerImpl implements Logger {
 
-    private static final int SEED = 13331;
-    private static final int HEADER_SIZE = 4; // xChecksum 占 4 字节
-
-    private static final int OF_SIZE = 0;
-    private static final int OF_CHECKSUM = OF_SIZE + 4;
-    private static final int OF_DATA = OF_CHECKSUM + 4;
-
-    private final RandomAccessFile file;
-    private final FileChannel fc;
+    public static final String LOG_SUFFIX = ".log";
+    static final String TMP_SUFFIX = ".tmp";
+    static final String BAD_SUFFIX = ".bad";
+    public static final long DEFAULT_SEGMENT_SIZE = 16L << 20;
+
+    private final String prefix;
+    private final long segmentSize;
+    private final File archiveDir;          // 为 null 时直接删除回收的段
+    private final List<LogSegment> segments;
+    private LogSegment tail;
     private final Lock lock = new ReentrantLock();
-    
+
     private final FlushStrategy flushStrategy;
 
-    private int xChecksum;
-    private long position = HEADER_SIZE;
+    protected volatile long flushedLsn;     // 此位置之前的日志已经落盘
 
-    public static final String LOG_SUFFIX = ".log";
+    private int readSeg;
+    private long readLsn;
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum, FlushStrategy flushStrategy) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
+    LoggerImpl(String prefix, List<LogSegment> segments, long segmentSize, File archiveDir, FlushStrategy flushStrategy) {
+        this.prefix = prefix;
+        this.segments = new ArrayList<>(segments);
+        this.tail = this.segments.get(this.segments.size()-1);
+        this.segmentSize = segmentSize;
+        this.archiveDir = archiveDir;
         this.flushStrategy = flushStrategy;
+        this.flushedLsn = tail.end;
+        if(archiveDir != null) {
+            archiveDir.mkdirs();
+        }
+        rewind();
     }
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        flushStrategy = null;
-    }
-
+    /**
+     * 校验最后一个段并截断非法尾部
+     * 最后一个段是升级前的日志文件或旧版本的段时，它不再写入，新建一个段接在其后
+     */
     void init() {
-        try {
-            if (file.length() < HEADER_SIZE) {
-                Panic.panic(Error.BadLogFileException);
-            }
-
-            ByteBuffer headerBuf = ByteBuffer.allocate(HEADER_SIZE);
-            fc.position(0);
-            fc.read(headerBuf);
-            this.xChecksum = Parser.parseInt(headerBuf.array());
-
-            validateAndTruncateTail();//校验每条日志、记录 validEnd
-        } catch (IOException e) {
-            Panic.panic(e);
+        tail.validate();
+        if(!tail.isWritable()) {
+            rotate();
         }
-    }
-
-    // 校验日志并截断非法尾部
-    private void validateAndTruncateTail() {
+        flushedLsn = tail.end;
         rewind();
-        int calcXCheck = 0;
-        long validEnd = HEADER_SIZE;
-
-        while (true) {
-            LogEntry entry = readNextLog();
-            if (entry == null) break;
+    }
 
-            calcXCheck = calChecksum(calcXCheck, entry.fullBytes);
-            validEnd += entry.fullBytes.length;
-        }
+    // 日志包装
+    protected byte[] wrapLog(byte[] data) {
+        return LogSegment.wrap(data);
+    }
 
-        if (calcXCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
-        }
+    // 日志文件就绪后调用，子类在这里启动后台线程
+    void start() {
+    }
 
+    /**
+     * 追加一条日志，返回它的LSN
+     */
+    @Override
+    public long log(byte[] data) {
+        byte[] logEntry = wrapLog(data);
+        lock.lock();
         try {
-            truncate(validEnd);
-            file.seek(validEnd);
-        } catch (Exception e) {
-            Panic.panic(e);
+            long lsn = tail.end;
+            tail.write(lsn, logEntry, 0, logEntry.length);
+            if (flushStrategy instanceof AsyncFlushStrategy) {
+                AsyncFlushStrategy strategy = (AsyncFlushStrategy) flushStrategy;
+                strategy.recordWriteLength(logEntry.length);
+            } else {
+                flushStrategy.flush(tail.channel());
+            }
+            if(flushStrategy instanceof SyncFlushStrategy) {
+                flushedLsn = tail.end;
+            }
+            if(tail.size() >= segmentSize) {
+                rotate();
+            }
+            return lsn;
+        } finally {
+            lock.unlock();
         }
-
-        rewind();
     }
 
-    // 日志包装
-    private byte[] wrapLog(byte[] data) {
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checksum, data);
+    // 封存当前段并新建一个段，调用时持有 lock
+    private void rotate() {
+        tail.force();
+        flushedLsn = tail.end;
+        LogSegment seg = LogSegment.create(LogSegment.segmentFile(prefix, tail.end), tail.end);
+        segments.add(seg);
+        tail = seg;
     }
 
-    private int calChecksum(int base, byte[] data) {
-        int result = base;
-        for (byte b : data) {
-            result = result * SEED + b;
+    /**
+     * 保证LSN为lsn的日志及其之前的日志都已落盘
+     */
+    @Override
+    public void flush(long lsn) {
+        if(lsn < flushedLsn) {
+            return;
+        }
+        lock.lock();
+        try {
+            long end = tail.end;
+            if(lsn < flushedLsn || end == flushedLsn) {
+                return;
+            }
+            tail.force();
+            flushedLsn = end;
+        } finally {
+            lock.unlock();
         }
-        return result;
     }
 
+    /**
+     * 下一条日志将得到的LSN
+     */
     @Override
-    public void log(byte[] data) {
-        byte[] logEntry = wrapLog(data);
+    public long endLsn() {
         lock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(ByteBuffer.wrap(logEntry));
-            updateXChecksum(logEntry);
-        } catch (IOException e) {
-            Panic.panic(e);
+            return tail.end;
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * 选择刷盘更新，同步/异步/不更新
-     * @param logEntry
+     * 回收LSN小于lsn的日志：其中的日志全部早于lsn的已封存段被删除或归档
      */
-    private void updateXChecksum(byte[] logEntry) {
-        xChecksum = calChecksum(xChecksum, logEntry);
+    @Override
+    public void reclaim(long lsn) {
+        lock.lock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            if (flushStrategy instanceof  AsyncFlushStrategy ){
-                AsyncFlushStrategy strategy = (AsyncFlushStrategy)  flushStrategy;
-                strategy.recordWriteLength(logEntry.length+4);
-            }else {
-                flushStrategy.flush(fc);
+            while(segments.size() > 1 && segments.get(1).baseLsn <= lsn) {
+                LogSegment seg = segments.remove(0);
+                seg.close();
+                if(archiveDir != null) {
+                    Files.move(seg.file.toPath(), new File(archiveDir, seg.file.getName()).toPath(), StandardCopyOption.REPLACE_EXISTING);
+                } else {
+                    Files.delete(seg.file.toPath());
+                }
+                if(readSeg > 0) {
+                    readSeg --;
+                }
             }
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.unlock();
         }
     }
 
-    // 内部封装：读取下一条完整日志
-    private LogEntry readNextLog() {
+    /**
+     * 把LSN从lsn开始、由若干条完整日志组成的 src[off, off+len) 写入最后一个段，不刷盘
+     */
+    protected void appendLogs(long lsn, byte[] src, int off, int len) {
+        lock.lock();
         try {
-            if (position + OF_DATA >= fc.size()) return null;
-
-            ByteBuffer headerBuf = ByteBuffer.allocate(OF_DATA);
-            fc.position(position);
-            fc.read(headerBuf);
-            byte[] header = headerBuf.array();
-
-            int size = Parser.parseInt(Arrays.copyOfRange(header, OF_SIZE, OF_CHECKSUM));
-            int expectedChecksum = Parser.parseInt(Arrays.copyOfRange(header, OF_CHECKSUM, OF_DATA));
-
-            if (position + OF_DATA + size > fc.size()) return null;
-
-            ByteBuffer fullBuf = ByteBuffer.allocate(OF_DATA + size);
-            fc.position(position);
-            fc.read(fullBuf);
-            byte[] fullLog = fullBuf.array();
-
-            byte[] data = Arrays.copyOfRange(fullLog, OF_DATA, OF_DATA + size);
-            int actualChecksum = calChecksum(0, data);
+            tail.write(lsn, src, off, len);
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            if (expectedChecksum != actualChecksum) {
-                return null;
+    /**
+     * 把已写入的日志刷盘，段写满时换到新段
+     * 一批日志总是在日志边界结束，所以只在这里换段
+     */
+    protected void syncLogs() {
+        lock.lock();
+        try {
+            flushStrategy.flush(tail.channel());
+            if(tail.size() >= segmentSize) {
+                rotate();
             }
-
-            LogEntry entry = new LogEntry(fullLog, data);
-            position += fullLog.length;
-            return entry;
-
-        } catch (IOException e) {
-            Panic.panic(e);
-            return null;
+        } finally {
+            lock.unlock();
         }
     }
 
@@ -183,18 +204,41 @@ public class LoggerImpl implements Logger {
     public byte[] next() {
         lock.lock();
         try {
-            LogEntry entry = readNextLog();
-            return entry == null ? null : entry.data;
+            while(true) {
+                LogSegment seg = segments.get(readSeg);
+                boolean last = readSeg == segments.size() - 1;
+                if(readLsn >= seg.end) {
+                    if(last) {
+                        return null;
+                    }
+                    readSeg ++;
+                    readLsn = segments.get(readSeg).baseLsn;
+                    continue;
+                }
+                LogSegment.LogEntry entry = seg.read(readLsn);
+                if(entry == null) {
+                    if(!last) {
+                        // 已封存的段在写满时已经落盘，不应有损坏
+                        Panic.panic(Error.BadLogFileException);
+                    }
+                    return null;
+                }
+                readLsn += entry.length();
+                return entry.data;
+            }
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * 把最后一个段截断到LSN x
+     */
     @Override
     public void truncate(long x) throws Exception {
         lock.lock();
         try {
-            fc.truncate(x);
+            tail.truncate(x);
         } finally {
             lock.unlock();
         }
@@ -202,27 +246,41 @@ public class LoggerImpl implements Logger {
 
     @Override
     public void rewind() {
-        position = HEADER_SIZE;
+        lock.lock();
+        try {
+            readSeg = 0;
+            readLsn = segments.get(0).baseLsn;
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * 从LSN为lsn的日志开始读，lsn早于保留的第一条日志时从头读
+     */
     @Override
-    public void close() {
+    public void rewind(long lsn) {
+        lock.lock();
         try {
-            fc.close();
-            file.close();
-        } catch (IOException e) {
-            Panic.panic(e);
+            readSeg = 0;
+            while(readSeg < segments.size() - 1 && segments.get(readSeg + 1).baseLsn <= lsn) {
+                readSeg ++;
+            }
+            readLsn = Math.max(lsn, segments.get(readSeg).baseLsn);
+        } finally {
+            lock.unlock();
         }
     }
 
-    // 封装日志结构
-    private static class LogEntry {
-        byte[] fullBytes;
-        byte[] data;
-
-        LogEntry(byte[] fullBytes, byte[] data) {
-            this.fullBytes = fullBytes;
-            this.data = data;
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            for(LogSegment seg : segments) {
+                seg.close();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 }
@@ -0,0 +1,24 @@
+package com.mengnankk.mydatabase.backend.dm.logger;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 旧格式的逐字节多项式校验，只用于读取升级前的日志
+ */
+public class PolyChecksum implements LogChecksum {
+    private static final int SEED = 13331;
+
+    @Override
+    public int checksum(ByteBuffer buf) {
+        return update(0, buf);
+    }
+
+    // 在 base 的基础上继续累计，旧格式的 XChecksum 按此把全部日志串起来
+    static int update(int base, ByteBuffer buf) {
+        int result = base;
+        for (int i = buf.position(); i < buf.limit(); i ++) {
+            result = result * SEED + buf.get(i);
+        }
+        return result;
+    }
+}
@@ -1,11 +1,18 @@
 package com.mengnankk.mydatabase.backend.dm.page;
 
 public interface Page {
+    // 修改页面内容的线程持共享锁，写回页面时持排他锁，保证写出的是一致的页面
     void lock();
     void unlock();
+    boolean tryLock();
+    void rLock();
+    void rUnLock();
     void release();
     void setDirty(boolean dirty);
     boolean isDirty();
     int getPageNumber();
     byte[] getData();
+    long getLsn();
+    void setLsn(long lsn);
+    long getRecLsn();
 }
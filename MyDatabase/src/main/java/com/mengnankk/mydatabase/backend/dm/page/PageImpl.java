@@ -1,15 +1,18 @@
 package com.mengnankk.mydatabase.backend.dm.page;
 
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.mengnankk.mydatabase.backend.dm.pageCache.PageCache;
 
 public class PageImpl implements Page {
     private int pageNumber;
     private byte[] data;
-    private boolean dirty;
-    private Lock lock;
+    private volatile boolean dirty;
+    private ReadWriteLock lock;
+    private AtomicLong lsn;     // 最后一次修改该页的日志的LSN，写回前需保证该日志已落盘
+    private AtomicLong recLsn;  // 该页变脏后第一条修改它的日志的LSN，恢复至少要从这里开始
     
     private PageCache pc;
 
@@ -17,15 +20,29 @@ public class PageImpl implements Page {
         this.pageNumber = pageNumber;
         this.data = data;
         this.pc = pc;
-        lock = new ReentrantLock();
+        lock = new ReentrantReadWriteLock();
+        lsn = new AtomicLong(0);
+        recLsn = new AtomicLong(0);
     }
 
     public void lock() {
-        lock.lock();
+        lock.writeLock().lock();
     }
 
     public void unlock() {
-        lock.unlock();
+        lock.writeLock().unlock();
+    }
+
+    public boolean tryLock() {
+        return lock.writeLock().tryLock();
+    }
+
+    public void rLock() {
+        lock.readLock().lock();
+    }
+
+    public void rUnLock() {
+        lock.readLock().unlock();
     }
 
     public void release() {
@@ -34,6 +51,9 @@ public class PageImpl implements Page {
 
     public void setDirty(boolean dirty) {
         this.dirty = dirty;
+        if(!dirty) {
+            recLsn.set(0);
+        }
     }
 
     public boolean isDirty() {
@@ -48,4 +68,18 @@ public class PageImpl implements Page {
         return data;
     }
 
+    public long getLsn() {
+        return lsn.get();
+    }
+
+    // 同一页上的修改可能并发进行，只保留较大的LSN
+    public void setLsn(long lsn) {
+        this.lsn.accumulateAndGet(lsn, Math::max);
+        recLsn.compareAndSet(0, lsn);
+    }
+
+    public long getRecLsn() {
+        return recLsn.get();
+    }
+
 }
@@ -2,7 +2,7 @@ package com.mengnankk.mydatabase.backend.dm.page;
 
 import java.util.Arrays;
 
-import com.mengnankk.mydatabase.backend.dm.pageCache.PageCache;
+import com.mengnankk.mydatabase.backend.utils.Parser;
 import com.mengnankk.mydatabase.backend.utils.RandomUtil;
 
 /**
@@ -10,14 +10,27 @@ import com.mengnankk.mydatabase.backend.utils.RandomUtil;
  * ValidCheck
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 用于判断上一次数据库是否正常关闭
+ *
+ * Checkpoint
+ * 116~123字节为最近一次检查点的LSN，恢复从这里开始读日志
+ * 124~127字节为检查点时的页面数，之前的页面都已落盘；正常关闭时即数据库的页面数，
+ * 打开时按它而不是文件长度确定页面数（内存映射方式会把文件撑大到段的整数倍）
+ * 旧文件这里全为0，恢复从日志开头开始，页面数由文件长度推出
+ *
+ * PageSize
+ * 128~131字节为创建时指定的页面大小，打开数据库时最先读出；旧文件为0，即默认的 8KB
  */
 public class PageOne {
     private static final int OF_VC = 100;
     private static final int LEN_VC = 8;
+    private static final int OF_CKPT_LSN = OF_VC + 2*LEN_VC;
+    public static final int OF_CKPT_PAGES = OF_CKPT_LSN + 8;
+    public static final int OF_PAGE_SIZE = OF_CKPT_PAGES + 4;
 
-    public static byte[] InitRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    public static byte[] InitRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
         setVcOpen(raw);
+        System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
         return raw;
     }
 
@@ -39,6 +52,20 @@ public class PageOne {
         System.arraycopy(raw, OF_VC, raw, OF_VC+LEN_VC, LEN_VC);
     }
 
+    public static void setCheckpoint(Page pg, long lsn, int pageNumber) {
+        pg.setDirty(true);
+        System.arraycopy(Parser.long2Byte(lsn), 0, pg.getData(), OF_CKPT_LSN, 8);
+        System.arraycopy(Parser.int2Byte(pageNumber), 0, pg.getData(), OF_CKPT_PAGES, 4);
+    }
+
+    public static long getCheckpointLsn(Page pg) {
+        return Parser.parseLong(Arrays.copyOfRange(pg.getData(), OF_CKPT_LSN, OF_CKPT_LSN+8));
+    }
+
+    public static int getCheckpointPages(Page pg) {
+        return Parser.parseInt(Arrays.copyOfRange(pg.getData(), OF_CKPT_PAGES, OF_CKPT_PAGES+4));
+    }
+
     public static boolean checkVc(Page pg) {
         return checkVc(pg.getData());
     }
@@ -2,68 +2,331 @@ package com.mengnankk.mydatabase.backend.dm.page;
 
 import java.util.Arrays;
 
-import com.mengnankk.mydatabase.backend.dm.pageCache.PageCache;
-import com.mengnankk.mydatabase.backend.utils.Parser;
+import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
+import com.mengnankk.mydatabase.backend.utils.Panic;
+import com.mengnankk.mydatabase.common.Error;
 
 /**
  * PageX管理普通页
- * 普通页结构
+ *
+ * 槽式页结构
+ * [Format] [SlotCount] [DataStart] [Slot0] [Slot1] ... [Free] ... [DataN] ... [Data0]
+ * Format:    2字节 页面格式，为 FORMAT_SLOTTED
+ * SlotCount: 2字节 槽的个数
+ * DataStart: 2字节 数据区开始的偏移，数据从页尾向前分配
+ * Slot:      4字节 [Offset 2][Gen 2]，Offset 为 0 表示空槽
+ * uid 的低32位为 [Gen][SlotNo]，数据在页内移动时 uid 不变；
+ * 空槽被重新使用时 Gen 加一，指向旧数据的 uid 不会误读到新数据。Gen 从 1 开始
+ *
+ * 旧格式页结构
  * [FreeSpaceOffset] [Data]
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * FreeSpaceOffset: 2字节 空闲位置开始偏移，总为正数，可与 Format 区分
+ * uid 的低16位为数据的字节偏移。旧格式页只读和原地更新，不再插入；
+ * 其中的数据全部失效后整页改为槽式页
  */
 public class PageX {
-    
-    private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
-
-    public static byte[] initRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+
+    public static final short FORMAT_SLOTTED = (short)0x8001;
+
+    private static final int OF_FORMAT = 0;
+    private static final int OF_SLOT_COUNT = OF_FORMAT+2;
+    private static final int OF_DATA_START = OF_SLOT_COUNT+2;
+    private static final int OF_SLOTS = OF_DATA_START+2;
+    private static final int SLOT_SIZE = 4;
+
+    // 旧格式
+    private static final int OF_FREE = 0;
+    private static final int OF_LEGACY_DATA = 2;
+
+    // 空页中放入一条数据（含一个槽）后剩下的空间，即单条数据的上限
+    public static int maxFreeSpace(int pageSize) {
+        return pageSize - OF_SLOTS - SLOT_SIZE;
+    }
+
+    public static byte[] initRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
+        initSlotted(raw);
         return raw;
     }
 
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    private static void initSlotted(byte[] raw) {
+        Arrays.fill(raw, (byte)0);
+        putU16(raw, OF_FORMAT, FORMAT_SLOTTED & 0xFFFF);
+        putU16(raw, OF_SLOT_COUNT, 0);
+        putU16(raw, OF_DATA_START, raw.length);
     }
 
-    // 获取pg的FSO
-    public static short getFSO(Page pg) {
-        return getFSO(pg.getData());
+    public static boolean isSlotted(Page pg) {
+        return isSlotted(pg.getData());
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    private static boolean isSlotted(byte[] raw) {
+        short format = (short)getU16(raw, OF_FORMAT);
+        if(format < 0 && format != FORMAT_SLOTTED) {
+            Panic.panic(Error.BadPageFormatException);
+        }
+        return format == FORMAT_SLOTTED;
     }
 
-    // 将raw插入pg中，返回插入位置
-    public static short insert(Page pg, byte[] raw) {
-        pg.setDirty(true);
-        short offset = getFSO(pg.getData());
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short)(offset + raw.length));
+    // 从未写入过的页面（新建页面的内容崩溃时没有落盘）
+    public static boolean isBlank(Page pg) {
+        return isBlank(pg.getData());
+    }
+
+    private static boolean isBlank(byte[] raw) {
+        return getU16(raw, OF_FORMAT) == 0;
+    }
+
+    /**
+     * uid 的低32位 pos 对应的数据在页内的偏移，数据已被整理掉或不存在时返回 -1
+     */
+    public static int itemOffset(Page pg, int pos) {
+        byte[] raw = pg.getData();
+        if(!isSlotted(raw)) {
+            return pos & 0xFFFF;
+        }
+        int slot = pos & 0xFFFF;
+        if(slot >= getU16(raw, OF_SLOT_COUNT)) {
+            return -1;
+        }
+        int offset = slotOffset(raw, slot);
+        if(offset == 0 || slotGen(raw, slot) != pos >>> 16) {
+            return -1;
+        }
         return offset;
     }
 
-    // 获取页面的空闲空间大小
+    /**
+     * 为新数据选一个槽，优先复用空槽，返回 uid 的低32位
+     * 同一页面同一时刻只有一个插入者
+     */
+    public static int allocSlot(Page pg) {
+        byte[] raw = pg.getData();
+        int count = getU16(raw, OF_SLOT_COUNT);
+        for(int i = 0; i < count; i ++) {
+            if(slotOffset(raw, i) == 0) {
+                return nextGen(slotGen(raw, i)) << 16 | i;
+            }
+        }
+        return 1 << 16 | count;
+    }
+
+    private static int nextGen(int gen) {
+        return gen == 0xFFFF ? 1 : gen+1;
+    }
+
+    // 不整理页面时能否放下 length 字节的数据（没有空槽时还要放下一个新槽）
+    public static boolean hasRoom(Page pg, int length) {
+        byte[] raw = pg.getData();
+        int need = length;
+        if(!hasFreeSlot(raw)) {
+            need += SLOT_SIZE;
+        }
+        return getContiguousSpace(raw) >= need;
+    }
+
+    private static boolean hasFreeSlot(byte[] raw) {
+        int count = getU16(raw, OF_SLOT_COUNT);
+        for(int i = 0; i < count; i ++) {
+            if(slotOffset(raw, i) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 将raw放入 pos 指定的槽中，调用前用 hasRoom 确认空间足够
+    public static void insert(Page pg, int pos, byte[] raw) {
+        pg.setDirty(true);
+        place(pg.getData(), pos, raw, 0, raw.length);
+    }
+
+    private static void place(byte[] raw, int pos, byte[] src, int srcPos, int length) {
+        int slot = pos & 0xFFFF;
+        int count = getU16(raw, OF_SLOT_COUNT);
+        int offset = getU16(raw, OF_DATA_START) - length;
+        System.arraycopy(src, srcPos, raw, offset, length);
+        putU16(raw, OF_DATA_START, offset);
+        // 新槽之间跳过的槽记为空槽
+        for(int i = count; i < slot; i ++) {
+            setSlot(raw, i, 0, 0);
+        }
+        setSlot(raw, slot, offset, pos >>> 16);
+        if(slot >= count) {
+            putU16(raw, OF_SLOT_COUNT, slot+1);
+        }
+    }
+
+    /**
+     * 页面的空闲空间，包括整理后可以收回的失效数据，旧格式页不再插入，返回 0
+     */
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        byte[] raw = pg.getData();
+        if(!isSlotted(raw)) {
+            return 0;
+        }
+        int count = getU16(raw, OF_SLOT_COUNT);
+        int garbage = 0;
+        for(int i = 0; i < count; i ++) {
+            int offset = slotOffset(raw, i);
+            if(offset != 0 && !DataItem.isRawValid(raw, offset)) {
+                garbage += DataItem.getRawLength(raw, offset);
+            }
+        }
+        return Math.max(getContiguousSpace(raw) - SLOT_SIZE, 0) + garbage;
     }
 
-    // 将raw插入pg中的offset位置，并将pg的offset设置为较大的offset
+    // 不整理页面时可用的连续空间，旧格式页返回 0
+    public static int getContiguousSpace(Page pg) {
+        return Math.max(getContiguousSpace(pg.getData()) - SLOT_SIZE, 0);
+    }
+
+    private static int getContiguousSpace(byte[] raw) {
+        if(!isSlotted(raw)) {
+            return 0;
+        }
+        int dirEnd = OF_SLOTS + getU16(raw, OF_SLOT_COUNT) * SLOT_SIZE;
+        return getU16(raw, OF_DATA_START) - dirEnd;
+    }
+
+    /**
+     * 整理页面：失效的数据被丢弃，其槽变为空槽（保留 Gen），有效数据移到页尾连成一片
+     * 调用者持页面排他锁，并保证没有 DataItem 引用着该页中的数据
+     */
+    public static void compact(Page pg) {
+        byte[] raw = pg.getData();
+        int count = getU16(raw, OF_SLOT_COUNT);
+        byte[] copy = Arrays.copyOf(raw, raw.length);
+        int dataStart = raw.length;
+        for(int i = 0; i < count; i ++) {
+            int offset = slotOffset(copy, i);
+            if(offset == 0) {
+                continue;
+            }
+            if(!DataItem.isRawValid(copy, offset)) {
+                setSlot(raw, i, 0, slotGen(copy, i));
+                continue;
+            }
+            int length = DataItem.getRawLength(copy, offset);
+            dataStart -= length;
+            System.arraycopy(copy, offset, raw, dataStart, length);
+            setSlot(raw, i, dataStart, slotGen(copy, i));
+        }
+        Arrays.fill(raw, OF_SLOTS + count*SLOT_SIZE, dataStart, (byte)0);
+        putU16(raw, OF_DATA_START, dataStart);
+        pg.setDirty(true);
+    }
+
+    /**
+     * 旧格式页中的数据是否全部失效，此时可以整页改为槽式页
+     */
+    public static boolean isAllInvalid(Page pg) {
+        byte[] raw = pg.getData();
+        int fso = getU16(raw, OF_FREE);
+        int offset = OF_LEGACY_DATA;
+        while(offset < fso) {
+            if(DataItem.isRawValid(raw, offset)) {
+                return false;
+            }
+            offset += DataItem.getRawLength(raw, offset);
+        }
+        return true;
+    }
+
+    // 将页面重新初始化为空的槽式页
+    public static void convert(Page pg) {
+        pg.setDirty(true);
+        initSlotted(pg.getData());
+    }
+
+    // 恢复时使用。旧格式日志：将raw插入pg中的offset位置，并将pg的offset设置为较大的offset
     public static void recoverInsert(Page pg, byte[] raw, short offset) {
+        recoverInsert(pg, raw, 0, raw.length, offset);
+    }
+
+    // 同上，插入的内容为 src[srcPos, srcPos+length)，恢复时直接从日志中拷贝
+    // 页面已改为槽式页时，旧格式页中的数据早已失效，跳过
+    public static void recoverInsert(Page pg, byte[] src, int srcPos, int length, short offset) {
+        byte[] raw = pg.getData();
+        if(isSlotted(raw)) {
+            return;
+        }
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        System.arraycopy(src, srcPos, raw, offset, length);
 
-        short rawFSO = getFSO(pg.getData());
-        if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+        int rawFSO = getU16(raw, OF_FREE);
+        if(rawFSO < offset + length) {
+            putU16(raw, OF_FREE, offset+length);
         }
     }
 
-    // 将raw插入pg中的offset位置，不更新update
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    /**
+     * 恢复时使用。槽式页日志：将 src[srcPos, srcPos+length) 放入 pos 指定的槽
+     * 页面中可能已经是更晚的状态：槽中已是同一 Gen 的数据则原地覆盖；
+     * 槽已被更新的 Gen 占用、或同一 Gen 的数据已被整理掉，说明该数据后来失效了，跳过
+     */
+    public static void recoverSlotInsert(Page pg, int pos, byte[] src, int srcPos, int length) {
+        byte[] raw = pg.getData();
+        if(isBlank(raw)) {
+            initSlotted(raw);
+        }
+        if(!isSlotted(raw)) {
+            return;
+        }
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        int slot = pos & 0xFFFF;
+        int gen = pos >>> 16;
+        if(slot < getU16(raw, OF_SLOT_COUNT)) {
+            int offset = slotOffset(raw, slot);
+            int curGen = slotGen(raw, slot);
+            if(offset != 0 && curGen == gen) {
+                System.arraycopy(src, srcPos, raw, offset, length);
+                return;
+            }
+            if(curGen == gen || (short)(curGen - gen) > 0) {
+                return;
+            }
+            if(offset != 0) {
+                // 槽中是更早的 Gen 留下的失效数据
+                setSlot(raw, slot, 0, curGen);
+            }
+        }
+        if(getContiguousSpace(raw) < length) {
+            compact(pg);
+        }
+        place(raw, pos, src, srcPos, length);
+    }
+
+    // 按 uid 的低32位 pos 找到数据，写入 src[srcPos, srcPos+length)，数据已不存在时跳过
+    public static void recoverUpdate(Page pg, int pos, byte[] src, int srcPos, int length) {
+        int offset = itemOffset(pg, pos);
+        if(offset < 0) {
+            return;
+        }
+        pg.setDirty(true);
+        System.arraycopy(src, srcPos, pg.getData(), offset, length);
+    }
+
+    private static int slotOffset(byte[] raw, int slot) {
+        return getU16(raw, OF_SLOTS + slot*SLOT_SIZE);
+    }
+
+    private static int slotGen(byte[] raw, int slot) {
+        return getU16(raw, OF_SLOTS + slot*SLOT_SIZE + 2);
+    }
+
+    private static void setSlot(byte[] raw, int slot, int offset, int gen) {
+        putU16(raw, OF_SLOTS + slot*SLOT_SIZE, offset);
+        putU16(raw, OF_SLOTS + slot*SLOT_SIZE + 2, gen);
+    }
+
+    // 页内的偏移和计数都按无符号2字节（大端）存放
+    private static int getU16(byte[] raw, int of) {
+        return (raw[of] & 0xFF) << 8 | (raw[of+1] & 0xFF);
+    }
+
+    private static void putU16(byte[] raw, int of, int v) {
+        raw[of] = (byte)(v >>> 8);
+        raw[of+1] = (byte)v;
     }
 }
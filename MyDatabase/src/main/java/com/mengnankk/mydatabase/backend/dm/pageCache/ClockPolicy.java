@@ -0,0 +1,97 @@
+package com.mengnankk.mydatabase.backend.dm.pageCache;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * CLOCK：页面组成一个环，每个槽位带一个访问位
+ * 时钟指针扫过时，访问位为1的清零并跳过，遇到访问位为0且未被引用的页面即淘汰
+ */
+public class ClockPolicy implements ReplacementPolicy {
+    private final long[] pages;
+    private final boolean[] referenced;
+    private final boolean[] evictable;
+    private final Map<Long, Integer> slots;
+    private final ArrayDeque<Integer> freeSlots;
+    private int hand;
+
+    public ClockPolicy(int capacity) {
+        pages = new long[capacity];
+        referenced = new boolean[capacity];
+        evictable = new boolean[capacity];
+        slots = new HashMap<>();
+        freeSlots = new ArrayDeque<>();
+        for(int i = 0; i < capacity; i ++) {
+            pages[i] = -1;
+            freeSlots.add(i);
+        }
+        hand = 0;
+    }
+
+    @Override
+    public synchronized void access(long pgno) {
+        Integer slot = slots.get(pgno);
+        if(slot == null) {
+            slot = freeSlots.poll();
+            if(slot == null) {
+                return;
+            }
+            slots.put(pgno, slot);
+            pages[slot] = pgno;
+        }
+        referenced[slot] = true;
+    }
+
+    @Override
+    public synchronized void pin(long pgno) {
+        Integer slot = slots.get(pgno);
+        if(slot != null) {
+            evictable[slot] = false;
+        }
+    }
+
+    @Override
+    public synchronized void unpin(long pgno) {
+        Integer slot = slots.get(pgno);
+        if(slot != null) {
+            evictable[slot] = true;
+        }
+    }
+
+    @Override
+    public synchronized void remove(long pgno) {
+        Integer slot = slots.remove(pgno);
+        if(slot != null) {
+            clearSlot(slot);
+        }
+    }
+
+    @Override
+    public synchronized long victim() {
+        // 最多转两圈：第一圈清访问位，第二圈一定能找到可淘汰的页面
+        for(int i = 0; i < pages.length*2; i ++) {
+            int slot = hand;
+            hand = (hand + 1) % pages.length;
+            if(pages[slot] < 0 || !evictable[slot]) {
+                continue;
+            }
+            if(referenced[slot]) {
+                referenced[slot] = false;
+                continue;
+            }
+            long pgno = pages[slot];
+            slots.remove(pgno);
+            clearSlot(slot);
+            return pgno;
+        }
+        return -1;
+    }
+
+    private void clearSlot(int slot) {
+        pages[slot] = -1;
+        referenced[slot] = false;
+        evictable[slot] = false;
+        freeSlots.add(slot);
+    }
+}
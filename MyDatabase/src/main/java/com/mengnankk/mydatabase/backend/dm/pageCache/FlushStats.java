@@ -0,0 +1,13 @@
+package com.mengnankk.mydatabase.backend.dm.pageCache;
+
+/**
+ * 页面写回的统计信息
+ */
+public class FlushStats {
+    public int dirtyPages;          // 当前记录在案的脏页数
+    public long batches;            // 后台写回的批数，每批 fsync 一次
+    public long batchWrites;        // 成批写回的页数
+    public long skippedPages;       // 因正被引用而推迟写回的页数
+    public long evictionWrites;     // 驱逐时写回的页数
+    public long fsyncs;             // 数据文件 fsync 的次数
+}
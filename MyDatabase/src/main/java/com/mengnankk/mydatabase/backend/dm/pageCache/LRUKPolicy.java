@@ -0,0 +1,131 @@
+package com.mengnankk.mydatabase.backend.dm.pageCache;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * LRU-K：按倒数第K次访问的时间淘汰
+ * 访问不足K次的页面视为距离无穷大，优先淘汰，其中再按最近一次访问的先后淘汰
+ * 被驱逐页面的访问历史会保留一段时间，再次装入时可以直接沿用
+ */
+public class LRUKPolicy implements ReplacementPolicy {
+    private final int k;
+    private final int historyCapacity;
+    private long clock;
+
+    private final Map<Long, History> resident;
+    private final LinkedHashMap<Long, History> retained;
+    private final TreeSet<History> evictable;
+
+    public LRUKPolicy(int k, int capacity) {
+        this.k = k;
+        this.historyCapacity = capacity;
+        this.clock = 0;
+        this.resident = new HashMap<>();
+        this.retained = new LinkedHashMap<>(16, 0.75f, true);
+        this.evictable = new TreeSet<>((a, b) -> {
+            if(a.kth() != b.kth()) return Long.compare(a.kth(), b.kth());
+            if(a.last() != b.last()) return Long.compare(a.last(), b.last());
+            return Long.compare(a.pgno, b.pgno);
+        });
+    }
+
+    @Override
+    public synchronized void access(long pgno) {
+        History h = resident.get(pgno);
+        if(h == null) {
+            h = retained.remove(pgno);
+            if(h == null) {
+                h = new History(pgno, k);
+            }
+            resident.put(pgno, h);
+        }
+        if(h.evictable) {
+            evictable.remove(h);
+        }
+        h.record(++ clock);
+        if(h.evictable) {
+            evictable.add(h);
+        }
+    }
+
+    @Override
+    public synchronized void pin(long pgno) {
+        History h = resident.get(pgno);
+        if(h != null && h.evictable) {
+            evictable.remove(h);
+            h.evictable = false;
+        }
+    }
+
+    @Override
+    public synchronized void unpin(long pgno) {
+        History h = resident.get(pgno);
+        if(h != null && !h.evictable) {
+            h.evictable = true;
+            evictable.add(h);
+        }
+    }
+
+    @Override
+    public synchronized void remove(long pgno) {
+        History h = resident.remove(pgno);
+        if(h != null) {
+            retire(h);
+        }
+    }
+
+    @Override
+    public synchronized long victim() {
+        History h = evictable.pollFirst();
+        if(h == null) {
+            return -1;
+        }
+        resident.remove(h.pgno);
+        retire(h);
+        return h.pgno;
+    }
+
+    private void retire(History h) {
+        if(h.evictable) {
+            evictable.remove(h);
+            h.evictable = false;
+        }
+        retained.put(h.pgno, h);
+        if(retained.size() > historyCapacity) {
+            Long eldest = retained.keySet().iterator().next();
+            retained.remove(eldest);
+        }
+    }
+
+    private static class History {
+        final long pgno;
+        final long[] times;     // 最近K次访问的时间，环形存放
+        int count;
+        boolean evictable;
+
+        History(long pgno, int k) {
+            this.pgno = pgno;
+            this.times = new long[k];
+        }
+
+        void record(long time) {
+            times[count % times.length] = time;
+            count ++;
+        }
+
+        long last() {
+            return times[(count - 1) % times.length];
+        }
+
+        // 倒数第K次访问的时间，不足K次为0（距离无穷大）
+        long kth() {
+            if(count < times.length) {
+                return 0;
+            }
+            return times[count % times.length];
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.mengnankk.mydatabase.backend.dm.pageCache;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * LRU：淘汰最早被释放的页面
+ */
+public class LRUPolicy implements ReplacementPolicy {
+    private final LinkedHashSet<Long> unpinned = new LinkedHashSet<>();
+
+    @Override
+    public void access(long pgno) {
+    }
+
+    @Override
+    public synchronized void pin(long pgno) {
+        unpinned.remove(pgno);
+    }
+
+    @Override
+    public synchronized void unpin(long pgno) {
+        unpinned.add(pgno);
+    }
+
+    @Override
+    public synchronized void remove(long pgno) {
+        unpinned.remove(pgno);
+    }
+
+    @Override
+    public synchronized long victim() {
+        Iterator<Long> it = unpinned.iterator();
+        if(!it.hasNext()) {
+            return -1;
+        }
+        long pgno = it.next();
+        it.remove();
+        return pgno;
+    }
+}
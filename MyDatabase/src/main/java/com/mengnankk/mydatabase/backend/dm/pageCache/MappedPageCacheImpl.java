@@ -0,0 +1,104 @@
+package com.mengnankk.mydatabase.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.mengnankk.mydatabase.backend.utils.Panic;
+
+/**
+ * 以内存映射方式读写 .db 文件的页面缓存
+ *
+ * 文件按 SEGMENT_SIZE 分段映射，访问到尚未映射的段时再扩展文件并映射。
+ * 读写页面只是对映射区的位置访问，不经过系统调用也不需要加锁。
+ * 映射会把文件撑大到段的整数倍，且映射区在关闭前一直有效（Java 无法主动解除映射），
+ * 所以文件长度不代表页面数：页面数记在 PageOne 的检查点中，截断只改页面数，不缩短文件。
+ */
+public class MappedPageCacheImpl extends PageCacheImpl {
+
+    static final long SEGMENT_SIZE = 1L << 26;
+    private final int pagesPerSegment;
+
+    private volatile MappedByteBuffer[] segments;
+    private final Lock mapLock;
+
+    MappedPageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int pageSize, int pageNumber, int maxResource, ReplacementPolicy policy) {
+        super(file, fileChannel, pageSize, pageNumber, maxResource, policy);
+        this.pagesPerSegment = (int)(SEGMENT_SIZE / pageSize);
+        this.segments = new MappedByteBuffer[0];
+        this.mapLock = new ReentrantLock();
+    }
+
+    @Override
+    protected void readPage(int pgno, byte[] data) {
+        ByteBuffer buf = segmentOf(pgno).duplicate();
+        buf.position(offsetInSegment(pgno));
+        buf.get(data, 0, pageSize);
+    }
+
+    @Override
+    protected void writePage(int pgno, byte[] data) {
+        ByteBuffer buf = segmentOf(pgno).duplicate();
+        buf.position(offsetInSegment(pgno));
+        buf.put(data, 0, pageSize);
+    }
+
+    @Override
+    protected void syncFile() {
+        for(MappedByteBuffer seg : segments) {
+            seg.force();
+        }
+    }
+
+    @Override
+    protected void truncateFile(int maxPgno) {
+        // 映射区仍在使用，不能缩短文件，页面数由 truncateByBgno 截断
+    }
+
+    @Override
+    protected void closeFile(int pageNumber) {
+        // 映射区在被回收之前仍然有效，缩短文件会让仍映射着的部分失效，文件保持段的整数倍
+        segments = new MappedByteBuffer[0];
+        super.closeFile(pageNumber);
+    }
+
+    private int offsetInSegment(int pgno) {
+        return ((pgno-1) % pagesPerSegment) * pageSize;
+    }
+
+    private MappedByteBuffer segmentOf(int pgno) {
+        int idx = (pgno-1) / pagesPerSegment;
+        MappedByteBuffer[] segs = segments;
+        if(idx < segs.length) {
+            return segs[idx];
+        }
+        return grow(idx);
+    }
+
+    // 映射到第idx段为止的所有段
+    private MappedByteBuffer grow(int idx) {
+        mapLock.lock();
+        try {
+            MappedByteBuffer[] segs = segments;
+            if(idx < segs.length) {
+                return segs[idx];
+            }
+            MappedByteBuffer[] newSegs = new MappedByteBuffer[idx + 1];
+            System.arraycopy(segs, 0, newSegs, 0, segs.length);
+            for(int i = segs.length; i <= idx; i ++) {
+                newSegs[i] = fc.map(FileChannel.MapMode.READ_WRITE, i * SEGMENT_SIZE, SEGMENT_SIZE);
+            }
+            segments = newSegs;
+            return newSegs[idx];
+        } catch(IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+}
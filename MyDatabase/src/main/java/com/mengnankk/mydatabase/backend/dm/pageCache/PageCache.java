@@ -2,16 +2,19 @@ package com.mengnankk.mydatabase.backend.dm.pageCache;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
+import com.mengnankk.mydatabase.backend.dm.DMConfig;
+import com.mengnankk.mydatabase.backend.dm.logger.Logger;
 import com.mengnankk.mydatabase.backend.dm.page.Page;
+import com.mengnankk.mydatabase.backend.dm.page.PageOne;
 import com.mengnankk.mydatabase.backend.utils.Panic;
 import com.mengnankk.mydatabase.common.Error;
 
 public interface PageCache {
-    
-    public static final int PAGE_SIZE = 1 << 13;
 
     int newPage(byte[] initData);
     Page getPage(int pgno) throws Exception;
@@ -21,8 +24,22 @@ public interface PageCache {
     void truncateByBgno(int maxPgno);
     int getPageNumber();
     void flushPage(Page pg);
+    void flushAll();
+    long getMinRecLsn();
+    int getPageSize();
+
+    void setLogger(Logger logger);
+    int getDirtyPageCount();
+    FlushStats getFlushStats();
 
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, new DMConfig());
+    }
+
+    public static PageCacheImpl create(String path, long memory, DMConfig conf) {
+        if(!PageSize.isValid(conf.pageSize)) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -43,10 +60,14 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return newPageCache(raf, fc, memory, conf, conf.pageSize, 0);
     }
 
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, new DMConfig());
+    }
+
+    public static PageCacheImpl open(String path, long memory, DMConfig conf) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -63,6 +84,52 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        // 旧文件没有记录页面大小，为默认值
+        int pageSize = readPageOneInt(fc, PageOne.OF_PAGE_SIZE);
+        if(pageSize == 0) {
+            pageSize = PageSize.DEFAULT;
+        }
+        if(!PageSize.isValid(pageSize)) {
+            Panic.panic(Error.InvalidPageSizeException);
+        }
+        // 上次检查点（正常关闭时即关闭时）的页面数，崩溃后由恢复按日志补齐
+        return newPageCache(raf, fc, memory, conf, pageSize, readPageOneInt(fc, PageOne.OF_CKPT_PAGES));
+    }
+
+    // 从第一页读出一个4字节整数，文件不够长时返回 0
+    private static int readPageOneInt(FileChannel fc, int offset) {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return buf.hasRemaining() ? 0 : buf.getInt(0);
+    }
+
+    /**
+     * pageNumber 为数据库的页面数，为 0 时（新建或旧文件）由文件长度推出
+     */
+    static PageCacheImpl newPageCache(RandomAccessFile raf, FileChannel fc, long memory, DMConfig conf, int pageSize, int pageNumber) {
+        int maxResource = (int)(memory/pageSize);
+        ReplacementPolicy policy = ReplacementPolicy.newPolicy(conf.replacement, maxResource);
+        PageCacheImpl pc = null;
+        switch(conf.io) {
+            case DMConfig.IO_CHANNEL:
+                pc = new PageCacheImpl(raf, fc, pageSize, pageNumber, maxResource, policy);
+                break;
+            case DMConfig.IO_MMAP:
+                pc = new MappedPageCacheImpl(raf, fc, pageSize, pageNumber, maxResource, policy);
+                break;
+            default:
+                Panic.panic(Error.InvalidIOModeException);
+        }
+        int dirtyLimit = conf.dirtyLimit > 0 ? conf.dirtyLimit : maxResource / 4;
+        pc.startWriter(conf.flushInterval, dirtyLimit, conf.flushBatch);
+        return pc;
     }
 }
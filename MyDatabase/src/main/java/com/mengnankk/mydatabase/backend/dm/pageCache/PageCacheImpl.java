@@ -4,48 +4,89 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.mengnankk.mydatabase.backend.common.AbstractCache;
+import com.mengnankk.mydatabase.backend.dm.logger.Logger;
 import com.mengnankk.mydatabase.backend.dm.page.Page;
 import com.mengnankk.mydatabase.backend.dm.page.PageImpl;
 import com.mengnankk.mydatabase.backend.utils.Panic;
 import com.mengnankk.mydatabase.common.Error;
 
+/**
+ * 页面缓存
+ *
+ * 被修改过的页面在释放时记入脏页集合，由后台的 PageWriter 按页号顺序成批写回，每批 fsync 一次；
+ * 驱逐和新建页面只写入文件不 fsync，崩溃后由日志恢复。
+ * 任何页面写回之前都先把修改它的日志刷盘（WAL）。
+ */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     
     private static final int MEM_MIN_LIM = 10;
     public static final String DB_SUFFIX = ".db";
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock fileLock;
+    protected RandomAccessFile file;
+    protected FileChannel fc;
 
+    protected final int pageSize;
     private AtomicInteger pageNumbers;
+    private ReplacementPolicy policy;
 
-    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
+    private volatile Logger logger;
+    private PageWriter writer;
+    private ConcurrentSkipListSet<Integer> dirtyPages;     // 有序，写回时相邻页面顺序写
+    private AtomicInteger dirtyCount;
+
+    private AtomicLong batches, batchWrites, skippedPages, evictionWrites, fsyncs;
+
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int pageSize, int pageNumber, int maxResource, ReplacementPolicy policy) {
         super(maxResource);
         if(maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
-        long length = 0;
-        try {
-            length = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
+        if(pageNumber <= 0) {
+            long length = 0;
+            try {
+                length = file.length();
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            pageNumber = (int)(length / pageSize);
         }
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pageSize = pageSize;
+        this.pageNumbers = new AtomicInteger(pageNumber);
+        this.policy = policy;
+        this.dirtyPages = new ConcurrentSkipListSet<>();
+        this.dirtyCount = new AtomicInteger(0);
+        this.batches = new AtomicLong(0);
+        this.batchWrites = new AtomicLong(0);
+        this.skippedPages = new AtomicLong(0);
+        this.evictionWrites = new AtomicLong(0);
+        this.fsyncs = new AtomicLong(0);
+    }
+
+    // 启动后台写回线程，intervalMillis <= 0 时不启动
+    void startWriter(long intervalMillis, int dirtyLimit, int batchPages) {
+        if(intervalMillis <= 0) {
+            return;
+        }
+        writer = new PageWriter(this, intervalMillis, dirtyLimit, batchPages);
+        writer.start();
+    }
+
+    public void setLogger(Logger logger) {
+        this.logger = logger;
     }
 
     public int newPage(byte[] initData) {
         int pgno = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pgno, initData, null);
-        flush(pg);
+        writePage(pgno, initData);
         return pgno;
     }
 
@@ -59,66 +100,280 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int)key;
-        long offset = PageCacheImpl.pageOffset(pgno);
-
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
-        }
-        fileLock.unlock();
-        return new PageImpl(pgno, buf.array(), this);
+        byte[] data = new byte[pageSize];
+        readPage(pgno, data);
+        return new PageImpl(pgno, data, this);
     }
 
     @Override
     protected void releaseForCache(Page pg) {
-        if(pg.isDirty()) {
-            flush(pg);
-            pg.setDirty(false);
+        if(writeDirty(pg)) {
+            evictionWrites.incrementAndGet();
         }
+        clearDirty(pg.getPageNumber());
+    }
+
+    @Override
+    protected void recordAccess(long key) {
+        policy.access(key);
+    }
+
+    @Override
+    protected void recordPin(long key) {
+        policy.pin(key);
+    }
+
+    @Override
+    protected void recordUnpin(long key) {
+        policy.unpin(key);
+    }
+
+    @Override
+    protected void recordRemove(long key) {
+        policy.remove(key);
+    }
+
+    @Override
+    protected long selectVictim() {
+        return policy.victim();
     }
 
     public void release(Page page) {
+        // 页面只在被引用期间修改，释放时记下它是否变脏
+        if(page.isDirty()) {
+            markDirty(page.getPageNumber());
+        }
         release((long)page.getPageNumber());
     }
 
+    /**
+     * 立即写回pg并fsync
+     */
     public void flushPage(Page pg) {
-        flush(pg);
+        pg.lock();
+        try {
+            walFlush(pg);
+            writePage(pg.getPageNumber(), pg.getData());
+            pg.setDirty(false);
+            clearDirty(pg.getPageNumber());
+        } finally {
+            pg.unlock();
+        }
+        sync();
+    }
+
+    /**
+     * 写回缓存中所有的脏页并fsync
+     */
+    public void flushAll() {
+        writeBack(0);
+        // 一直被引用的页面不会被后台写回，这里在页面的排他锁下写回
+        List<Page> pinned = new ArrayList<>();
+        forEachResident(pg -> {
+            if(pg.isDirty()) {
+                pinned.add(pg);
+            }
+        });
+        pinned.sort((a, b) -> Integer.compare(a.getPageNumber(), b.getPageNumber()));
+        for(Page pg : pinned) {
+            writeDirty(pg);
+        }
+        // 驱逐时写回的页面也在这里落盘
+        sync();
+    }
+
+    /**
+     * 按页号顺序写回至多 limit 个脏页（limit <= 0 不限），写了页面则 fsync 一次，返回写回的页数
+     * 正被引用的页面可能正在修改，留到下一批
+     */
+    int writeBack(int limit) {
+        List<Integer> batch = new ArrayList<>();
+        for(int pgno : dirtyPages) {
+            batch.add(pgno);
+            if(limit > 0 && batch.size() >= limit) {
+                break;
+            }
+        }
+        if(batch.isEmpty()) {
+            return 0;
+        }
+
+        // 先把目前为止的日志一次刷盘，批内的页面就不必逐个等待日志
+        Logger lg = logger;
+        if(lg != null) {
+            lg.flush(Long.MAX_VALUE);
+        }
+        int written = 0;
+        for(int pgno : batch) {
+            boolean[] wrote = new boolean[1];
+            boolean unpinned = doIfUnpinned(pgno, pg -> {
+                wrote[0] = writeDirty(pg);
+                clearDirty(pgno);
+            });
+            if(wrote[0]) {
+                written ++;
+            } else if(!unpinned) {
+                skippedPages.incrementAndGet();
+            }
+        }
+        if(written > 0) {
+            sync();
+            batches.incrementAndGet();
+            batchWrites.addAndGet(written);
+        }
+        return written;
+    }
+
+    /**
+     * 缓存中所有修改过且未写回的页面里最小的 recLsn，没有则返回 Long.MAX_VALUE
+     * 被引用的页面可能还没有释放，不在脏页集合中，所以检查全部驻留页面
+     */
+    public long getMinRecLsn() {
+        long[] min = {Long.MAX_VALUE};
+        forEachResident(pg -> {
+            long recLsn = pg.getRecLsn();
+            if(recLsn > 0 && recLsn < min[0]) {
+                min[0] = recLsn;
+            }
+        });
+        return min[0];
+    }
+
+    public int getDirtyPageCount() {
+        return dirtyCount.get();
+    }
+
+    public FlushStats getFlushStats() {
+        FlushStats stats = new FlushStats();
+        stats.dirtyPages = dirtyCount.get();
+        stats.batches = batches.get();
+        stats.batchWrites = batchWrites.get();
+        stats.skippedPages = skippedPages.get();
+        stats.evictionWrites = evictionWrites.get();
+        stats.fsyncs = fsyncs.get();
+        return stats;
+    }
+
+    private void markDirty(int pgno) {
+        if(dirtyPages.add(pgno)) {
+            int n = dirtyCount.incrementAndGet();
+            if(writer != null) {
+                writer.dirtyPagesChanged(n);
+            }
+        }
+    }
+
+    private void clearDirty(int pgno) {
+        if(dirtyPages.remove(pgno)) {
+            dirtyCount.decrementAndGet();
+        }
+    }
+
+    // 在页面的排他锁下写回脏页，返回是否写了
+    private boolean writeDirty(Page pg) {
+        pg.lock();
+        try {
+            if(!pg.isDirty()) {
+                return false;
+            }
+            walFlush(pg);
+            writePage(pg.getPageNumber(), pg.getData());
+            pg.setDirty(false);
+            clearDirty(pg.getPageNumber());
+            return true;
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    // WAL：页面写回之前，修改它的日志必须已经落盘
+    private void walFlush(Page pg) {
+        Logger lg = logger;
+        if(lg != null) {
+            lg.flush(pg.getLsn());
+        }
+    }
+
+    private void sync() {
+        syncFile();
+        fsyncs.incrementAndGet();
+    }
+
+    /**
+     * 把页面数截到 maxPgno，之后的页面不再属于数据库，newPage 会整页覆盖它们
+     */
+    public void truncateByBgno(int maxPgno) {
+        truncateFile(maxPgno);
+        pageNumbers.set(maxPgno);
+    }
+
+    @Override
+    public void close() {
+        if(writer != null) {
+            writer.close();
+        }
+        super.close();
+        sync();
+        closeFile(pageNumbers.get());
+    }
+
+    public int getPageNumber() {
+        return pageNumbers.intValue();
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    protected long pageOffset(int pgno) {
+        return (long)(pgno-1) * pageSize;
     }
 
-    private void flush(Page pg) {
-        int pgno = pg.getPageNumber();
+    // 以下为页面文件的读写，子类可以替换为其他IO方式
+
+    protected void readPage(int pgno, byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
         long offset = pageOffset(pgno);
+        try {
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, offset + buf.position()) < 0) {
+                    break;
+                }
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
 
-        fileLock.lock();
+    protected void writePage(int pgno, byte[] data) {
+        ByteBuffer buf = ByteBuffer.wrap(data);
+        long offset = pageOffset(pgno);
+        try {
+            while(buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    protected void syncFile() {
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
             fc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
-        } finally {
-            fileLock.unlock();
         }
     }
 
-    public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
+    protected void truncateFile(int maxPgno) {
         try {
-            file.setLength(size);
+            file.setLength(pageOffset(maxPgno + 1));
         } catch (IOException e) {
             Panic.panic(e);
         }
-        pageNumbers.set(maxPgno);
     }
 
-    @Override
-    public void close() {
-        super.close();
+    protected void closeFile(int pageNumber) {
         try {
             fc.close();
             file.close();
@@ -126,13 +381,4 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
             Panic.panic(e);
         }
     }
-
-    public int getPageNumber() {
-        return pageNumbers.intValue();
-    }
-
-    private static long pageOffset(int pgno) {
-        return (pgno-1) * PAGE_SIZE;
-    }
-    
 }
@@ -0,0 +1,17 @@
+package com.mengnankk.mydatabase.backend.dm.pageCache;
+
+/**
+ * 数据库的页面大小
+ * 创建数据库时由 DMConfig.pageSize 指定并记入 PageOne，打开时从数据文件中读出；
+ * 每个数据库各自的页面大小由 PageCache.getPageSize 取得，PageX、PageIndex、B+树节点的扇出等都由它推出
+ */
+public class PageSize {
+    public static final int DEFAULT = 1 << 13;
+    public static final int MIN = 1 << 12;
+    // 页内偏移按无符号2字节存放，dataitem 的长度为有符号2字节
+    public static final int MAX = 1 << 15;
+
+    public static boolean isValid(int pageSize) {
+        return pageSize >= MIN && pageSize <= MAX && Integer.bitCount(pageSize) == 1;
+    }
+}
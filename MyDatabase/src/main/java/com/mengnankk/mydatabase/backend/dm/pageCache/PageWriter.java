@@ -0,0 +1,97 @@
+package com.mengnankk.mydatabase.backend.dm.pageCache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 后台写回线程
+ *
+ * 每隔 intervalMillis 醒来一次，或在脏页数超过 dirtyLimit 时被提前唤醒，
+ * 调用 PageCacheImpl.writeBack 把脏页按页号顺序成批写回，每批只 fsync 一次。
+ */
+class PageWriter implements Runnable {
+
+    private final PageCacheImpl pc;
+    private final long intervalMillis;
+    private final int dirtyLimit;
+    private final int batchPages;
+
+    private final Lock lock;
+    private final Condition wakeup;
+    private boolean requested;
+    private volatile boolean closed;
+    private Thread thread;
+
+    PageWriter(PageCacheImpl pc, long intervalMillis, int dirtyLimit, int batchPages) {
+        this.pc = pc;
+        this.intervalMillis = intervalMillis;
+        this.dirtyLimit = dirtyLimit;
+        this.batchPages = batchPages;
+        this.lock = new ReentrantLock();
+        this.wakeup = lock.newCondition();
+    }
+
+    void start() {
+        thread = new Thread(this, "page-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // 脏页数变化时调用，超过上限则唤醒写回线程
+    void dirtyPagesChanged(int dirtyPages) {
+        if(dirtyPages <= dirtyLimit) {
+            return;
+        }
+        lock.lock();
+        try {
+            if(!requested) {
+                requested = true;
+                wakeup.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void run() {
+        while(!closed) {
+            lock.lock();
+            try {
+                if(!requested) {
+                    wakeup.await(intervalMillis, TimeUnit.MILLISECONDS);
+                }
+                requested = false;
+            } catch(InterruptedException e) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+            if(closed) {
+                break;
+            }
+            // 一批写完后脏页仍超过上限，继续写下一批
+            int written;
+            do {
+                written = pc.writeBack(batchPages);
+            } while(written > 0 && pc.getDirtyPageCount() > dirtyLimit);
+        }
+    }
+
+    void close() {
+        closed = true;
+        lock.lock();
+        try {
+            wakeup.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.mengnankk.mydatabase.backend.dm.pageCache;
+
+import com.mengnankk.mydatabase.backend.utils.Panic;
+import com.mengnankk.mydatabase.common.Error;
+
+/**
+ * 页面置换策略
+ * 策略只看到页号。每次 access 都伴随一次引用，页面在 unpin 之后才可以被选为淘汰对象；
+ * victim 选出的页面如果在驱逐前又被引用，会经由 access 重新加入策略
+ */
+public interface ReplacementPolicy {
+    // 页面被访问（命中或从磁盘装入）
+    void access(long pgno);
+    // 页面重新被引用，不可淘汰
+    void pin(long pgno);
+    // 页面引用计数降为0，可以淘汰
+    void unpin(long pgno);
+    // 页面已被驱逐
+    void remove(long pgno);
+    // 选出一个可淘汰的页面并从策略中移除，没有则返回-1
+    long victim();
+
+    public static final String LRU = "lru";
+    public static final String CLOCK = "clock";
+    public static final String LRU_K = "lruk";
+    public static final String TWO_Q = "2q";
+
+    public static ReplacementPolicy newPolicy(String name, int capacity) {
+        if(name == null || "".equals(name)) {
+            name = LRU;
+        }
+        switch(name) {
+            case LRU:
+                return new LRUPolicy();
+            case CLOCK:
+                return new ClockPolicy(capacity);
+            case LRU_K:
+                return new LRUKPolicy(2, capacity);
+            case TWO_Q:
+                return new TwoQueuePolicy(capacity);
+            default:
+                Panic.panic(Error.InvalidCachePolicyException);
+        }
+        return null;
+    }
+}
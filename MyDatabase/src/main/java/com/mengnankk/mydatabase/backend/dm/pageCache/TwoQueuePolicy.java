@@ -0,0 +1,108 @@
+package com.mengnankk.mydatabase.backend.dm.pageCache;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * 2Q：首次访问的页面进入先进先出的 A1in，
+ * 从 A1in 淘汰的页号记入 A1out，在 A1out 中再次被访问的页面进入按 LRU 管理的 Am。
+ * 只被扫描一次的页面停留在 A1in 里很快被淘汰，不会把 Am 中的热点页挤出去
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+    private final int kin;
+    private final int kout;
+
+    private final LinkedHashSet<Long> a1in;
+    private final LinkedHashSet<Long> a1out;
+    private final LinkedHashSet<Long> am;
+    private final Set<Long> pinned;
+
+    public TwoQueuePolicy(int capacity) {
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+        this.a1in = new LinkedHashSet<>();
+        this.a1out = new LinkedHashSet<>();
+        this.am = new LinkedHashSet<>();
+        this.pinned = new HashSet<>();
+    }
+
+    @Override
+    public synchronized void access(long pgno) {
+        pinned.add(pgno);
+        if(am.contains(pgno)) {
+            am.remove(pgno);
+            am.add(pgno);
+            return;
+        }
+        if(a1in.contains(pgno)) {
+            return;
+        }
+        if(a1out.remove(pgno)) {
+            am.add(pgno);
+        } else {
+            a1in.add(pgno);
+        }
+    }
+
+    @Override
+    public synchronized void pin(long pgno) {
+        pinned.add(pgno);
+    }
+
+    @Override
+    public synchronized void unpin(long pgno) {
+        pinned.remove(pgno);
+    }
+
+    @Override
+    public synchronized void remove(long pgno) {
+        pinned.remove(pgno);
+        if(!am.remove(pgno)) {
+            a1in.remove(pgno);
+        }
+    }
+
+    @Override
+    public synchronized long victim() {
+        long pgno;
+        if(a1in.size() > kin) {
+            pgno = pollUnpinned(a1in);
+            if(pgno >= 0) {
+                remember(pgno);
+                return pgno;
+            }
+        }
+        pgno = pollUnpinned(am);
+        if(pgno >= 0) {
+            return pgno;
+        }
+        pgno = pollUnpinned(a1in);
+        if(pgno >= 0) {
+            remember(pgno);
+        }
+        return pgno;
+    }
+
+    private long pollUnpinned(LinkedHashSet<Long> queue) {
+        Iterator<Long> it = queue.iterator();
+        while(it.hasNext()) {
+            long pgno = it.next();
+            if(!pinned.contains(pgno)) {
+                it.remove();
+                return pgno;
+            }
+        }
+        return -1;
+    }
+
+    private void remember(long pgno) {
+        a1out.add(pgno);
+        if(a1out.size() > kout) {
+            Iterator<Long> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.mengnankk.mydatabase.backend.dm.pageIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import com.mengnankk.mydatabase.backend.utils.Panic;
+
+/**
+ * 空闲空间表，保存 PageIndex 的内容，打开数据库时不必逐页读取页面
+ * 文件结构：
+ * [Magic 4][PageSize 4][PageCount 4][Category 1]*PageCount
+ * Category 为第 pgno 页的空闲空间，按 页面大小/255 分档，还原时向下取整，只会低估
+ * 只在正常关闭时写入，先写临时文件再改名。上次没有正常关闭、文件缺失或与数据文件不符时，
+ * 由调用者逐页扫描重建
+ */
+public class FreeSpaceMap {
+    public static final String FSM_SUFFIX = ".fsm";
+    public static final String FSM_TMP_SUFFIX = ".fsm.tmp";
+
+    private static final int MAGIC = 0xDBF5A0E1;
+    private static final int HEADER_SIZE = 12;
+    private static final int CATEGORIES = 255;
+
+    /**
+     * 从 path 对应的空闲空间表加载 pIndex，文件与 pageNumber 个页面的数据文件不符时返回 false
+     */
+    public static boolean load(String path, PageIndex pIndex, int pageNumber) {
+        new File(path+FSM_TMP_SUFFIX).delete();
+        File f = new File(path+FSM_SUFFIX);
+        if(!f.exists()) {
+            return false;
+        }
+        ByteBuffer buf;
+        try {
+            buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+        } catch (IOException e) {
+            Panic.panic(e);
+            return false;
+        }
+        if(buf.remaining() < HEADER_SIZE || buf.getInt() != MAGIC
+            || buf.getInt() != pIndex.pageSize() || buf.getInt() != pageNumber
+            || buf.remaining() != pageNumber) {
+            return false;
+        }
+        // 第1页为 PageOne
+        for(int pgno = 2; pgno <= pageNumber; pgno ++) {
+            int category = buf.get(HEADER_SIZE + pgno-1) & 0xFF;
+            pIndex.add(pgno, category * pIndex.pageSize() / CATEGORIES);
+        }
+        return true;
+    }
+
+    /**
+     * 把 pIndex 写入空闲空间表，调用时不能有正在进行的插入
+     */
+    public static void save(String path, PageIndex pIndex, int pageNumber) {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + pageNumber);
+        buf.putInt(MAGIC).putInt(pIndex.pageSize()).putInt(pageNumber);
+        for(PageInfo pi : pIndex.pages()) {
+            if(pi.pgno <= pageNumber) {
+                int category = (int)((long)Math.min(pi.freeSpace, pIndex.pageSize()) * CATEGORIES / pIndex.pageSize());
+                buf.put(HEADER_SIZE + pi.pgno-1, (byte)category);
+            }
+        }
+        buf.rewind();
+
+        File tmp = new File(path+FSM_TMP_SUFFIX);
+        try(FileChannel fc = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while(buf.hasRemaining()) {
+                fc.write(buf);
+            }
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        try {
+            Files.move(tmp.toPath(), new File(path+FSM_SUFFIX).toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+}
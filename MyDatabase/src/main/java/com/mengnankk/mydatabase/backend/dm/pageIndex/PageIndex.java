@@ -2,54 +2,133 @@ package com.mengnankk.mydatabase.backend.dm.pageIndex;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
-
-import com.mengnankk.mydatabase.backend.dm.pageCache.PageCache;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * 按空闲空间分档的页面索引，无全局锁
+ *
+ * 每档一个无锁队列，pages 记录当前在索引中的页面及其 PageInfo。
+ * 页面被 select 取走时从 pages 中移除（pages.remove(pgno, pi) 成功者独占该页）；
+ * PageInfo 不可变，空闲空间变化时换一个新的 PageInfo 放入对应的档，队列中留下的旧 PageInfo 与 pages 中的不一致，
+ * 被 select 取出时直接丢弃；这样的 PageInfo 多于索引中的页面数时整体清理一次
+ */
 public class PageIndex {
     // 将一页划成40个区间
     private static final int INTERVALS_NO = 40;
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
+    private static final int STALE_SLACK = 1024;
 
-    private Lock lock;
-    private List<PageInfo>[] lists;
+    private final int pageSize;
+    private int threshold;
+    private List<ConcurrentLinkedDeque<PageInfo>> lists;
+    private ConcurrentHashMap<Integer, PageInfo> pages;     // 当前在索引中的页面，被 select 取走的页面不在其中
+    private AtomicInteger stale;                            // 队列中已失效的 PageInfo 数
+    private AtomicBoolean purging;
 
-    @SuppressWarnings("unchecked")
-    public PageIndex() {
-        lock = new ReentrantLock();
-        lists = new List[INTERVALS_NO+1];
+    public PageIndex(int pageSize) {
+        this.pageSize = pageSize;
+        threshold = pageSize / INTERVALS_NO;
+        lists = new ArrayList<>(INTERVALS_NO+1);
         for (int i = 0; i < INTERVALS_NO+1; i ++) {
-            lists[i] = new ArrayList<>();
+            lists.add(new ConcurrentLinkedDeque<>());
         }
+        pages = new ConcurrentHashMap<>();
+        stale = new AtomicInteger(0);
+        purging = new AtomicBoolean(false);
     }
 
     public void add(int pgno, int freeSpace) {
-        lock.lock();
-        try {
-            int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
-        } finally {
-            lock.unlock();
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        PageInfo old = pages.put(pgno, pi);
+        // 放在队头，刚用过的页面先被选中，多半还在缓存里
+        lists.get(bucket(freeSpace)).offerFirst(pi);
+        if(old != null) {
+            // 被替换的 PageInfo 仍留在队列中
+            staleAdded();
         }
     }
 
     public PageInfo select(int spaceSize) {
-        lock.lock();
+        return select(spaceSize, 0);
+    }
+
+    /**
+     * 取走一个至少有 spaceSize 字节空闲空间的页面，没有则返回 null
+     * preferred 不为 0 时优先取该页（同一线程连续插入同一页，页面填得更满）
+     */
+    public PageInfo select(int spaceSize, int preferred) {
+        if(preferred > 0) {
+            PageInfo pi = pages.get(preferred);
+            if(pi != null && pi.freeSpace >= spaceSize && pages.remove(preferred, pi)) {
+                // pi 仍留在队列中
+                staleAdded();
+                return pi;
+            }
+        }
+        int number = spaceSize / threshold;
+        if(number < INTERVALS_NO) number ++;
+        while(number <= INTERVALS_NO) {
+            PageInfo pi = lists.get(number).pollFirst();
+            if(pi == null) {
+                number ++;
+                continue;
+            }
+            if(pages.remove(pi.pgno, pi)) {
+                return pi;
+            }
+            // 已被取走或已被替换，丢弃
+            stale.decrementAndGet();
+        }
+        return null;
+    }
+
+    /**
+     * 页面中有 size 字节的数据失效，整理后可以再用
+     * 页面正被插入者取走时不必记录，插入者放回时会重新计算
+     */
+    public void addFreeSpace(int pgno, int size) {
+        PageInfo[] replaced = new PageInfo[1];
+        pages.computeIfPresent(pgno, (k, pi) -> {
+            replaced[0] = new PageInfo(pgno, Math.min(pi.freeSpace + size, pageSize));
+            return replaced[0];
+        });
+        if(replaced[0] != null) {
+            lists.get(bucket(replaced[0].freeSpace)).offerFirst(replaced[0]);
+            staleAdded();
+        }
+    }
+
+    public int pageSize() {
+        return pageSize;
+    }
+
+    // 当前在索引中的所有页面
+    public List<PageInfo> pages() {
+        return new ArrayList<>(pages.values());
+    }
+
+    private void staleAdded() {
+        if(stale.incrementAndGet() <= pages.size() + STALE_SLACK) {
+            return;
+        }
+        if(!purging.compareAndSet(false, true)) {
+            return;
+        }
         try {
-            int number = spaceSize / THRESHOLD;
-            if(number < INTERVALS_NO) number ++;
-            while(number <= INTERVALS_NO) {
-                if(lists[number].size() == 0) {
-                    number ++;
-                    continue;
-                }
-                return lists[number].remove(0);
+            // 失效的 PageInfo 不会再回到 pages 中，可以安全移除
+            for(ConcurrentLinkedDeque<PageInfo> list : lists) {
+                list.removeIf(pi -> pages.get(pi.pgno) != pi);
             }
-            return null;
+            stale.set(0);
         } finally {
-            lock.unlock();
+            purging.set(false);
         }
     }
 
+    private int bucket(int freeSpace) {
+        return Math.min(freeSpace / threshold, INTERVALS_NO);
+    }
+
 }
@@ -1,8 +1,9 @@
 package com.mengnankk.mydatabase.backend.dm.pageIndex;
 
+// 不可变，PageIndex 中页面的空闲空间变化时整体替换
 public class PageInfo {
-    public int pgno;
-    public int freeSpace;
+    public final int pgno;
+    public final int freeSpace;
 
     public PageInfo(int pgno, int freeSpace) {
         this.pgno = pgno;
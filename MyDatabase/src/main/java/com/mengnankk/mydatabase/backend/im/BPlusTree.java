@@ -3,6 +3,7 @@ package com.mengnankk.mydatabase.backend.im;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -10,99 +11,181 @@ import com.mengnankk.mydatabase.backend.common.SubArray;
 import com.mengnankk.mydatabase.backend.dm.DataManager;
 import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
 import com.mengnankk.mydatabase.backend.im.Node.InsertAndSplitRes;
+import com.mengnankk.mydatabase.backend.im.Node.LeafRemoveRes;
 import com.mengnankk.mydatabase.backend.im.Node.LeafSearchRangeRes;
+import com.mengnankk.mydatabase.backend.im.Node.RemoveSonRes;
 import com.mengnankk.mydatabase.backend.im.Node.SearchNextRes;
 import com.mengnankk.mydatabase.backend.tm.TransactionManagerImpl;
 import com.mengnankk.mydatabase.backend.utils.Parser;
+import com.mengnankk.mydatabase.common.Error;
 
+/**
+ * B-link 树
+ * 每层的节点由兄弟指针从左到右串起来，节点分裂时右半部分移到新的兄弟节点，原节点保留左半部分。
+ * 查找不加锁，读取节点的只读副本（NodeCache），副本是旧的也没关系：
+ * key 大于节点中所有的键时沿兄弟指针右移，节点的最后一个键起到 high key 的作用。
+ * 插入只锁住正在修改的那一个节点，分裂后锁已释放，再到父节点中插入新的兄弟；
+ * 不同叶子上的插入互不阻塞
+ */
 public class BPlusTree {
     DataManager dm;
     long bootUid;
     DataItem bootDataItem;
-    Lock bootLock;
-    private final NodeCache nodeCache;
+    Lock bootLock;                  // 只在更换根节点时持有
+    private volatile long root;     // bootDataItem 中根节点 uid 的副本
+    private static final int NODE_CACHE_SIZE = 1000;
 
-    public BPlusTree() {
-        nodeCache = new NodeCache(1000);
-    }
+    final NodeCache nodeCache;
 
+    // 摘除的节点可能仍被摘除前开始的操作访问，等这些操作都结束后再回收
+    private volatile long epoch;
+    private final AtomicLong[] active = { new AtomicLong(), new AtomicLong() };     // 两个相邻 epoch 中进行的操作数
+    private final Lock unlinkLock = new ReentrantLock();    // 摘除空叶子时持有
+    private final List<long[]> waiting = new ArrayList<>();    // 没能摘除的空叶子及其中删去的键，持 unlinkLock 访问
+    private final Lock retireLock = new ReentrantLock();
+    private List<Long> retired = new ArrayList<>();     // 本 epoch 摘除的节点
+    private List<Long> retiring = new ArrayList<>();    // 上个 epoch 摘除的节点
 
+    public BPlusTree() {
+        nodeCache = new NodeCache(NODE_CACHE_SIZE);
+    }
 
     public static long create(DataManager dm) throws Exception {
-        byte[] rawRoot = Node.newNilRootRaw();
+        byte[] rawRoot = Node.newNilRootRaw(dm.pageSize());
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
         return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(rootUid));
     }
 
     public static BPlusTree load(long bootUid, DataManager dm) throws Exception {
         DataItem bootDataItem = dm.read(bootUid);
-        assert bootDataItem != null;
+        if(bootDataItem == null) {
+            throw Error.NullEntryException;
+        }
         BPlusTree t = new BPlusTree();
         t.bootUid = bootUid;
         t.dm = dm;
         t.bootDataItem = bootDataItem;
         t.bootLock = new ReentrantLock();
+        SubArray sa = bootDataItem.data();
+        t.root = Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
         return t;
     }
 
     /**
-     * 从缓存加载，缓存没有则再从磁盘读
-     * @param nodeUid
-     * @return
-     * @throws Exception
+     * 取得节点的只读副本用于查找，先查缓存，没有再从 DM 读
+     * 修改节点时用 Node.loadNode 读出 dataitem，Node 在修改完成、释放写锁之前调用 nodeCache.invalidate
      */
-    public Node loadNode(long nodeUid) throws Exception{
+    public Node loadNode(long nodeUid) throws Exception {
         Node cacheNode = nodeCache.get(nodeUid);
-        if (cacheNode!=null){
+        if(cacheNode != null) {
             return cacheNode;
         }
-        Node node = Node.loadNode(this,nodeUid);
-        nodeCache.put(nodeUid,node);
-        return node;
-
-    }
-
-    private long rootUid() {
-        bootLock.lock();
+        long stamp = nodeCache.stamp(nodeUid);
+        Node node = Node.loadNode(this, nodeUid);
+        Node copy;
         try {
-            SubArray sa = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start+8));
+            copy = node.snapshot();
         } finally {
-            bootLock.unlock();
+            node.release();
         }
+        nodeCache.put(nodeUid, copy, stamp);
+        return copy;
     }
 
+    long rootUid() {
+        return root;
+    }
+
+    /**
+     * 节点 left 分裂出了 right，且 left 在插入开始时位于根节点所在的一层
+     * left 仍是根时换上以 left、right 为子节点的新根，新根在持锁之前写好，锁内只改 boot 中的 uid。
+     * 根已被换掉时 right 插到 left 上一层的节点中，那个节点再分裂就继续向上。
+     * 根所在的层中还有别的节点说明根刚分裂、新根还没装上，等装根的线程完成
+     */
     private void updateRootUid(long left, long right, long rightKey) throws Exception {
-        bootLock.lock();
-        try {
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
-            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
-            bootDataItem.before();
-            SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
-            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
-        } finally {
-            bootLock.unlock();
+        while(true) {
+            if(root == left) {
+                long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, Node.newRootRaw(dm.pageSize(), left, right, rightKey));
+                bootLock.lock();
+                try {
+                    if(root == left) {
+                        bootDataItem.before();
+                        SubArray diRaw = bootDataItem.data();
+                        System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+                        bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+                        root = newRootUid;
+                        return;
+                    }
+                } finally {
+                    bootLock.unlock();
+                }
+                dm.free(newRootUid);
+            }
+
+            long parent = searchParent(left, rightKey);
+            if(parent == 0) {
+                Thread.yield();
+                continue;
+            }
+            InsertRes res = insertAndSplit(parent, right, rightKey, left);
+            if(res.newNode == 0) {
+                return;
+            }
+            left = res.splitNode;
+            right = res.newNode;
+            rightKey = res.newKey;
+        }
+    }
+
+    /**
+     * 从根向下找到 key 在 nodeUid 上一层所在的节点，nodeUid 已在根所在的层时返回 0
+     */
+    private long searchParent(long nodeUid, long key) throws Exception {
+        long rootUid = rootUid();
+        int depth = height(rootUid) - height(nodeUid);
+        if(depth <= 0) {
+            return 0;
+        }
+        long parent = rootUid;
+        for(int i = 1; i < depth; i ++) {
+            parent = searchNext(parent, key, false);
+        }
+        return parent;
+    }
+
+    // 节点到叶子的层数，各叶子深度相同，沿最左边的子节点向下数
+    private int height(long nodeUid) throws Exception {
+        int h = 0;
+        while(true) {
+            Node node = loadNode(nodeUid);
+            boolean isLeaf = node.isLeaf();
+            long son = isLeaf ? 0 : node.firstSon();
+            node.release();
+            if(isLeaf) {
+                return h;
+            }
+            nodeUid = son;
+            h ++;
         }
     }
 
     private long searchLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
+        Node node = loadNode(nodeUid);
         boolean isLeaf = node.isLeaf();
         node.release();
 
         if(isLeaf) {
             return nodeUid;
         } else {
-            long next = searchNext(nodeUid, key);
+            long next = searchNext(nodeUid, key, true);
             return searchLeaf(next, key);
         }
     }
 
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private long searchNext(long nodeUid, long key, boolean leftmost) throws Exception {
         while(true) {
-            Node node = Node.loadNode(this, nodeUid);
-            SearchNextRes res = node.searchNext(key);
+            Node node = loadNode(nodeUid);
+            SearchNextRes res = node.searchNext(key, leftmost);
             node.release();
             if(res.uid != 0) return res.uid;
             nodeUid = res.siblingUid;
@@ -114,11 +197,20 @@ public class BPlusTree {
     }
 
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
+        long e = enter();
+        try {
+            return doSearchRange(leftKey, rightKey);
+        } finally {
+            exit(e);
+        }
+    }
+
+    private List<Long> doSearchRange(long leftKey, long rightKey) throws Exception {
         long rootUid = rootUid();
         long leafUid = searchLeaf(rootUid, leftKey);
         List<Long> uids = new ArrayList<>();
         while(true) {
-            Node leaf = Node.loadNode(this, leafUid);
+            Node leaf = loadNode(leafUid);
             LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
             leaf.release();
             uids.addAll(res.uids);
@@ -132,31 +224,37 @@ public class BPlusTree {
     }
 
     public void insert(long key, long uid) throws Exception {
-        long rootUid = rootUid();
-        InsertRes res = insert(rootUid, uid, key);
-        assert res != null;
-        if(res.newNode != 0) {
-            updateRootUid(rootUid, res.newNode, res.newKey);
+        long e = enter();
+        try {
+            long rootUid = rootUid();
+            InsertRes res = insert(rootUid, uid, key);
+            assert res != null;
+            if(res.newNode != 0) {
+                updateRootUid(res.splitNode, res.newNode, res.newKey);
+            }
+        } finally {
+            exit(e);
         }
     }
 
     class InsertRes {
         long newNode, newKey;
+        long splitNode;     // 分裂的节点，沿兄弟指针右移后不一定是传入的节点
     }
 
     private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
+        Node node = loadNode(nodeUid);
         boolean isLeaf = node.isLeaf();
         node.release();
 
         InsertRes res = null;
         if(isLeaf) {
-            res = insertAndSplit(nodeUid, uid, key);
+            res = insertAndSplit(nodeUid, uid, key, 0);
         } else {
-            long next = searchNext(nodeUid, key);
+            long next = searchNext(nodeUid, key, false);
             InsertRes ir = insert(next, uid, key);
             if(ir.newNode != 0) {
-                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
+                res = insertAndSplit(nodeUid, ir.newNode, ir.newKey, ir.splitNode);
             } else {
                 res = new InsertRes();
             }
@@ -164,22 +262,320 @@ public class BPlusTree {
         return res;
     }
 
-    private InsertRes insertAndSplit(long nodeUid, long uid, long key) throws Exception {
+    private InsertRes insertAndSplit(long nodeUid, long uid, long key, long splitSon) throws Exception {
         while(true) {
             Node node = Node.loadNode(this, nodeUid);
-            InsertAndSplitRes iasr = node.insertAndSplit(uid, key);
-            node.release();
+            InsertAndSplitRes iasr;
+            try {
+                iasr = node.insertAndSplit(uid, key, splitSon);
+            } finally {
+                node.release();
+            }
             if(iasr.siblingUid != 0) {
                 nodeUid = iasr.siblingUid;
             } else {
                 InsertRes res = new InsertRes();
                 res.newNode = iasr.newSon;
                 res.newKey = iasr.newKey;
+                res.splitNode = nodeUid;
                 return res;
             }
         }
     }
 
+    /**
+     * 删去 (key, uid)，返回是否删除
+     * 键不在节点间移动，查找不受影响；叶子删空后从父节点和左边的叶子中摘除，
+     * 之后的查找和插入不再经过它，仍持有其 uid 的读取者沿兄弟指针右移即可。
+     * 摘除的节点等仍可能访问它的操作都结束后回收。内部节点不合并，只剩一个空叶子时连同它一起摘除。
+     * 暂时不能摘除的空叶子（比如父节点的最后一个子节点，要等它左边的子节点都摘除）之后再重试，
+     * 各层最右边的节点一直保留
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        boolean deleted;
+        long e = enter();
+        try {
+            deleted = doDelete(key, uid);
+        } finally {
+            exit(e);
+        }
+        reclaim();
+        return deleted;
+    }
+
+    private boolean doDelete(long key, long uid) throws Exception {
+        long leafUid = searchLeaf(rootUid(), key);
+        while(true) {
+            Node leaf = Node.loadNode(this, leafUid);
+            LeafRemoveRes res;
+            try {
+                res = leaf.leafRemove(key, uid);
+            } finally {
+                leaf.release();
+            }
+            if(res.removed) {
+                if(res.empty) {
+                    unlinkLeaf(leafUid, key);
+                }
+                return true;
+            }
+            if(res.siblingUid == 0) {
+                return false;
+            }
+            leafUid = res.siblingUid;
+        }
+    }
+
+    /**
+     * 摘除空叶子 leafUid，再重试之前没能摘除的空叶子，直到没有可以摘除的
+     * 摘除依次进行，等待中的空叶子只记在内存中，重新打开后不再摘除
+     */
+    private void unlinkLeaf(long leafUid, long key) throws Exception {
+        unlinkLock.lock();
+        try {
+            waiting.add(new long[]{leafUid, key});
+            boolean progress = true;
+            while(progress) {
+                progress = false;
+                for(int i = 0; i < waiting.size(); i ++) {
+                    long[] w = waiting.get(i);
+                    if(unlink(w[0], w[1])) {
+                        waiting.remove(i);
+                        progress = true;
+                        break;
+                    }
+                }
+            }
+        } finally {
+            unlinkLock.unlock();
+        }
+    }
+
+    /**
+     * 从树中摘除空叶子 leafUid，返回 false 时树没有变化，稍后重试；叶子又有了插入时不再摘除，返回 true。
+     * 父节点只有它一个子节点时连同父节点一起摘除，再往上同理。这一串节点先锁住并标记为已摘除，
+     * 从最上面一个的父节点中删去它之后才放开，此后经过它们的查找和插入都转到兄弟节点；
+     * 再自上而下逐层让左边节点的兄弟指针越过它们。
+     * 每一步单独落日志，中途崩溃时这些节点仍在各层的链上，只是多转发一次
+     */
+    private boolean unlink(long leafUid, long key) throws Exception {
+        Node leaf = Node.loadNode(this, leafUid);
+        try {
+            if(!leaf.lockRemoved(0)) {
+                // 叶子又有了插入，不再摘除
+                return true;
+            }
+            boolean removed = false;
+            try {
+                removed = unlink(leafUid, leaf.siblingUid(), key);
+            } finally {
+                leaf.unlockRemoved(removed);
+            }
+            return removed;
+        } finally {
+            leaf.release();
+        }
+    }
+
+    // 持有空叶子的写锁时调用，叶子已标记为摘除
+    private boolean unlink(long leafUid, long siblingUid, long key) throws Exception {
+        // 从根向下找到叶子的父节点，记下各层经过的节点、选中的子节点，以及到这一层为止左边最近的一个子树
+        List<Long> path = new ArrayList<>(), sons = new ArrayList<>(), lefts = new ArrayList<>();
+        long parent = rootUid();
+        long leftTree = 0;
+        Node node = loadNode(parent);
+        boolean isLeaf = node.isLeaf();
+        node.release();
+        if(isLeaf) {
+            return false;
+        }
+        while(true) {
+            node = loadNode(parent);
+            SearchNextRes r = node.searchNext(key, true);
+            node.release();
+            if(r.uid == 0) {
+                parent = r.siblingUid;
+                continue;
+            }
+            if(r.leftUid != 0) {
+                leftTree = r.leftUid;
+            }
+            path.add(parent);
+            sons.add(r.uid);
+            lefts.add(leftTree);
+            node = loadNode(r.uid);
+            isLeaf = node.isLeaf();
+            node.release();
+            if(isLeaf) {
+                break;
+            }
+            parent = r.uid;
+        }
+
+        // 沿路径向上找出只有一个子节点的一串节点并锁住，chain[j] 在叶子之上第 j 层，siblings[j] 为其兄弟节点
+        List<Long> chain = new ArrayList<>(), siblings = new ArrayList<>();
+        List<Node> locked = new ArrayList<>();
+        chain.add(leafUid);
+        siblings.add(siblingUid);
+        int top = path.size()-1;
+        long son = leafUid;
+        RemoveSonRes res = null;
+        try {
+            while(top > 0 && sons.get(top) == son && sons.get(top-1).longValue() == path.get(top)) {
+                Node p = Node.loadNode(this, path.get(top));
+                if(!p.lockRemoved(son)) {
+                    p.release();
+                    break;
+                }
+                locked.add(p);
+                son = path.get(top);
+                chain.add(son);
+                siblings.add(p.siblingUid());
+                top --;
+            }
+
+            // 右边的节点都已插入父节点：各层的兄弟节点正是最上面一个的兄弟节点沿第一个子节点向下到达的节点
+            int t = chain.size()-1;
+            long next = siblings.get(t);
+            for(int j = t-1; j >= 0; j --) {
+                next = descend(next, false, 1);
+                if(next != siblings.get(j)) {
+                    return false;
+                }
+            }
+
+            parent = path.get(top);
+            while(true) {
+                Node p = Node.loadNode(this, parent);
+                try {
+                    res = p.removeSon(chain.get(t), siblings.get(t), key);
+                } finally {
+                    p.release();
+                }
+                if(res.removed || res.siblingUid == 0) {
+                    break;
+                }
+                parent = res.siblingUid;
+            }
+        } finally {
+            boolean removed = res != null && res.removed;
+            for(Node p : locked) {
+                p.unlockRemoved(removed);
+                p.release();
+            }
+        }
+        if(!res.removed) {
+            return false;
+        }
+
+        // 某一层没能越过时，这一层及以下的节点仍可能被访问，不回收
+        long left = res.leftSon != 0 ? res.leftSon : lefts.get(top);
+        for(int j = chain.size()-1; j >= 0; j --) {
+            if(!relink(chain.get(j), siblings.get(j), left, j)) {
+                return true;
+            }
+            retire(chain.get(j));
+        }
+        return true;
+    }
+
+    /**
+     * 让指向 nodeUid 的兄弟指针改为指向 siblingUid，nodeUid 在叶子之上第 height 层，返回是否已没有指向它的兄弟指针
+     * 从左边的子树 leftTree 在这一层最右边的节点开始找，leftTree 为 0 时从这一层最左边的节点开始
+     */
+    private boolean relink(long nodeUid, long siblingUid, long leftTree, int height) throws Exception {
+        long left;
+        if(leftTree != 0) {
+            left = descend(leftTree, true, height(leftTree) - height);
+        } else {
+            long rootUid = rootUid();
+            left = descend(rootUid, false, height(rootUid) - height);
+            if(left == siblingUid) {
+                // 原本是这一层最左边的节点
+                return true;
+            }
+        }
+        // 左边的节点分裂出的节点可能还没插入父节点，沿兄弟指针右移直到指向 nodeUid 的一个
+        while(left != 0 && left != siblingUid) {
+            Node n = Node.loadNode(this, left);
+            long sibling;
+            try {
+                sibling = n.relinkSibling(nodeUid, siblingUid);
+            } finally {
+                n.release();
+            }
+            if(sibling == nodeUid) {
+                return true;
+            }
+            left = sibling;
+        }
+        return false;
+    }
+
+    // 从 nodeUid 沿最后一个（last 为 false 时沿第一个）子节点向下 levels 层
+    private long descend(long nodeUid, boolean last, int levels) throws Exception {
+        for(int i = 0; i < levels; i ++) {
+            Node node = loadNode(nodeUid);
+            long son = last ? node.lastSon() : node.firstSon();
+            node.release();
+            nodeUid = son;
+        }
+        return nodeUid;
+    }
+
+    private long enter() {
+        while(true) {
+            long e = epoch;
+            active[(int)(e & 1)].incrementAndGet();
+            if(epoch == e) {
+                return e;
+            }
+            active[(int)(e & 1)].decrementAndGet();
+        }
+    }
+
+    private void exit(long e) {
+        active[(int)(e & 1)].decrementAndGet();
+    }
+
+    private void retire(long nodeUid) {
+        retireLock.lock();
+        try {
+            retired.add(nodeUid);
+        } finally {
+            retireLock.unlock();
+        }
+    }
+
+    /**
+     * 上个 epoch 开始的操作都已结束时进入下一个 epoch：
+     * 上个 epoch 摘除的节点不会再被访问，回收；本 epoch 摘除的等下一次
+     */
+    private void reclaim() throws Exception {
+        List<Long> reclaimable;
+        retireLock.lock();
+        try {
+            if(retired.isEmpty() && retiring.isEmpty()) {
+                return;
+            }
+            long e = epoch;
+            if(active[(int)((e-1) & 1)].get() != 0) {
+                return;
+            }
+            reclaimable = retiring;
+            retiring = retired;
+            retired = new ArrayList<>();
+            epoch = e + 1;
+        } finally {
+            retireLock.unlock();
+        }
+        for(long nodeUid : reclaimable) {
+            // 先清掉缓存，uid 被新节点重用时不会读到旧内容
+            nodeCache.invalidate(nodeUid);
+            dm.free(nodeUid);
+        }
+    }
+
     public void close() {
         bootDataItem.release();
         nodeCache.clear();
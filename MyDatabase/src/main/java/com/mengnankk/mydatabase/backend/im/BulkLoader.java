@@ -0,0 +1,386 @@
+package com.mengnankk.mydatabase.backend.im;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.mengnankk.mydatabase.backend.common.SubArray;
+import com.mengnankk.mydatabase.backend.dm.DataManager;
+import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
+import com.mengnankk.mydatabase.backend.tm.TransactionManagerImpl;
+import com.mengnankk.mydatabase.backend.utils.Parser;
+
+/**
+ * 批量建立 B+ 树：收集 (key, uid) 排序后自底向上逐层写出节点
+ *
+ * 收集到的数据按段排序，各段交给线程池并行排序；已排序的段超过 MEM_RUNS 个后，之后的段写入临时文件。
+ * 最后不满一段的数据再切成几块分别排序，数据量小时也能用上所有线程。
+ * 最后多路归并所有段，按顺序填满叶子，叶子写出后把它的第一个键和 uid 交给上一层，上一层同样填满节点，直到只剩一个节点作为根。
+ * 节点按 FILL_PERCENT 填充，给之后的插入留出余地。
+ * 节点写出时还不知道右边兄弟的 uid，右边的节点写出后再补上兄弟指针。
+ * 树只在 build 返回后才被引用，中途失败或崩溃时已写出的节点成为无人引用的数据，不影响已有的树。
+ * 用完后无论成功与否都要调用 close，关闭线程池并删除临时文件
+ */
+public class BulkLoader {
+    private static final int CHUNK = 1 << 18;       // 每段 256K 对，约 4MB
+    private static final int MEM_RUNS = 16;
+    private static final int FILL_PERCENT = 90;
+    private static final int MIN_PIECE = 1 << 12;   // 最后一段切块时每块的最少对数
+
+    private final DataManager dm;
+    private final int threads;
+    private ExecutorService sorter;                 // 第一次排序时才创建
+    private final List<Future<Run>> runs = new ArrayList<>();
+
+    private long[] keys = new long[CHUNK];
+    private long[] uids = new long[CHUNK];
+    private int size;
+
+    public BulkLoader(DataManager dm) {
+        this.dm = dm;
+        this.threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    public void add(long key, long uid) throws Exception {
+        keys[size] = key;
+        uids[size] = uid;
+        size ++;
+        if(size == CHUNK) {
+            submit(keys, uids);
+            keys = new long[CHUNK];
+            uids = new long[CHUNK];
+            size = 0;
+        }
+    }
+
+    /**
+     * 写出整棵树，返回可交给 BPlusTree.load 的 bootUid
+     */
+    public long build() throws Exception {
+        // 不满一段的数据切成至多 threads 块，各块作为单独的段排序，归并时一起处理
+        int pieces = Math.max(Math.min(threads, size / MIN_PIECE), 1);
+        for(int i = 0, from = 0; i < pieces && size > 0; i ++) {
+            int to = (int)((long)size * (i + 1) / pieces);
+            submit(Arrays.copyOfRange(keys, from, to), Arrays.copyOfRange(uids, from, to));
+            from = to;
+        }
+        keys = uids = null;
+        size = 0;
+
+        List<Run> sorted = new ArrayList<>();
+        for(Future<Run> f : runs) {
+            sorted.add(f.get());
+        }
+        if(sorted.isEmpty()) {
+            return BPlusTree.create(dm);
+        }
+        long root = writeTree(sorted);
+        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(root));
+    }
+
+    /**
+     * 关闭线程池，等正在进行的排序结束后删除所有段的临时文件。build 失败或没有调用 build 时也要调用
+     */
+    public void close() {
+        // 还在队列中的排序不会再执行，它们的 Future 永远不会完成
+        List<Runnable> dropped = sorter == null ? Collections.emptyList() : sorter.shutdownNow();
+        for(Future<Run> f : runs) {
+            if(dropped.contains(f)) {
+                continue;
+            }
+            try {
+                f.get().close();
+            } catch(Exception ignore) {
+                // 排序失败的段没有留下文件
+            }
+        }
+        runs.clear();
+    }
+
+    // 一段数据交给线程池排序，同时进行的排序不超过线程数，收集数据不会比排序快太多而占满内存
+    private void submit(final long[] k, final long[] u) throws Exception {
+        if(sorter == null) {
+            sorter = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "index-sorter");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        if(runs.size() >= threads) {
+            runs.get(runs.size() - threads).get();
+        }
+        final boolean spill = runs.size() >= MEM_RUNS;
+        runs.add(sorter.submit(() -> {
+            sort(k, u);
+            return spill ? FileRun.write(k, u) : new MemRun(k, u);
+        }));
+    }
+
+    // 按 (key, uid) 归并排序
+    static void sort(long[] keys, long[] uids) {
+        long[] tk = keys.clone(), tu = uids.clone();
+        mergeSort(tk, tu, keys, uids, 0, keys.length);
+    }
+
+    // 把 src 的 [lo, hi) 排好序放到 dst 中，dst 与 src 初始内容相同
+    private static void mergeSort(long[] sk, long[] su, long[] dk, long[] du, int lo, int hi) {
+        if(hi - lo <= 16) {
+            for(int i = lo + 1; i < hi; i ++) {
+                long k = dk[i], u = du[i];
+                int j = i - 1;
+                while(j >= lo && less(k, u, dk[j], du[j])) {
+                    dk[j+1] = dk[j];
+                    du[j+1] = du[j];
+                    j --;
+                }
+                dk[j+1] = k;
+                du[j+1] = u;
+            }
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(dk, du, sk, su, lo, mid);
+        mergeSort(dk, du, sk, su, mid, hi);
+        int i = lo, j = mid;
+        for(int p = lo; p < hi; p ++) {
+            if(j >= hi || (i < mid && !less(sk[j], su[j], sk[i], su[i]))) {
+                dk[p] = sk[i];
+                du[p] = su[i];
+                i ++;
+            } else {
+                dk[p] = sk[j];
+                du[p] = su[j];
+                j ++;
+            }
+        }
+    }
+
+    private static boolean less(long k1, long u1, long k2, long u2) {
+        return k1 < k2 || (k1 == k2 && u1 < u2);
+    }
+
+    private long writeTree(List<Run> sorted) throws Exception {
+        PriorityQueue<Run> heap = new PriorityQueue<>((a, b) -> less(a.key(), a.uid(), b.key(), b.uid()) ? -1 : 1);
+        for(Run run : sorted) {
+            if(run.next()) {
+                heap.add(run);
+            }
+        }
+        Level leaves = new Level(true);
+        while(!heap.isEmpty()) {
+            Run run = heap.poll();
+            leaves.add(run.uid(), run.key());
+            if(run.next()) {
+                heap.add(run);
+            }
+        }
+        return leaves.finish();
+    }
+
+    /**
+     * 树的一层，正在填写的节点和上一个写出、还没交给上一层的节点
+     * 内部节点的键是右边一个子节点的第一个键，最后一个子节点的键在下一个子节点到来时才能确定；
+     * 整层最右边的子节点的键为 Long.MAX_VALUE
+     */
+    private class Level {
+        final boolean isLeaf;
+        final int fill;
+        Level parent;
+
+        SubArray node;
+        int noKeys;
+        long lowKey;
+
+        long heldUid, heldLow;          // 上一个写出的节点
+        boolean pending;                // 内部节点：还没有键的子节点
+        long pendingSon, pendingLow;
+
+        Level(boolean isLeaf) {
+            this.isLeaf = isLeaf;
+            this.fill = Math.max(Node.balanceNumber(dm.pageSize())*2*FILL_PERCENT/100, 2);
+            newNode();
+        }
+
+        void add(long son, long key) throws Exception {
+            if(!isLeaf) {
+                // key 是 son 的第一个键，它成为前一个子节点的键
+                if(pending) {
+                    append(pendingSon, key, pendingLow);
+                }
+                pending = true;
+                pendingSon = son;
+                pendingLow = key;
+                return;
+            }
+            append(son, key, key);
+        }
+
+        // 写出剩下的节点，返回这一层以上的根
+        long finish() throws Exception {
+            if(pending) {
+                append(pendingSon, Long.MAX_VALUE, pendingLow);
+                pending = false;
+            }
+            if(noKeys > 0) {
+                writeNode();
+            }
+            if(parent == null) {
+                return heldUid;
+            }
+            parent.add(heldUid, heldLow);
+            return parent.finish();
+        }
+
+        private void append(long son, long key, long low) throws Exception {
+            if(noKeys == fill) {
+                writeNode();
+            }
+            if(noKeys == 0) {
+                lowKey = low;
+            }
+            Node.setRawKthSon(node, son, noKeys);
+            Node.setRawKthKey(node, key, noKeys);
+            noKeys ++;
+        }
+
+        private void writeNode() throws Exception {
+            Node.setRawNoKeys(node, noKeys);
+            long uid = dm.insert(TransactionManagerImpl.SUPER_XID, node.raw);
+            if(heldUid != 0) {
+                setSibling(heldUid, uid, lowKey);
+                if(parent == null) {
+                    parent = new Level(false);
+                }
+                parent.add(heldUid, heldLow);
+            }
+            heldUid = uid;
+            heldLow = lowKey;
+            newNode();
+        }
+
+        private void newNode() {
+            node = new SubArray(new byte[Node.nodeSize(dm.pageSize())], 0, Node.nodeSize(dm.pageSize()));
+            Node.setRawIsLeaf(node, isLeaf);
+            Node.setRawNoKeys(node, 0);
+            Node.setRawSibling(node, 0);
+            Node.setRawHighKey(node, Long.MAX_VALUE);
+            noKeys = 0;
+        }
+    }
+
+    // 叶子的上界是兄弟节点的第一个键
+    private void setSibling(long uid, long sibling, long siblingLow) throws Exception {
+        DataItem di = dm.read(uid);
+        try {
+            di.before();
+            Node.setRawSibling(di.data(), sibling);
+            if(Node.getRawIfLeaf(di.data())) {
+                Node.setRawHighKey(di.data(), siblingLow);
+            }
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+    }
+
+    // 一段已排序的数据
+    private interface Run {
+        boolean next() throws IOException;
+        long key();
+        long uid();
+        void close();
+    }
+
+    private static class MemRun implements Run {
+        final long[] keys, uids;
+        int pos = -1;
+
+        MemRun(long[] keys, long[] uids) {
+            this.keys = keys;
+            this.uids = uids;
+        }
+
+        public boolean next() {
+            return ++pos < keys.length;
+        }
+
+        public long key() {
+            return keys[pos];
+        }
+
+        public long uid() {
+            return uids[pos];
+        }
+
+        public void close() {
+        }
+    }
+
+    private static class FileRun implements Run {
+        final File file;
+        DataInputStream in;
+        long key, uid;
+
+        private FileRun(File file) {
+            this.file = file;
+        }
+
+        static FileRun write(long[] keys, long[] uids) throws IOException {
+            File file = File.createTempFile("mydb-index-", ".run");
+            file.deleteOnExit();
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+                for(int i = 0; i < keys.length; i ++) {
+                    out.writeLong(keys[i]);
+                    out.writeLong(uids[i]);
+                }
+            }
+            return new FileRun(file);
+        }
+
+        public boolean next() throws IOException {
+            if(in == null) {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            }
+            try {
+                key = in.readLong();
+                uid = in.readLong();
+                return true;
+            } catch(EOFException e) {
+                return false;
+            }
+        }
+
+        public long key() {
+            return key;
+        }
+
+        public long uid() {
+            return uid;
+        }
+
+        public void close() {
+            try {
+                if(in != null) {
+                    in.close();
+                    in = null;
+                }
+            } catch(IOException ignore) {
+            }
+            file.delete();
+        }
+    }
+}
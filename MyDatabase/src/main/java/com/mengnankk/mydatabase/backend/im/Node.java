@@ -1,18 +1,27 @@
 package com.mengnankk.mydatabase.backend.im;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import com.mengnankk.mydatabase.backend.common.SubArray;
 import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
+import com.mengnankk.mydatabase.backend.dm.pageCache.PageSize;
 import com.mengnankk.mydatabase.backend.tm.TransactionManagerImpl;
-import com.mengnankk.mydatabase.backend.utils.Parser;
+import com.mengnankk.mydatabase.common.Error;
 
 /**
  * Node结构如下：
  * [LeafFlag][KeyNumber][SiblingUid]
  * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
+ * LeafFlag 为 0 是内部节点，3 是叶子，2 是已从树中摘除的叶子；已摘除的内部节点 KeyNumber 为 0
+ * 叶子最后一格（插入时不会用到）的 Key 存放它的上界：不小于上界的键属于右边的兄弟节点。
+ * 内部节点的最后一个键就是它的上界
+ * LeafFlag 为 1 的是旧格式的叶子，没有存放上界（那一格为 0），上界按无穷大处理；
+ * 第一次修改时改写为新格式，上界记为无穷大，之后分裂时再收紧
  */
 public class Node {
     static final int IS_LEAF_OFFSET = 0;
@@ -20,8 +29,28 @@ public class Node {
     static final int SIBLING_OFFSET = NO_KEYS_OFFSET+2;
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET+8;
 
-    static final int BALANCE_NUMBER = 32;
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2*8)*(BALANCE_NUMBER*2+2);
+    static final byte INTERNAL = 0;
+    static final byte LEGACY_LEAF = 1;
+    static final byte REMOVED_LEAF = 2;
+    static final byte LEAF = 3;
+
+    // 直接按大端读写节点中的数值，不为每个键分配临时数组
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    // 8KB 页面时为 32，随页面大小等比例变化，节点约占页面的八分之一
+    static int balanceNumber(int pageSize) {
+        return 32 * pageSize / PageSize.DEFAULT;
+    }
+
+    static int nodeSize(int pageSize) {
+        return NODE_HEADER_SIZE + (2*8)*(balanceNumber(pageSize)*2+2);
+    }
+
+    // 已有节点的 balanceNumber 由节点的长度推出
+    private static int balanceNumber(SubArray raw) {
+        return ((raw.end - raw.start - NODE_HEADER_SIZE) / (2*8) - 2) / 2;
+    }
 
     BPlusTree tree;
     DataItem dataItem;
@@ -30,50 +59,81 @@ public class Node {
 
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
         if(isLeaf) {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)1;
+            raw.raw[raw.start + IS_LEAF_OFFSET] = LEAF;
         } else {
-            raw.raw[raw.start + IS_LEAF_OFFSET] = (byte)0;
+            raw.raw[raw.start + IS_LEAF_OFFSET] = INTERNAL;
         }
     }
 
     static boolean getRawIfLeaf(SubArray raw) {
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte)1;
+        return raw.raw[raw.start + IS_LEAF_OFFSET] != INTERNAL;
+    }
+
+    static void setRawRemoved(SubArray raw, boolean removed) {
+        upgradeRaw(raw);
+        if(removed) {
+            raw.raw[raw.start + IS_LEAF_OFFSET] = REMOVED_LEAF;
+        } else {
+            raw.raw[raw.start + IS_LEAF_OFFSET] = LEAF;
+        }
+    }
+
+    // 已摘除的内部节点被清空，内部节点只有这时没有键
+    static boolean getRawIfRemoved(SubArray raw) {
+        byte flag = raw.raw[raw.start + IS_LEAF_OFFSET];
+        return flag == REMOVED_LEAF || (flag == INTERNAL && getRawNoKeys(raw) == 0);
+    }
+
+    // 旧格式的叶子改写为新格式，上界记为无穷大
+    static void upgradeRaw(SubArray raw) {
+        if(raw.raw[raw.start + IS_LEAF_OFFSET] == LEGACY_LEAF) {
+            raw.raw[raw.start + IS_LEAF_OFFSET] = LEAF;
+            setRawKthKey(raw, Long.MAX_VALUE, balanceNumber(raw)*2+1);
+        }
     }
 
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short)noKeys), 0, raw.raw, raw.start+NO_KEYS_OFFSET, 2);
+        SHORT.set(raw.raw, raw.start+NO_KEYS_OFFSET, (short)noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int)Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start+NO_KEYS_OFFSET, raw.start+NO_KEYS_OFFSET+2));
+        return (short)SHORT.get(raw.raw, raw.start+NO_KEYS_OFFSET);
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start+SIBLING_OFFSET, 8);
+        LONG.set(raw.raw, raw.start+SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start+SIBLING_OFFSET, raw.start+SIBLING_OFFSET+8));
+        return (long)LONG.get(raw.raw, raw.start+SIBLING_OFFSET);
     }
 
     static void setRawKthSon(SubArray raw, long uid, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        LONG.set(raw.raw, raw.start+NODE_HEADER_SIZE+kth*(8*2), uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return (long)LONG.get(raw.raw, raw.start+NODE_HEADER_SIZE+kth*(8*2));
     }
 
     static void setRawKthKey(SubArray raw, long key, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+        LONG.set(raw.raw, raw.start+NODE_HEADER_SIZE+kth*(8*2)+8, key);
     }
 
     static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start+NODE_HEADER_SIZE+kth*(8*2)+8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset+8));
+        return (long)LONG.get(raw.raw, raw.start+NODE_HEADER_SIZE+kth*(8*2)+8);
+    }
+
+    static void setRawHighKey(SubArray raw, long key) {
+        upgradeRaw(raw);
+        setRawKthKey(raw, key, balanceNumber(raw)*2+1);
+    }
+
+    static long getRawHighKey(SubArray raw) {
+        if(raw.raw[raw.start + IS_LEAF_OFFSET] == LEGACY_LEAF) {
+            return Long.MAX_VALUE;
+        }
+        return getRawKthKey(raw, balanceNumber(raw)*2+1);
     }
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
@@ -81,16 +141,46 @@ public class Node {
         System.arraycopy(from.raw, offset, to.raw, to.start+NODE_HEADER_SIZE, from.end-offset);
     }
 
+    // 第 kth 个及之后的 [Son][Key] 后移一格，空出第 kth 格
     static void shiftRawKth(SubArray raw, int kth) {
-        int begin = raw.start+NODE_HEADER_SIZE+(kth+1)*(8*2);
-        int end = raw.start+NODE_SIZE-1;
-        for(int i = end; i >= begin; i --) {
-            raw.raw[i] = raw.raw[i-(8*2)];
+        int noKeys = getRawNoKeys(raw);
+        if(kth >= noKeys) {
+            return;
         }
+        int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+        System.arraycopy(raw.raw, begin, raw.raw, begin+(8*2), (noKeys-kth)*(8*2));
     }
 
-    static byte[] newRootRaw(long left, long right, long key)  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    // 第一个不小于 key 的键的位置，没有则返回 noKeys
+    static int lowerBound(SubArray raw, int noKeys, long key) {
+        int lo = 0, hi = noKeys;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(getRawKthKey(raw, mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // 第一个大于 key 的键的位置，没有则返回 noKeys
+    static int upperBound(SubArray raw, int noKeys, long key) {
+        int lo = 0, hi = noKeys;
+        while(lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if(getRawKthKey(raw, mid) <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    static byte[] newRootRaw(int pageSize, long left, long right, long key)  {
+        SubArray raw = new SubArray(new byte[nodeSize(pageSize)], 0, nodeSize(pageSize));
 
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
@@ -103,19 +193,23 @@ public class Node {
         return raw.raw;
     }
 
-    static byte[] newNilRootRaw()  {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newNilRootRaw(int pageSize)  {
+        SubArray raw = new SubArray(new byte[nodeSize(pageSize)], 0, nodeSize(pageSize));
 
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
         setRawSibling(raw, 0);
+        setRawHighKey(raw, Long.MAX_VALUE);
 
         return raw.raw;
     }
 
     static Node loadNode(BPlusTree bTree, long uid) throws Exception {
         DataItem di = bTree.dm.read(uid);
-        assert di != null;
+        if(di == null) {
+            // 摘除的节点要等所有可能访问它的操作结束才回收，读不到说明索引已损坏
+            throw Error.NullEntryException;
+        }
         Node n = new Node();
         n.tree = bTree;
         n.dataItem = di;
@@ -124,43 +218,108 @@ public class Node {
         return n;
     }
 
+    /**
+     * 节点内容的只读副本，不引用 dataitem，供 NodeCache 缓存
+     * 副本只用于查找，修改节点要通过 loadNode 取得的节点
+     */
+    Node snapshot() {
+        dataItem.rLock();
+        try {
+            Node n = new Node();
+            n.tree = tree;
+            n.uid = uid;
+            n.raw = new SubArray(Arrays.copyOfRange(raw.raw, raw.start, raw.end), 0, raw.end-raw.start);
+            return n;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
     public void release() {
-        dataItem.release();
+        if(dataItem != null) {
+            dataItem.release();
+        }
+    }
+
+    // 副本不会被修改，读时不必加锁
+    private void rLock() {
+        if(dataItem != null) {
+            dataItem.rLock();
+        }
+    }
+
+    private void rUnLock() {
+        if(dataItem != null) {
+            dataItem.rUnLock();
+        }
     }
 
     public boolean isLeaf() {
-        dataItem.rLock();
+        rLock();
         try {
             return getRawIfLeaf(raw);
         } finally {
-            dataItem.rUnLock();
+            rUnLock();
+        }
+    }
+
+    // 最左边的子节点，分裂不会改变它
+    public long firstSon() {
+        rLock();
+        try {
+            return getRawKthSon(raw, 0);
+        } finally {
+            rUnLock();
+        }
+    }
+
+    public long lastSon() {
+        rLock();
+        try {
+            return getRawKthSon(raw, getRawNoKeys(raw)-1);
+        } finally {
+            rUnLock();
+        }
+    }
+
+    public long siblingUid() {
+        rLock();
+        try {
+            return getRawSibling(raw);
+        } finally {
+            rUnLock();
         }
     }
 
     class SearchNextRes {
         long uid;
         long siblingUid;
+        long leftUid;       // uid 左边的子节点，uid 是第一个子节点时为 0
     }
 
-    public SearchNextRes searchNext(long key) {
-        dataItem.rLock();
+    /**
+     * 在内部节点中找到 key 所在的子节点，key 大于所有键时返回兄弟节点
+     * 相同的键可能分布在相邻的几个子节点中：插入时取最右边一个（第一个大于 key 的键），
+     * 查找时取最左边一个（第一个不小于 key 的键），再沿叶子的兄弟指针向右扫描
+     */
+    public SearchNextRes searchNext(long key, boolean leftmost) {
+        rLock();
         try {
             SearchNextRes res = new SearchNextRes();
             int noKeys = getRawNoKeys(raw);
-            for(int i = 0; i < noKeys; i ++) {
-                long ik = getRawKthKey(raw, i);
-                if(key < ik) {
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
-                }
+            int kth = leftmost ? lowerBound(raw, noKeys, key) : upperBound(raw, noKeys, key);
+            if(kth < noKeys) {
+                res.uid = getRawKthSon(raw, kth);
+                res.leftUid = kth == 0 ? 0 : getRawKthSon(raw, kth-1);
+                res.siblingUid = 0;
+                return res;
             }
             res.uid = 0;
             res.siblingUid = getRawSibling(raw);
             return res;
 
         } finally {
-            dataItem.rUnLock();
+            rUnLock();
         }
     }
 
@@ -170,17 +329,10 @@ public class Node {
     }
 
     public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();
+        rLock();
         try {
             int noKeys = getRawNoKeys(raw);
-            int kth = 0;
-            while(kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if(ik >= leftKey) {
-                    break;
-                }
-                kth ++;
-            }
+            int kth = lowerBound(raw, noKeys, leftKey);
             List<Long> uids = new ArrayList<>();
             while(kth < noKeys) {
                 long ik = getRawKthKey(raw, kth);
@@ -200,7 +352,7 @@ public class Node {
             res.siblingUid = siblingUid;
             return res;
         } finally {
-            dataItem.rUnLock();
+            rUnLock();
         }
     }
 
@@ -208,14 +360,17 @@ public class Node {
         long siblingUid, newSon, newKey;
     }
 
-    public InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
+    /**
+     * 插入 (key, uid)；内部节点中 uid 是子节点 splitSon 分裂出的节点，插到 splitSon 之后
+     */
+    public InsertAndSplitRes insertAndSplit(long uid, long key, long splitSon) throws Exception {
         boolean success = false;
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
 
         dataItem.before();
         try {
-            success = insert(uid, key);
+            success = insert(uid, key, splitSon);
             if(!success) {
                 res.siblingUid = getRawSibling(raw);
                 return res;
@@ -235,32 +390,38 @@ public class Node {
             }
         } finally {
             if(err == null && success) {
-                dataItem.after(TransactionManagerImpl.SUPER_XID);
+                modified();
             } else {
                 dataItem.unBefore();
             }
         }
     }
 
-    private boolean insert(long uid, long key) {
+    /**
+     * 键不属于这个节点时返回 false，由调用者移到兄弟节点：叶子按上界判断，摘除后一律转给兄弟节点。
+     * 内部节点中新的子节点插到 splitSon 之后（相同的键可能跨过分裂点，只按键找不一定是它）；
+     * 找不到 splitSon（它自己也刚分裂出、还没插入），或者 splitSon 又分裂过、key 已不在它的范围内时，
+     * 插到第一个键大于 key 的子节点之后，没有这样的子节点时在兄弟节点中
+     */
+    private boolean insert(long uid, long key, long splitSon) {
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        while(kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if(ik < key) {
-                kth ++;
-            } else {
-                break;
-            }
-        }
-        if(kth == noKeys && getRawSibling(raw) != 0) return false;
-
         if(getRawIfLeaf(raw)) {
+            if(getRawSibling(raw) != 0 && (getRawIfRemoved(raw) || key >= getRawHighKey(raw))) return false;
+            upgradeRaw(raw);
+            int kth = lowerBound(raw, noKeys, key);
             shiftRawKth(raw, kth);
             setRawKthKey(raw, key, kth);
             setRawKthSon(raw, uid, kth);
             setRawNoKeys(raw, noKeys+1);
         } else {
+            int kth = 0;
+            while(kth < noKeys && getRawKthSon(raw, kth) != splitSon) {
+                kth ++;
+            }
+            if(kth == noKeys || getRawKthKey(raw, kth) < key) {
+                kth = upperBound(raw, noKeys, key);
+                if(kth == noKeys && getRawSibling(raw) != 0) return false;
+            }
             long kk = getRawKthKey(raw, kth);
             setRawKthKey(raw, key, kth);
             shiftRawKth(raw, kth+1);
@@ -271,8 +432,176 @@ public class Node {
         return true;
     }
 
+    class LeafRemoveRes {
+        boolean removed;
+        boolean empty;      // 删去后叶子为空且有兄弟节点
+        long siblingUid;
+    }
+
+    /**
+     * 从叶子中删去 (key, uid)，键不在节点间移动
+     * 没找到且叶子中的键都不大于 key 时返回兄弟节点，相同的键可能延续到兄弟节点中。
+     * 有兄弟节点的叶子删空后可以从树中摘除，摘除后不再接受插入（插入沿兄弟指针右移），只起转发作用
+     */
+    public LeafRemoveRes leafRemove(long key, long uid) {
+        LeafRemoveRes res = new LeafRemoveRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = lowerBound(raw, noKeys, key);
+            while(kth < noKeys) {
+                if(getRawKthKey(raw, kth) > key) {
+                    return res;
+                }
+                if(getRawKthSon(raw, kth) == uid) {
+                    break;
+                }
+                kth ++;
+            }
+            if(kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+                return res;
+            }
+            int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+            System.arraycopy(raw.raw, begin+(8*2), raw.raw, begin, (noKeys-kth-1)*(8*2));
+            setRawNoKeys(raw, noKeys-1);
+            upgradeRaw(raw);
+            res.removed = true;
+            res.empty = noKeys == 1 && getRawSibling(raw) != 0;
+            return res;
+        } finally {
+            if(res.removed) {
+                modified();
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    class RemoveSonRes {
+        boolean removed;
+        long leftSon;       // 被删子节点左边的子节点，被删的是第一个子节点时为 0
+        long siblingUid;    // 没找到子节点且 key 可能在兄弟节点中时返回
+    }
+
+    /**
+     * 从内部节点中删去子节点 son 及其键，son 的范围并入右边的子节点
+     * 只在右边的子节点是 son 的兄弟节点时删除，节点的最后一个子节点不删，内部节点不会被删空
+     */
+    public RemoveSonRes removeSon(long son, long sibling, long key) {
+        RemoveSonRes res = new RemoveSonRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = 0;
+            while(kth < noKeys && getRawKthSon(raw, kth) != son) {
+                kth ++;
+            }
+            if(kth == noKeys) {
+                if(noKeys > 0 && getRawKthKey(raw, noKeys-1) <= key) {
+                    res.siblingUid = getRawSibling(raw);
+                }
+                return res;
+            }
+            if(kth == noKeys-1 || getRawKthSon(raw, kth+1) != sibling) {
+                return res;
+            }
+            res.leftSon = kth == 0 ? 0 : getRawKthSon(raw, kth-1);
+            int begin = raw.start+NODE_HEADER_SIZE+kth*(8*2);
+            System.arraycopy(raw.raw, begin+(8*2), raw.raw, begin, (noKeys-kth-1)*(8*2));
+            setRawNoKeys(raw, noKeys-1);
+            res.removed = true;
+            return res;
+        } finally {
+            if(res.removed) {
+                modified();
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    /**
+     * 从树中摘除之前调用，节点仍可以摘除时标记为已摘除并返回 true，之后一直持有写锁直到 unlockRemoved。
+     * 叶子要为空且有兄弟节点；内部节点要只剩子节点 son 且有兄弟节点，标记时清空，
+     * 经过它的查找和插入都转到兄弟节点。没能从父节点中删去时 unlockRemoved 撤销标记
+     */
+    public boolean lockRemoved(long son) {
+        dataItem.lock();
+        boolean ok = false;
+        dataItem.before();
+        try {
+            if(getRawIfLeaf(raw)) {
+                ok = !getRawIfRemoved(raw) && getRawNoKeys(raw) == 0 && getRawSibling(raw) != 0;
+                if(ok) {
+                    setRawRemoved(raw, true);
+                }
+            } else {
+                ok = getRawNoKeys(raw) == 1 && getRawKthSon(raw, 0) == son && getRawSibling(raw) != 0;
+                if(ok) {
+                    setRawNoKeys(raw, 0);
+                }
+            }
+            return ok;
+        } finally {
+            if(ok) {
+                modified();
+            } else {
+                dataItem.unBefore();
+                dataItem.unlock();
+            }
+        }
+    }
+
+    public void unlockRemoved(boolean removed) {
+        try {
+            if(!removed) {
+                dataItem.before();
+                if(getRawIfLeaf(raw)) {
+                    setRawRemoved(raw, false);
+                } else {
+                    setRawNoKeys(raw, 1);
+                }
+                modified();
+            }
+        } finally {
+            dataItem.unlock();
+        }
+    }
+
+    /**
+     * 兄弟指针指向 from 时改为指向 to，返回修改前的兄弟节点
+     */
+    public long relinkSibling(long from, long to) {
+        long sibling = 0;
+        dataItem.before();
+        try {
+            sibling = getRawSibling(raw);
+            if(sibling == from) {
+                setRawSibling(raw, to);
+            }
+            return sibling;
+        } finally {
+            if(sibling == from) {
+                modified();
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    /**
+     * 修改完成，在释放写锁之前使缓存中的副本失效
+     * 锁一释放其他写入者就能在新内容上继续修改（比如插入到刚分裂出的兄弟节点并返回），
+     * 这之后查找不能再读到修改前的副本
+     */
+    private void modified() {
+        tree.nodeCache.invalidate(uid);
+        dataItem.after(TransactionManagerImpl.SUPER_XID);
+    }
+
     private boolean needSplit() {
-        return BALANCE_NUMBER*2 == getRawNoKeys(raw);
+        return balanceNumber(raw)*2 == getRawNoKeys(raw);
     }
 
     class SplitRes {
@@ -280,14 +609,21 @@ public class Node {
     }
 
     private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int balance = balanceNumber(raw);
+        SubArray nodeRaw = new SubArray(new byte[raw.end - raw.start], 0, raw.end - raw.start);
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        setRawNoKeys(nodeRaw, balance);
         setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        copyRawFromKth(raw, nodeRaw, balance);
+        if(getRawIfLeaf(raw)) {
+            setRawHighKey(nodeRaw, getRawHighKey(raw));
+        }
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        setRawNoKeys(raw, balance);
         setRawSibling(raw, son);
+        if(getRawIfLeaf(raw)) {
+            setRawHighKey(raw, getRawKthKey(nodeRaw, 0));
+        }
 
         SplitRes res = new SplitRes();
         res.newSon = son;
@@ -1,77 +1,184 @@
 package com.mengnankk.mydatabase.backend.im;
 
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * B+树节点缓存，缓存的是节点内容的只读副本（见 Node.snapshot），命中时不经过 DM
+ *
+ * 按 uid 分成若干段，每段一把锁，各自按 LFU 淘汰，不同段的访问互不阻塞。
+ * 节点修改完成、释放写锁之前调用 invalidate：该 uid 所在槽的版本号加一并移除副本。
+ * 读取者从 DM 读节点之前先取版本号，放入时版本号已变说明读到的可能是修改前的内容，不放入
+ */
 public class NodeCache {
-    private final int capacity;
-    private int minFreq;
-    private final Map<Long, Node> nodeMap;//key -> Node
-    private final Map<Long, Integer> freqMap; // key -> freq
-    private final Map<Integer, LinkedHashSet<Long>> freqList;// freq -> keys
-
-    public NodeCache(int capacity, Map<Long, Node> nodeMap, Map<Long, Integer> freqMap, Map<Integer, LinkedHashSet<Long>> freqList) {
-        this.capacity = capacity;
-        this.nodeMap = new HashMap<>();
-        this.freqMap = new HashMap<>();
-        this.freqList = new HashMap<>();
-        this.minFreq = 1;
-    }
+    private static final int SEGMENTS_NO = 16;
+    private static final int STAMPS_NO = 64;        // 每段的版本号槽数，多个 uid 共用一个槽只会多几次未命中
+
+    private final Segment[] segments;
 
     public NodeCache(int capacity) {
-        this.capacity= capacity;
-        this.nodeMap = new HashMap<>();
-        this.freqMap = new HashMap<>();
-        this.freqList = new HashMap<>();
-        this.minFreq = 1;
+        segments = new Segment[SEGMENTS_NO];
+        int perSegment = capacity <= 0 ? 0 : Math.max(capacity / SEGMENTS_NO, 1);
+        for(int i = 0; i < SEGMENTS_NO; i ++) {
+            segments[i] = new Segment(perSegment);
+        }
     }
 
+    public Node get(long uid) {
+        Segment seg = segmentFor(uid);
+        seg.lock.lock();
+        try {
+            Node node = seg.nodes.get(uid);
+            if(node != null) {
+                seg.touch(uid);
+            }
+            return node;
+        } finally {
+            seg.lock.unlock();
+        }
+    }
 
     /**
-     * get
-     * @param id
-     * @return
+     * 读节点之前取得的版本号，放入副本时交给 put 校验
      */
-    public synchronized Node get(long id){
-        if (!nodeMap.containsKey(id)) return null;
-        int freq = freqMap.get(id);
-        LinkedHashSet<Long> oldSet = freqList.get(freq);
-        oldSet.remove(id);
-        if (oldSet.isEmpty()){
-            freqList.remove(freq);
-            if (freq==minFreq){
-                minFreq++;
+    public long stamp(long uid) {
+        Segment seg = segmentFor(uid);
+        seg.lock.lock();
+        try {
+            return seg.stamps[stampIndex(uid)];
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    public void put(long uid, Node node, long stamp) {
+        Segment seg = segmentFor(uid);
+        seg.lock.lock();
+        try {
+            if(seg.capacity == 0 || seg.stamps[stampIndex(uid)] != stamp) {
+                return;
+            }
+            if(seg.nodes.containsKey(uid)) {
+                seg.nodes.put(uid, node);
+                seg.touch(uid);
+                return;
             }
+            if(seg.nodes.size() >= seg.capacity) {
+                seg.evict();
+            }
+            seg.nodes.put(uid, node);
+            seg.freqs.put(uid, 1);
+            seg.freqList.computeIfAbsent(1, ignore -> new LinkedHashSet<>()).add(uid);
+            seg.minFreq = 1;
+        } finally {
+            seg.lock.unlock();
         }
-        freqList.computeIfAbsent(freq+1,ignore->new LinkedHashSet<>()).add(id);
-        return nodeMap.get(id);
     }
-    public synchronized void put(Long id,Node node){
-        if(capacity==0) return;
-        if (nodeMap.containsKey(id)){
-            nodeMap.put(id,node);
-            get(id);
-            return;
+
+    /**
+     * 节点修改完成、释放写锁之前调用，之后的读取者会重新从 DM 读取
+     */
+    public void invalidate(long uid) {
+        Segment seg = segmentFor(uid);
+        seg.lock.lock();
+        try {
+            seg.stamps[stampIndex(uid)] ++;
+            seg.remove(uid);
+        } finally {
+            seg.lock.unlock();
         }
-        if (nodeMap.size()>=capacity){
-            LinkedHashSet<Long> minFreqKeys =freqList.get(minFreq);
-            long evicId= minFreqKeys.iterator().next();
-            if (minFreqKeys.isEmpty()){
-                freqList.remove(minFreq);
+    }
+
+    public void clear() {
+        for(Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                seg.nodes.clear();
+                seg.freqs.clear();
+                seg.freqList.clear();
+                seg.minFreq = 0;
+            } finally {
+                seg.lock.unlock();
             }
-            nodeMap.remove(evicId);
-            freqMap.remove(evicId);
         }
-        nodeMap.put(id,node);
-        freqMap.put(id,1);
-        freqList.computeIfAbsent(1, ignore -> new LinkedHashSet<>()).add(id);
-        minFreq = 1;
     }
-    public synchronized void clear(){
-        nodeMap.clear();
-        freqMap.clear();
-        freqList.clear();
-        minFreq = 0;
+
+    private Segment segmentFor(long uid) {
+        return segments[hash(uid) & (SEGMENTS_NO-1)];
+    }
+
+    private static int stampIndex(long uid) {
+        return (hash(uid) >>> 4) & (STAMPS_NO-1);
+    }
+
+    private static int hash(long uid) {
+        int h = Long.hashCode(uid);
+        return h ^ (h >>> 16);
+    }
+
+    private static class Segment {
+        final Lock lock = new ReentrantLock();
+        final int capacity;
+        int minFreq;
+        final Map<Long, Node> nodes = new HashMap<>();              // key -> Node
+        final Map<Long, Integer> freqs = new HashMap<>();           // key -> freq
+        final Map<Integer, LinkedHashSet<Long>> freqList = new HashMap<>();     // freq -> keys
+        final long[] stamps = new long[STAMPS_NO];
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        // 访问频率加一
+        void touch(long uid) {
+            int freq = freqs.get(uid);
+            LinkedHashSet<Long> oldSet = freqList.get(freq);
+            oldSet.remove(uid);
+            if(oldSet.isEmpty()) {
+                freqList.remove(freq);
+                if(freq == minFreq) {
+                    minFreq ++;
+                }
+            }
+            freqs.put(uid, freq+1);
+            freqList.computeIfAbsent(freq+1, ignore -> new LinkedHashSet<>()).add(uid);
+        }
+
+        // 淘汰访问频率最低的节点中最早进入的一个
+        void evict() {
+            LinkedHashSet<Long> minFreqKeys = freqList.get(minFreq);
+            if(minFreqKeys == null) {
+                // invalidate 移除节点后 minFreq 可能已经过时
+                if(freqList.isEmpty()) {
+                    return;
+                }
+                minFreq = freqList.keySet().stream().min(Integer::compare).get();
+                minFreqKeys = freqList.get(minFreq);
+            }
+            Iterator<Long> it = minFreqKeys.iterator();
+            long evictId = it.next();
+            it.remove();
+            if(minFreqKeys.isEmpty()) {
+                freqList.remove(minFreq);
+            }
+            nodes.remove(evictId);
+            freqs.remove(evictId);
+        }
+
+        void remove(long uid) {
+            if(nodes.remove(uid) == null) {
+                return;
+            }
+            int freq = freqs.remove(uid);
+            LinkedHashSet<Long> set = freqList.get(freq);
+            set.remove(uid);
+            if(set.isEmpty()) {
+                freqList.remove(freq);
+            }
+        }
     }
 }
@@ -7,6 +7,7 @@ import com.mengnankk.mydatabase.backend.parser.statement.Abort;
 import com.mengnankk.mydatabase.backend.parser.statement.Begin;
 import com.mengnankk.mydatabase.backend.parser.statement.Commit;
 import com.mengnankk.mydatabase.backend.parser.statement.Create;
+import com.mengnankk.mydatabase.backend.parser.statement.CreateIndex;
 import com.mengnankk.mydatabase.backend.parser.statement.Delete;
 import com.mengnankk.mydatabase.backend.parser.statement.Drop;
 import com.mengnankk.mydatabase.backend.parser.statement.Insert;
@@ -38,8 +39,13 @@ public class Parser {
                     break;
                 case "create":
                     String nextToken = tokenizer.peek().toLowerCase();
+                    if("index".equals(nextToken)) {
+                        tokenizer.pop(); // consume 'index'
+                        stat = parseCreateIndex(tokenizer);
+                        break;
+                    }
                     if(!"table".equals(nextToken)) {
-                        throw new RuntimeException("Syntax error: 'create' must be followed by 'table'");
+                        throw new RuntimeException("Syntax error: 'create' must be followed by 'table' or 'index'");
                     }
                     tokenizer.pop(); // consume 'table'
                     stat = parseCreate(tokenizer);
@@ -78,7 +84,7 @@ public class Parser {
                     stat = parseShow(tokenizer);
                     break;
                 default:
-                    String[] validCommands = {"begin", "commit", "abort", "create table", "drop table", "select", "insert into", "delete from", "update", "show"};
+                    String[] validCommands = {"begin", "commit", "abort", "create table", "create index", "drop table", "select", "insert into", "delete from", "update", "show"};
                     StringBuilder sb = new StringBuilder();
                     sb.append("Invalid command: '").append(token).append("'\n");
                     sb.append("Valid commands are:\n");
@@ -151,11 +157,6 @@ public class Parser {
     private static Delete parseDelete(Tokenizer tokenizer) throws Exception {
         Delete delete = new Delete();
 
-        if(!"from".equals(tokenizer.peek())) {
-            throw Error.InvalidCommandException;
-        }
-        tokenizer.pop();
-
         String tableName = tokenizer.peek();
         if(!isName(tableName)) {
             throw Error.InvalidCommandException;
@@ -312,11 +313,6 @@ public class Parser {
     }
 
     private static Drop parseDrop(Tokenizer tokenizer) throws Exception {
-        if(!"table".equals(tokenizer.peek())) {
-            throw Error.InvalidCommandException;
-        }
-        tokenizer.pop();
-
         String tableName = tokenizer.peek();
         if(!isName(tableName)) {
             throw Error.InvalidCommandException;
@@ -332,6 +328,41 @@ public class Parser {
         return drop;
     }
 
+    // create index on <table> (<field>)
+    private static CreateIndex parseCreateIndex(Tokenizer tokenizer) throws Exception {
+        CreateIndex createIndex = new CreateIndex();
+
+        if(!"on".equals(tokenizer.peek())) {
+            throw new RuntimeException("Syntax error: 'create index' must be followed by 'on'");
+        }
+        tokenizer.pop();
+
+        String tableName = tokenizer.peek();
+        if(!isName(tableName)) {
+            throw Error.InvalidTableNameException;
+        }
+        createIndex.tableName = tableName;
+        tokenizer.pop();
+
+        if(!"(".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+
+        String fieldName = tokenizer.peek();
+        if(!isName(fieldName)) {
+            throw Error.InvalidFieldNameException;
+        }
+        createIndex.fieldName = fieldName;
+        tokenizer.pop();
+
+        if(!")".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return createIndex;
+    }
+
     private static Create parseCreate(Tokenizer tokenizer) throws Exception {
         Create create = new Create();
         
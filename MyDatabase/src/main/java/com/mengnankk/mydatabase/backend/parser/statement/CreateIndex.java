@@ -0,0 +1,6 @@
+package com.mengnankk.mydatabase.backend.parser.statement;
+
+public class CreateIndex {
+    public String tableName;
+    public String fieldName;
+}
@@ -5,6 +5,7 @@ import com.mengnankk.mydatabase.backend.parser.statement.Abort;
 import com.mengnankk.mydatabase.backend.parser.statement.Begin;
 import com.mengnankk.mydatabase.backend.parser.statement.Commit;
 import com.mengnankk.mydatabase.backend.parser.statement.Create;
+import com.mengnankk.mydatabase.backend.parser.statement.CreateIndex;
 import com.mengnankk.mydatabase.backend.parser.statement.Delete;
 import com.mengnankk.mydatabase.backend.parser.statement.Insert;
 import com.mengnankk.mydatabase.backend.parser.statement.Select;
@@ -73,6 +74,8 @@ public class Executor {
                 res = tbm.show(xid);
             } else if(Create.class.isInstance(stat)) {
                 res = tbm.create(xid, (Create)stat);
+            } else if(CreateIndex.class.isInstance(stat)) {
+                res = tbm.createIndex(xid, (CreateIndex)stat);
             } else if(Select.class.isInstance(stat)) {
                 res = tbm.read(xid, (Select)stat);
             } else if(Insert.class.isInstance(stat)) {
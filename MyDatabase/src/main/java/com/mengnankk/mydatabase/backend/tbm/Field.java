@@ -5,6 +5,9 @@ import java.util.List;
 
 import com.google.common.primitives.Bytes;
 
+import com.mengnankk.mydatabase.backend.common.SubArray;
+import com.mengnankk.mydatabase.backend.dm.DataManager;
+import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
 import com.mengnankk.mydatabase.backend.im.BPlusTree;
 import com.mengnankk.mydatabase.backend.parser.statement.SingleExpression;
 import com.mengnankk.mydatabase.backend.tm.TransactionManagerImpl;
@@ -24,7 +27,7 @@ public class Field {
     private Table tb;
     String fieldName;
     String fieldType;
-    private long index;
+    private volatile long index;    // 建立索引时最后写入，读到非 0 时 bt 已经可用
     private BPlusTree bt;
 
     public static Field loadField(Table tb, long uid) {
@@ -95,6 +98,25 @@ public class Field {
         }
     }
 
+    /**
+     * 为已有的字段挂上建好的索引：改写字段记录末尾的 IndexUid
+     * 字段记录只会被读取，与 BPlusTree 更换根节点一样在 DM 层原地修改并记日志
+     */
+    void setIndex(long index) throws Exception {
+        DataManager dm = ((TableManagerImpl)tb.tbm).dm;
+        bt = BPlusTree.load(index, dm);
+        DataItem di = dm.read(uid);
+        try {
+            di.before();
+            SubArray raw = di.data();
+            System.arraycopy(Parser.long2Byte(index), 0, raw.raw, raw.end-8, 8);
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+        this.index = index;
+    }
+
     public boolean isIndexed() {
         return index != 0;
     }
@@ -104,6 +126,11 @@ public class Field {
         bt.insert(uKey, uid);
     }
 
+    public boolean remove(Object key, long uid) throws Exception {
+        long uKey = value2Uid(key);
+        return bt.delete(uKey, uid);
+    }
+
     public List<Long> search(long left, long right) throws Exception {
         return bt.searchRange(left, right);
     }
@@ -146,7 +173,11 @@ public class Field {
                 raw = Parser.long2Byte((long)v);
                 break;
             case "string":
-                raw = Parser.string2Byte((String)v);
+                if(v instanceof Overflow) {
+                    raw = ((Overflow)v).toRaw();
+                } else {
+                    raw = Parser.string2Byte((String)v);
+                }
                 break;
         }
         return raw;
@@ -169,6 +200,12 @@ public class Field {
                 res.shift = 8;
                 break;
             case "string":
+                // 存在行外的字符串只取出指针，用到时再读取
+                if(Overflow.isPointer(raw, 0)) {
+                    res.v = Overflow.parse(raw, 0);
+                    res.shift = Overflow.POINTER_SIZE;
+                    break;
+                }
                 ParseStringRes r = Parser.parseString(raw);
                 res.v = r.str;
                 res.shift = r.next;
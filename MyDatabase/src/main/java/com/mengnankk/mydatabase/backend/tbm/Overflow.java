@@ -0,0 +1,189 @@
+package com.mengnankk.mydatabase.backend.tbm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.google.common.primitives.Bytes;
+
+import com.mengnankk.mydatabase.backend.common.SubArray;
+import com.mengnankk.mydatabase.backend.dm.DataManager;
+import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
+import com.mengnankk.mydatabase.backend.utils.Panic;
+import com.mengnankk.mydatabase.backend.utils.Parser;
+import com.mengnankk.mydatabase.common.Error;
+
+/**
+ * Overflow 表示存放在行外的超长字符串
+ * 值被切成若干块，每块单独作为一个 dataitem 插入，基本占满一页（溢出页），前一块指向后一块：
+ * [NextUid 8][Data]
+ * 行内只保存指针：[MARK 4][Length 4][FirstUid 8]，MARK 与字符串的长度前缀位置相同，为负数
+ * 只读取其他列时不必读取溢出链；溢出链属于所在的行版本，该版本被 vacuum 回收时一同释放
+ */
+class Overflow {
+    static final int MARK = -1;
+    static final int POINTER_SIZE = 16;
+
+    private static final int OF_NEXT = 0;
+    private static final int OF_DATA = OF_NEXT+8;
+
+    long uid;
+    int length;
+
+    Overflow(long uid, int length) {
+        this.uid = uid;
+        this.length = length;
+    }
+
+    // 编码后超过页面大小四分之一的字符串存到行外
+    static boolean needed(DataManager dm, byte[] data) {
+        return data.length > dm.pageSize() / 4;
+    }
+
+    /**
+     * 把 data 写成一条溢出链，从最后一块开始写，每块写入时已知下一块的 uid
+     */
+    static Overflow write(DataManager dm, long xid, byte[] data) throws Exception {
+        int chunk = DataItem.maxDataSize(dm.pageSize()) - OF_DATA;
+        int chunks = Math.max((data.length + chunk - 1) / chunk, 1);
+        long next = 0;
+        for(int i = chunks-1; i >= 0; i --) {
+            int from = i * chunk;
+            int to = Math.min(from + chunk, data.length);
+            next = dm.insert(xid, Bytes.concat(Parser.long2Byte(next), Arrays.copyOfRange(data, from, to)));
+        }
+        return new Overflow(next, data.length);
+    }
+
+    static Overflow parse(byte[] raw, int pos) {
+        int length = Parser.parseInt(Arrays.copyOfRange(raw, pos+4, pos+8));
+        long uid = Parser.parseLong(Arrays.copyOfRange(raw, pos+8, pos+16));
+        return new Overflow(uid, length);
+    }
+
+    static boolean isPointer(byte[] raw, int pos) {
+        return raw.length - pos >= 4 && Parser.parseInt(Arrays.copyOfRange(raw, pos, pos+4)) == MARK;
+    }
+
+    byte[] toRaw() {
+        return Bytes.concat(Parser.int2Byte(MARK), Parser.int2Byte(length), Parser.long2Byte(uid));
+    }
+
+    /**
+     * 按块读取溢出链，任一时刻只持有一块
+     */
+    InputStream open(DataManager dm) {
+        return new ChainStream(dm, uid);
+    }
+
+    String readString(DataManager dm) throws Exception {
+        StringBuilder sb = new StringBuilder(length);
+        appendTo(dm, sb);
+        return sb.toString();
+    }
+
+    // 边读边解码追加到 sb，不把整个值拼成一个 byte[]
+    void appendTo(DataManager dm, StringBuilder sb) throws Exception {
+        try(Reader reader = new InputStreamReader(open(dm), StandardCharsets.UTF_8)) {
+            char[] buf = new char[4096];
+            int n;
+            while((n = reader.read(buf)) > 0) {
+                sb.append(buf, 0, n);
+            }
+        }
+    }
+
+    /**
+     * 释放整条溢出链，返回回收的字节数；已释放过的块跳过
+     */
+    int free(DataManager dm) throws Exception {
+        int freed = 0;
+        long cur = uid;
+        while(cur != 0) {
+            byte[] chunk = readChunk(dm, cur);
+            if(chunk == null) {
+                break;
+            }
+            freed += dm.free(cur);
+            cur = Parser.parseLong(Arrays.copyOfRange(chunk, OF_NEXT, OF_DATA));
+        }
+        return freed;
+    }
+
+    private static byte[] readChunk(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        if(di == null) {
+            return null;
+        }
+        try {
+            di.rLock();
+            try {
+                SubArray sa = di.data();
+                return Arrays.copyOfRange(sa.raw, sa.start, sa.end);
+            } finally {
+                di.rUnLock();
+            }
+        } finally {
+            di.release();
+        }
+    }
+
+    private static class ChainStream extends InputStream {
+        private DataManager dm;
+        private long next;
+        private byte[] chunk;
+        private int pos;
+
+        ChainStream(DataManager dm, long first) {
+            this.dm = dm;
+            this.next = first;
+        }
+
+        // 当前块读完时读入下一块，链已读完时返回 false
+        private boolean fill() throws IOException {
+            while(chunk == null || pos >= chunk.length) {
+                if(next == 0) {
+                    return false;
+                }
+                try {
+                    chunk = readChunk(dm, next);
+                } catch(IOException e) {
+                    throw e;
+                } catch(Exception e) {
+                    throw new IOException(e);
+                }
+                if(chunk == null) {
+                    Panic.panic(Error.NullEntryException);
+                }
+                next = Parser.parseLong(Arrays.copyOfRange(chunk, OF_NEXT, OF_DATA));
+                pos = OF_DATA;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if(!fill()) {
+                return -1;
+            }
+            return chunk[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+            if(!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
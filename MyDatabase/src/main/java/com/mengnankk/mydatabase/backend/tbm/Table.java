@@ -6,9 +6,13 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.google.common.primitives.Bytes;
 
+import com.mengnankk.mydatabase.backend.dm.DataManager;
+import com.mengnankk.mydatabase.backend.im.BulkLoader;
 import com.mengnankk.mydatabase.backend.parser.statement.Create;
 import com.mengnankk.mydatabase.backend.parser.statement.Delete;
 import com.mengnankk.mydatabase.backend.parser.statement.Insert;
@@ -20,6 +24,7 @@ import com.mengnankk.mydatabase.backend.tm.TransactionManagerImpl;
 import com.mengnankk.mydatabase.backend.utils.Panic;
 import com.mengnankk.mydatabase.backend.utils.ParseStringRes;
 import com.mengnankk.mydatabase.backend.utils.Parser;
+import com.mengnankk.mydatabase.backend.vm.VersionManager;
 import com.mengnankk.mydatabase.common.Error;
 
 /**
@@ -35,6 +40,8 @@ public class Table {
     byte status;
     long nextUid;
     List<Field> fields = new ArrayList<>();
+    // 写入和清理会改动索引，持读锁；建立索引时持写锁，扫描到的版本和建好的索引一致
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
 
     public static Table loadTable(TableManager tbm, long uid) {
         byte[] raw = null;
@@ -104,6 +111,100 @@ public class Table {
         return this;
     }
 
+    /**
+     * 表、字段和所有行（包括旧版本）的 uid
+     */
+    List<Long> entryUids() throws Exception {
+        List<Long> uids = new ArrayList<>();
+        uids.add(uid);
+        for(Field field : fields) {
+            uids.add(field.uid);
+        }
+        uids.addAll(rowUids());
+        return uids;
+    }
+
+    /**
+     * 所有行（包括旧版本）的 uid，从第一个索引字段的整个范围取得
+     */
+    List<Long> rowUids() throws Exception {
+        for(Field field : fields) {
+            if(field.isIndexed()) {
+                return field.search(Long.MIN_VALUE, Long.MAX_VALUE);
+            }
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * 清理一行旧版本：对所有事务都不可见时，先从各索引中删去指向它的键，再回收其空间
+     * 返回回收的字节数，没有清理时返回 0
+     */
+    int vacuum(long uid, long limit) throws Exception {
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        indexLock.readLock().lock();
+        try {
+            byte[] raw = vm.readDead(uid, limit);
+            if(raw == null) {
+                return 0;
+            }
+            Map<String, Object> entry = parseEntry(raw);
+            for(Field field : fields) {
+                if(field.isIndexed()) {
+                    field.remove(resolve(entry.get(field.fieldName)), uid);
+                }
+            }
+            // 先释放溢出链再回收行，中途崩溃时行仍会被再次清理，已释放的块被跳过
+            int freed = 0;
+            for(Object value : entry.values()) {
+                if(value instanceof Overflow) {
+                    freed += ((Overflow)value).free(dm());
+                }
+            }
+            return freed + vm.purge(uid);
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 为字段 fieldName 建立索引：经已有的索引扫描所有版本，把 (键, uid) 交给 BulkLoader 排序后自底向上建树，
+     * 建好后再写入字段记录。建立期间本表的写入和清理等待
+     */
+    void createIndex(String fieldName) throws Exception {
+        Field fd = null;
+        for(Field f : fields) {
+            if(f.fieldName.equals(fieldName)) {
+                fd = f;
+                break;
+            }
+        }
+        if(fd == null) {
+            throw Error.FieldNotFoundException;
+        }
+        VersionManager vm = ((TableManagerImpl)tbm).vm;
+        indexLock.writeLock().lock();
+        try {
+            if(fd.isIndexed()) {
+                throw Error.FieldAlreadyIndexedException;
+            }
+            BulkLoader loader = new BulkLoader(dm());
+            try {
+                for(long uid : rowUids()) {
+                    byte[] raw = vm.readVersion(uid);
+                    if(raw == null) continue;
+                    Map<String, Object> entry = parseEntry(raw);
+                    loader.add(fd.value2Uid(resolve(entry.get(fd.fieldName))), uid);
+                }
+                fd.setIndex(loader.build());
+            } finally {
+                loader.close();
+            }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
     public int delete(long xid, Delete delete) throws Exception {
         List<Long> uids = parseWhere(delete.where);
         int count = 0;
@@ -135,42 +236,79 @@ public class Table {
 
             ((TableManagerImpl)tbm).vm.delete(xid, uid);
 
+            // 溢出链属于旧版本，新版本重新写一份
             Map<String, Object> entry = parseEntry(raw);
+            for(Map.Entry<String, Object> e : entry.entrySet()) {
+                e.setValue(resolve(e.getValue()));
+            }
             entry.put(fd.fieldName, value);
-            raw = entry2Raw(entry);
-            long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-            
-            count ++;
-
-            for (Field field : fields) {
-                if(field.isIndexed()) {
-                    field.insert(entry.get(field.fieldName), uuid);
+            // 只在写入新版本和索引时持读锁，上面的 delete 可能等待其他事务
+            indexLock.readLock().lock();
+            try {
+                raw = entry2Raw(xid, entry);
+                long uuid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+                for (Field field : fields) {
+                    if(field.isIndexed()) {
+                        field.insert(entry.get(field.fieldName), uuid);
+                    }
                 }
+            } finally {
+                indexLock.readLock().unlock();
             }
+            count ++;
         }
         return count;
     }
 
     public String read(long xid, Select read) throws Exception {
+        List<Field> selected = selectFields(read.fields);
         List<Long> uids = parseWhere(read.where);
         StringBuilder sb = new StringBuilder();
         for (Long uid : uids) {
             byte[] raw = ((TableManagerImpl)tbm).vm.read(xid, uid);
             if(raw == null) continue;
             Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+            printEntry(selected, entry, sb);
+            sb.append("\n");
         }
         return sb.toString();
     }
 
+    // select 的列，* 为全部列；未选中的列存在行外时不会读取其溢出链
+    private List<Field> selectFields(String[] names) throws Exception {
+        if(names == null || names.length == 0 || (names.length == 1 && "*".equals(names[0]))) {
+            return fields;
+        }
+        List<Field> res = new ArrayList<>();
+        for(String name : names) {
+            Field fd = null;
+            for(Field f : fields) {
+                if(f.fieldName.equals(name)) {
+                    fd = f;
+                    break;
+                }
+            }
+            if(fd == null) {
+                throw Error.FieldNotFoundException;
+            }
+            res.add(fd);
+        }
+        return res;
+    }
+
     public void insert(long xid, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
-        byte[] raw = entry2Raw(entry);
-        long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
-        for (Field field : fields) {
-            if(field.isIndexed()) {
-                field.insert(entry.get(field.fieldName), uid);
+        indexLock.readLock().lock();
+        try {
+            byte[] raw = entry2Raw(xid, entry);
+            long uid = ((TableManagerImpl)tbm).vm.insert(xid, raw);
+            for (Field field : fields) {
+                if(field.isIndexed()) {
+                    field.insert(entry.get(field.fieldName), uid);
+                }
             }
+        } finally {
+            indexLock.readLock().unlock();
         }
     }
 
@@ -262,11 +400,17 @@ public class Table {
         return res;
     }
 
-    private String printEntry(Map<String, Object> entry) {
-        StringBuilder sb = new StringBuilder("[");
+    private void printEntry(List<Field> fields, Map<String, Object> entry, StringBuilder sb) throws Exception {
+        sb.append("[");
         for (int i = 0; i < fields.size(); i++) {
             Field field = fields.get(i);
             Object value = entry.get(field.fieldName);
+            if(value instanceof Overflow) {
+                // 溢出链边读边追加
+                ((Overflow)value).appendTo(dm(), sb);
+                sb.append(i == fields.size()-1 ? "]" : ", ");
+                continue;
+            }
             if(field.fieldType.equals("string") && value != null) {
                 // 确保字符串使用UTF-8编码
                 String str = (String)value;
@@ -279,7 +423,18 @@ public class Table {
                 sb.append(", ");
             }
         }
-        return sb.toString();
+    }
+
+    // 存在行外的值读出为字符串，其他值原样返回
+    private Object resolve(Object value) throws Exception {
+        if(value instanceof Overflow) {
+            return ((Overflow)value).readString(dm());
+        }
+        return value;
+    }
+
+    private DataManager dm() {
+        return ((TableManagerImpl)tbm).dm;
     }
 
     private Map<String, Object> parseEntry(byte[] raw) {
@@ -287,7 +442,7 @@ public class Table {
         Map<String, Object> entry = new HashMap<>();
         for (Field field : fields) {
             ParseValueRes r = field.parserValue(Arrays.copyOfRange(raw, pos, raw.length));
-            if(field.fieldType.equals("string") && r.v != null) {
+            if(r.v instanceof String) {
                 // 确保字符串使用UTF-8编码
                 String str = (String)r.v;
                 r.v = new String(str.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
@@ -298,14 +453,21 @@ public class Table {
         return entry;
     }
 
-    private byte[] entry2Raw(Map<String, Object> entry) {
+    /**
+     * 超过页面大小四分之一的字符串先写成溢出链，行内只存指针
+     */
+    private byte[] entry2Raw(long xid, Map<String, Object> entry) throws Exception {
         byte[] raw = new byte[0];
         for (Field field : fields) {
             Object value = entry.get(field.fieldName);
             if(field.fieldType.equals("string") && value != null) {
+                byte[] bytes = ((String)value).getBytes(StandardCharsets.UTF_8);
+                if(Overflow.needed(dm(), bytes)) {
+                    raw = Bytes.concat(raw, Overflow.write(dm(), xid, bytes).toRaw());
+                    continue;
+                }
                 // 确保字符串使用UTF-8编码
-                String str = (String)value;
-                value = new String(str.getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+                value = new String(bytes, StandardCharsets.UTF_8);
             }
             raw = Bytes.concat(raw, field.value2Raw(value));
         }
@@ -3,6 +3,7 @@ package com.mengnankk.mydatabase.backend.tbm;
 import com.mengnankk.mydatabase.backend.dm.DataManager;
 import com.mengnankk.mydatabase.backend.parser.statement.Begin;
 import com.mengnankk.mydatabase.backend.parser.statement.Create;
+import com.mengnankk.mydatabase.backend.parser.statement.CreateIndex;
 import com.mengnankk.mydatabase.backend.parser.statement.Delete;
 import com.mengnankk.mydatabase.backend.parser.statement.Insert;
 import com.mengnankk.mydatabase.backend.parser.statement.Select;
@@ -17,12 +18,17 @@ public interface TableManager {
 
     byte[] show(long xid);
     byte[] create(long xid, Create create) throws Exception;
+    byte[] createIndex(long xid, CreateIndex createIndex) throws Exception;
 
     byte[] insert(long xid, Insert insert) throws Exception;
     byte[] read(long xid, Select select) throws Exception;
     byte[] update(long xid, Update update) throws Exception;
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    void freeze() throws Exception;
+    VacuumStats vacuum() throws Exception;
+    VacuumStats getVacuumStats();
+
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2Byte(0));
@@ -30,7 +36,24 @@ public interface TableManager {
     }
 
     public static TableManager open(String path, VersionManager vm, DataManager dm) {
+        return open(path, vm, dm, 0);
+    }
+
+    /**
+     * freezeInterval > 0 时启动后台线程，每隔 freezeInterval 毫秒冻结一次
+     */
+    public static TableManager open(String path, VersionManager vm, DataManager dm, long freezeInterval) {
+        return open(path, vm, dm, freezeInterval, new VacuumConfig());
+    }
+
+    /**
+     * 同上，vacuumConf.interval > 0 时还启动后台线程定期清理旧版本
+     */
+    public static TableManager open(String path, VersionManager vm, DataManager dm, long freezeInterval, VacuumConfig vacuumConf) {
         Booter booter = Booter.open(path);
-        return new TableManagerImpl(vm, dm, booter);
+        TableManagerImpl tbm = new TableManagerImpl(vm, dm, booter, vacuumConf);
+        tbm.startFreezer(freezeInterval);
+        tbm.startVacuum();
+        return tbm;
     }
 }
@@ -2,18 +2,25 @@ package com.mengnankk.mydatabase.backend.tbm;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.mengnankk.mydatabase.backend.dm.DataManager;
 import com.mengnankk.mydatabase.backend.parser.statement.Begin;
 import com.mengnankk.mydatabase.backend.parser.statement.Create;
+import com.mengnankk.mydatabase.backend.parser.statement.CreateIndex;
 import com.mengnankk.mydatabase.backend.parser.statement.Delete;
 import com.mengnankk.mydatabase.backend.parser.statement.Insert;
 import com.mengnankk.mydatabase.backend.parser.statement.Select;
 import com.mengnankk.mydatabase.backend.parser.statement.Update;
+import com.mengnankk.mydatabase.backend.utils.Panic;
 import com.mengnankk.mydatabase.backend.utils.Parser;
 import com.mengnankk.mydatabase.backend.vm.VersionManager;
 import com.mengnankk.mydatabase.common.Error;
@@ -25,17 +32,80 @@ public class TableManagerImpl implements TableManager {
     private Map<String, Table> tableCache;
     private Map<Long, List<Table>> xidTableCache;
     private Lock lock;
+    private ScheduledExecutorService freezer;
+    private Vacuum vacuum;
     
     TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
+        this(vm, dm, booter, new VacuumConfig());
+    }
+
+    TableManagerImpl(VersionManager vm, DataManager dm, Booter booter, VacuumConfig vacuumConf) {
         this.vm = vm;
         this.dm = dm;
         this.booter = booter;
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
+        this.vacuum = new Vacuum(this, vacuumConf);
         loadTables();
     }
 
+    /**
+     * 冻结所有表中早于冻结上限的事务写下的 XMIN/XMAX，之后截断XID文件
+     */
+    @Override
+    public void freeze() throws Exception {
+        long limit = vm.freezeLimit();
+        Set<Long> abortedRefs = new HashSet<>();
+        for(Table tb : tables()) {
+            for(long uid : tb.entryUids()) {
+                vm.freeze(uid, limit, abortedRefs);
+            }
+        }
+        vm.truncateXids(limit, abortedRefs);
+    }
+
+    @Override
+    public VacuumStats vacuum() throws Exception {
+        return vacuum.run();
+    }
+
+    @Override
+    public VacuumStats getVacuumStats() {
+        return vacuum.getStats();
+    }
+
+    void startVacuum() {
+        vacuum.start();
+    }
+
+    List<Table> tables() {
+        lock.lock();
+        try {
+            return new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void startFreezer(long intervalMillis) {
+        if(intervalMillis <= 0) {
+            return;
+        }
+        freezer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "freezer");
+            t.setDaemon(true);
+            return t;
+        });
+        freezer.scheduleWithFixedDelay(() -> {
+            try {
+                freeze();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
     private void loadTables() {
         long uid = firstTableUid();
         while(uid != 0) {
@@ -112,6 +182,21 @@ public class TableManagerImpl implements TableManager {
             lock.unlock();
         }
     }
+    /**
+     * 为已有数据的表的一个字段建立索引，建立期间该表的写入和清理等待
+     * 索引不属于事务，建立后立即对所有事务可用
+     */
+    @Override
+    public byte[] createIndex(long xid, CreateIndex createIndex) throws Exception {
+        lock.lock();
+        Table table = tableCache.get(createIndex.tableName);
+        lock.unlock();
+        if(table == null) {
+            throw Error.TableNotFoundException;
+        }
+        table.createIndex(createIndex.fieldName);
+        return ("create index " + createIndex.fieldName).getBytes();
+    }
     @Override
     public byte[] insert(long xid, Insert insert) throws Exception {
         lock.lock();
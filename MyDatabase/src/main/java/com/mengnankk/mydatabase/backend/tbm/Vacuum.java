@@ -0,0 +1,107 @@
+package com.mengnankk.mydatabase.backend.tbm;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.mengnankk.mydatabase.backend.utils.Panic;
+
+/**
+ * 清理旧版本
+ *
+ * UPDATE 和 DELETE 只设置 XMAX，旧版本和指向它的索引键一直留着。
+ * 以 VM 的冻结上限为界，XMAX 早于它且已提交、或 XMIN 早于它且已回滚的版本对所有事务都不可见，
+ * 先从各索引中删去它的键，再把它的 DataItem 标记为非法。
+ * 每检查 batchRows 行暂停 batchDelay 毫秒，避免长时间占用页面和索引
+ */
+class Vacuum {
+    private TableManagerImpl tbm;
+    private VacuumConfig conf;
+    private Lock lock;                      // 同一时刻只进行一轮清理
+    private ScheduledExecutorService vacuumer;
+
+    private AtomicLong runs, scannedRows, reclaimedRows, reclaimedBytes;
+
+    Vacuum(TableManagerImpl tbm, VacuumConfig conf) {
+        this.tbm = tbm;
+        this.conf = conf;
+        this.lock = new ReentrantLock();
+        this.runs = new AtomicLong(0);
+        this.scannedRows = new AtomicLong(0);
+        this.reclaimedRows = new AtomicLong(0);
+        this.reclaimedBytes = new AtomicLong(0);
+    }
+
+    /**
+     * 清理所有表一轮，返回本轮的统计
+     */
+    VacuumStats run() throws Exception {
+        lock.lock();
+        try {
+            long limit = tbm.vm.freezeLimit();
+            VacuumStats round = new VacuumStats();
+            round.runs = 1;
+            int inBatch = 0;
+            for(Table tb : tbm.tables()) {
+                for(long uid : tb.rowUids()) {
+                    int freed = tb.vacuum(uid, limit);
+                    round.scannedRows ++;
+                    if(freed > 0) {
+                        round.reclaimedRows ++;
+                        round.reclaimedBytes += freed;
+                    }
+                    if(++ inBatch >= conf.batchRows) {
+                        inBatch = 0;
+                        pause();
+                    }
+                }
+            }
+            runs.incrementAndGet();
+            scannedRows.addAndGet(round.scannedRows);
+            reclaimedRows.addAndGet(round.reclaimedRows);
+            reclaimedBytes.addAndGet(round.reclaimedBytes);
+            return round;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void pause() throws InterruptedException {
+        if(conf.batchDelay > 0) {
+            Thread.sleep(conf.batchDelay);
+        }
+    }
+
+    // 每隔 interval 毫秒清理一轮，<= 0 时不启动
+    void start() {
+        if(conf.interval <= 0) {
+            return;
+        }
+        vacuumer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vacuum");
+            t.setDaemon(true);
+            return t;
+        });
+        vacuumer.scheduleWithFixedDelay(() -> {
+            try {
+                run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }, conf.interval, conf.interval, TimeUnit.MILLISECONDS);
+    }
+
+    VacuumStats getStats() {
+        VacuumStats stats = new VacuumStats();
+        stats.runs = runs.get();
+        stats.scannedRows = scannedRows.get();
+        stats.reclaimedRows = reclaimedRows.get();
+        stats.reclaimedBytes = reclaimedBytes.get();
+        return stats;
+    }
+}
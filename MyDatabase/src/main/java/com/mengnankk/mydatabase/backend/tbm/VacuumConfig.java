@@ -0,0 +1,13 @@
+package com.mengnankk.mydatabase.backend.tbm;
+
+/**
+ * 旧版本清理的可调参数，由 Launcher 根据命令行填写，未指定的使用默认值
+ */
+public class VacuumConfig {
+    // 后台清理的间隔（毫秒），<= 0 时不启动后台清理
+    public long interval = 0;
+    // 每批检查的行数，每批之后暂停一次
+    public int batchRows = 1000;
+    // 两批之间暂停的毫秒数，<= 0 时不暂停
+    public long batchDelay = 10;
+}
@@ -0,0 +1,11 @@
+package com.mengnankk.mydatabase.backend.tbm;
+
+/**
+ * 旧版本清理的统计信息
+ */
+public class VacuumStats {
+    public long runs;               // 清理的轮数
+    public long scannedRows;        // 检查过的行数
+    public long reclaimedRows;      // 回收的旧版本数
+    public long reclaimedBytes;     // 回收的字节数
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.Set;
 
 import com.mengnankk.mydatabase.backend.utils.Panic;
 import com.mengnankk.mydatabase.common.Error;
@@ -13,10 +14,13 @@ import com.mengnankk.mydatabase.common.Error;
 public interface TransactionManager {
     long begin();
     void commit(long xid);
+    void commitReadOnly(long xid);
     void abort(long xid);
     boolean isActive(long xid);
     boolean isCommitted(long xid);
     boolean isAborted(long xid);
+    long freezeLimit(long limit);
+    void truncate(long base, Set<Long> aborted);
     void close();
 
     public static TransactionManagerImpl create(String path) {
@@ -50,7 +54,7 @@ public interface TransactionManager {
             Panic.panic(e);
         }
         
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(f, raf, fc);
     }
 
     public static TransactionManagerImpl open(String path) {
@@ -58,6 +62,8 @@ public interface TransactionManager {
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
         }
+        // 截断时中断留下的临时文件，原文件仍然完整
+        new File(f.getPath()+TransactionManagerImpl.TMP_SUFFIX).delete();
         if(!f.canRead() || !f.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
@@ -71,6 +77,6 @@ public interface TransactionManager {
            Panic.panic(e);
         }
 
-        return new TransactionManagerImpl(raf, fc);
+        return new TransactionManagerImpl(f, raf, fc);
     }
 }
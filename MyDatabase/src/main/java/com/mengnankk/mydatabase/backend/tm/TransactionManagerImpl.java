@@ -1,16 +1,36 @@
 package com.mengnankk.mydatabase.backend.tm;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.mengnankk.mydatabase.backend.utils.Panic;
 import com.mengnankk.mydatabase.backend.utils.Parser;
 import com.mengnankk.mydatabase.common.Error;
 
+/**
+ * XID文件结构：[XIDCounter 8] [Status1] [Status2] ... [StatusN]
+ * XIDCounter 为已经预留的XID数，XID成块预留，文件随之延长，未用到的XID状态为活跃
+ * 重启后从 XIDCounter 之后继续分配，上次预留而没有用到的XID被跳过，它们没有写过任何数据
+ *
+ * 冻结之后截断过的XID文件结构：
+ * [Magic 8] [XIDCounter 8] [BaseXID 8] [AbortedCount 4] [AbortedXID1 8] ... [StatusBase] ... [StatusN]
+ * 早于 BaseXID 的事务都已结束，其中仍被引用的已回滚事务记在 AbortedXID 中，其余视为已提交
+ *
+ * 提交和回滚写入状态后合并刷盘：并发的多个状态变更只需一次 fsync
+ * 只读事务的提交只更新内存，崩溃后它仍显示为活跃，但它没有修改过数据，不影响恢复和可见性
+ */
 public class TransactionManagerImpl implements TransactionManager {
 
     // XID文件头长度
@@ -18,6 +38,13 @@ public class TransactionManagerImpl implements TransactionManager {
     // 每个事务的占用长度
     private static final int XID_FIELD_SIZE = 1;
 
+    // 截断过的XID文件头，Magic 为负数，不会与旧格式的 XIDCounter 混淆
+    private static final long XID_MAGIC = 0xDB1071D000000000L;
+    private static final int OF_EXT_COUNTER = 8;
+    private static final int OF_EXT_BASE = OF_EXT_COUNTER + 8;
+    private static final int OF_EXT_ABORTED_COUNT = OF_EXT_BASE + 8;
+    private static final int OF_EXT_ABORTED = OF_EXT_ABORTED_COUNT + 4;
+
     // 事务的三种状态
     private static final byte FIELD_TRAN_ACTIVE   = 0;
 	private static final byte FIELD_TRAN_COMMITTED = 1;
@@ -27,22 +54,44 @@ public class TransactionManagerImpl implements TransactionManager {
     public static final long SUPER_XID = 0;
 
     static final String XID_SUFFIX = ".xid";
-    
+    static final String TMP_SUFFIX = ".tmp";
+
+    // 每次预留的XID数
+    private static final int XID_RESERVE_BLOCK = 1024;
+
+    private final File f;
     private RandomAccessFile file;
     private FileChannel fc;
-    private long xidCounter;
+    private long xidCounter;                // 已分配的最大XID
+    private long xidReserved;               // 已在文件中预留的最大XID
+    private long firstXid;                  // 本次启动后分配的第一个XID，之前仍为活跃的事务已随崩溃结束
     private Lock counterLock;
 
-    TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
+    private int counterOffset;              // XIDCounter 在文件中的位置
+    private long headerLength;
+    private volatile long[] oldAborted;     // 早于 BaseXID 的已回滚事务，有序
+    private volatile XidStatusTable statusTable;    // XID文件中事务状态的内存副本，写文件后同步更新
+    private final ReadWriteLock fileLock;           // 截断时替换文件，期间不能写状态
+
+    private final AtomicLong writeSeq = new AtomicLong();   // 已写入文件的状态变更数
+    private volatile long syncedSeq;                        // 已刷盘的状态变更数
+    private final Lock syncLock = new ReentrantLock();
+
+    TransactionManagerImpl(File f, RandomAccessFile raf, FileChannel fc) {
+        this.f = f;
         this.file = raf;
         this.fc = fc;
         counterLock = new ReentrantLock();
+        fileLock = new ReentrantReadWriteLock();
         checkXIDCounter();
+        loadStatus();
+        firstXid = xidCounter + 1;
     }
 
     /**
      * 检查XID文件是否合法
      * 读取XID_FILE_HEADER中的xidcounter，根据它计算文件的理论长度，对比实际长度
+     * 预留时先延长文件再写头部，文件比头部记录的长说明预留时崩溃，截掉多出的部分
      */
     private void checkXIDCounter() {
         long fileLen = 0;
@@ -55,68 +104,138 @@ public class TransactionManagerImpl implements TransactionManager {
             Panic.panic(Error.BadXIDFileException);
         }
 
-        ByteBuffer buf = ByteBuffer.allocate(LEN_XID_HEADER_LENGTH);
+        long base = 1;
+        long[] aborted = new long[0];
         try {
-            fc.position(0);
-            fc.read(buf);
+            ByteBuffer buf = ByteBuffer.allocate(OF_EXT_ABORTED);
+            fc.read(buf, 0);
+            if(buf.getLong(0) == XID_MAGIC) {
+                if(fileLen < OF_EXT_ABORTED) {
+                    Panic.panic(Error.BadXIDFileException);
+                }
+                counterOffset = OF_EXT_COUNTER;
+                base = buf.getLong(OF_EXT_BASE);
+                aborted = new long[buf.getInt(OF_EXT_ABORTED_COUNT)];
+                ByteBuffer abortedBuf = ByteBuffer.allocate(aborted.length * 8);
+                fc.read(abortedBuf, OF_EXT_ABORTED);
+                abortedBuf.flip();
+                abortedBuf.asLongBuffer().get(aborted);
+                headerLength = OF_EXT_ABORTED + aborted.length * 8L;
+            } else {
+                counterOffset = 0;
+                headerLength = LEN_XID_HEADER_LENGTH;
+            }
+            this.xidReserved = buf.getLong(counterOffset);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.xidCounter = Parser.parseLong(buf.array());
-        long end = getXidPosition(this.xidCounter + 1);
-        if(end != fileLen) {
+        this.xidCounter = xidReserved;
+        this.oldAborted = aborted;
+        this.statusTable = new XidStatusTable(base);
+        long end = getXidPosition(this.xidReserved + 1);
+        if(end > fileLen) {
             Panic.panic(Error.BadXIDFileException);
         }
+        if(end < fileLen) {
+            try {
+                fc.truncate(end);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    // 启动时把XID文件中所有事务的状态读入内存
+    private void loadStatus() {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        long xid = statusTable.base();
+        try {
+            while(xid <= xidCounter) {
+                buf.clear();
+                int n = fc.read(buf, getXidPosition(xid));
+                if(n <= 0) {
+                    Panic.panic(Error.BadXIDFileException);
+                }
+                for(int i = 0; i < n && xid <= xidCounter; i ++, xid ++) {
+                    byte status = buf.get(i);
+                    if(status != FIELD_TRAN_ACTIVE) {
+                        statusTable.set(xid, status);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
     }
 
     // 根据事务xid取得其在xid文件中对应的位置
     private long getXidPosition(long xid) {
-        return LEN_XID_HEADER_LENGTH + (xid-1)*XID_FIELD_SIZE;
+        return headerLength + (xid-statusTable.base())*XID_FIELD_SIZE;
     }
 
     // 更新xid事务的状态为status
     private void updateXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
         byte[] tmp = new byte[XID_FIELD_SIZE];
         tmp[0] = status;
         ByteBuffer buf = ByteBuffer.wrap(tmp);
+        fileLock.readLock().lock();
         try {
-            fc.position(offset);
-            fc.write(buf);
+            fc.write(buf, getXidPosition(xid));
+            groupSync(writeSeq.incrementAndGet());
+            statusTable.set(xid, status);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
         }
+    }
+    // 保证第 seq 个状态变更已刷盘，一次 fsync 覆盖此前所有已写入的变更
+    private void groupSync(long seq) {
+        if(seq <= syncedSeq) {
+            return;
+        }
+        syncLock.lock();
         try {
+            if(seq <= syncedSeq) {
+                return;
+            }
+            long target = writeSeq.get();
             fc.force(false);
+            syncedSeq = target;
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            syncLock.unlock();
         }
     }
 
-    // 将XID加一，并更新XID Header
-    private void incrXIDCounter() {
-        xidCounter ++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
-        try {
-            fc.position(0);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+    // 再预留一块XID：先把文件延长并落盘，再更新 XID Header
+    private void reserveXIDs() {
+        long reserved = xidReserved + XID_RESERVE_BLOCK;
+        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(reserved));
+        fileLock.readLock().lock();
         try {
+            file.setLength(getXidPosition(reserved + 1));
+            fc.force(false);
+            fc.write(buf, counterOffset);
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.readLock().unlock();
         }
+        xidReserved = reserved;
     }
 
-    // 开始一个事务，并返回XID
+    // 开始一个事务，并返回XID，预留的XID用完时才写文件
     public long begin() {
         counterLock.lock();
         try {
             long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            incrXIDCounter();
+            if(xid > xidReserved) {
+                reserveXIDs();
+            }
+            xidCounter = xid;
             return xid;
         } finally {
             counterLock.unlock();
@@ -128,22 +247,109 @@ public class TransactionManagerImpl implements TransactionManager {
         updateXID(xid, FIELD_TRAN_COMMITTED);
     }
 
+    // 提交没有修改过数据的事务，只更新内存中的状态
+    public void commitReadOnly(long xid) {
+        fileLock.readLock().lock();
+        try {
+            statusTable.set(xid, FIELD_TRAN_COMMITTED);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
     // 回滚XID事务
     public void abort(long xid) {
         updateXID(xid, FIELD_TRAN_ABORTED);
     }
 
-    // 检测XID事务是否处于status状态
+    // 检测XID事务是否处于status状态，只读内存中的状态表
     private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
+        XidStatusTable table = statusTable;
+        if(xid < table.base()) {
+            boolean aborted = Arrays.binarySearch(oldAborted, xid) >= 0;
+            return status == (aborted ? FIELD_TRAN_ABORTED : FIELD_TRAN_COMMITTED);
+        }
+        return table.get(xid) == status;
+    }
+
+    /**
+     * 不超过 limit 的可以截断的XID上限：该XID之前的事务都已结束
+     * 本次启动之前仍为活跃的事务已随崩溃结束，不计入
+     */
+    public long freezeLimit(long limit) {
+        counterLock.lock();
         try {
-            fc.position(offset);
-            fc.read(buf);
+            limit = Math.min(limit, xidCounter + 1);
+        } finally {
+            counterLock.unlock();
+        }
+        XidStatusTable table = statusTable;
+        for(long xid = Math.max(table.base(), firstXid); xid < limit; xid ++) {
+            if(table.get(xid) == FIELD_TRAN_ACTIVE) {
+                return xid;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * 截断 base 之前的事务状态，base 之前的事务必须都已结束，且其修改的数据都已冻结：
+     * 已提交事务写下的 XMIN 改成了 SUPER_XID，仍被引用的已回滚事务记在 aborted 中
+     * 新文件写好并落盘后原子地替换原文件
+     */
+    public void truncate(long base, Set<Long> aborted) {
+        counterLock.lock();
+        fileLock.writeLock().lock();
+        try {
+            XidStatusTable old = statusTable;
+            if(base <= old.base()) {
+                return;
+            }
+            long[] keep = aborted.stream().filter(x -> x < base).mapToLong(Long::longValue).sorted().toArray();
+            long newHeaderLength = OF_EXT_ABORTED + keep.length * 8L;
+            ByteBuffer header = ByteBuffer.allocate((int)newHeaderLength);
+            header.putLong(XID_MAGIC).putLong(xidReserved).putLong(base).putInt(keep.length);
+            for(long x : keep) {
+                header.putLong(x);
+            }
+            header.flip();
+
+            File tmp = new File(f.getPath() + TMP_SUFFIX);
+            try(RandomAccessFile tmpRaf = new RandomAccessFile(tmp, "rw")) {
+                FileChannel tmpFc = tmpRaf.getChannel();
+                tmpRaf.setLength(0);
+                tmpFc.write(header, 0);
+                long from = getXidPosition(base);
+                long size = fc.size();
+                long copied = 0;
+                while(copied < size - from) {
+                    copied += fc.transferTo(from + copied, size - from - copied, tmpFc.position(newHeaderLength + copied));
+                }
+                tmpFc.force(false);
+            }
+            fc.close();
+            file.close();
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            file = new RandomAccessFile(f, "rw");
+            fc = file.getChannel();
+
+            XidStatusTable table = new XidStatusTable(base);
+            for(long xid = base; xid <= xidReserved; xid ++) {
+                byte status = old.get(xid);
+                if(status != FIELD_TRAN_ACTIVE) {
+                    table.set(xid, status);
+                }
+            }
+            counterOffset = OF_EXT_COUNTER;
+            headerLength = newHeaderLength;
+            oldAborted = keep;
+            statusTable = table;
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.writeLock().unlock();
+            counterLock.unlock();
         }
-        return buf.array()[0] == status;
     }
 
     public boolean isActive(long xid) {
@@ -162,11 +368,14 @@ public class TransactionManagerImpl implements TransactionManager {
     }
 
     public void close() {
+        fileLock.writeLock().lock();
         try {
             fc.close();
             file.close();
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            fileLock.writeLock().unlock();
         }
     }
 
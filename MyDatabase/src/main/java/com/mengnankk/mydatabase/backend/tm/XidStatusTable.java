@@ -0,0 +1,73 @@
+package com.mengnankk.mydatabase.backend.tm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 内存中的事务状态表，每个事务占 2 位，一个 long 存 32 个事务
+ * 按页分配，随 XID 增长追加新页；读取无锁，状态为 0（活跃）的事务不必写入
+ * 表从 base 开始，更早的事务由 TransactionManagerImpl 另行处理
+ */
+class XidStatusTable {
+    private static final int BITS = 2;
+    private static final int XIDS_PER_WORD = Long.SIZE / BITS;
+    private static final int WORDS_PER_PAGE = 1 << 12;
+    private static final long XIDS_PER_PAGE = (long)XIDS_PER_WORD * WORDS_PER_PAGE;
+    private static final long MASK = (1L << BITS) - 1;
+
+    private final long base;
+    private volatile AtomicLongArray[] pages = new AtomicLongArray[0];
+
+    XidStatusTable(long base) {
+        this.base = base;
+    }
+
+    long base() {
+        return base;
+    }
+
+    byte get(long xid) {
+        long idx = xid - base;
+        AtomicLongArray[] ps = pages;
+        int p = (int)(idx / XIDS_PER_PAGE);
+        if(p >= ps.length) {
+            return 0;
+        }
+        int bit = (int)(idx % XIDS_PER_WORD) * BITS;
+        long word = ps[p].get((int)(idx % XIDS_PER_PAGE / XIDS_PER_WORD));
+        return (byte)((word >>> bit) & MASK);
+    }
+
+    void set(long xid, byte status) {
+        long idx = xid - base;
+        AtomicLongArray page = page((int)(idx / XIDS_PER_PAGE));
+        int w = (int)(idx % XIDS_PER_PAGE / XIDS_PER_WORD);
+        int bit = (int)(idx % XIDS_PER_WORD) * BITS;
+        while(true) {
+            long old = page.get(w);
+            long word = (old & ~(MASK << bit)) | ((status & MASK) << bit);
+            if(page.compareAndSet(w, old, word)) {
+                return;
+            }
+        }
+    }
+
+    private AtomicLongArray page(int p) {
+        AtomicLongArray[] ps = pages;
+        if(p < ps.length) {
+            return ps[p];
+        }
+        synchronized(this) {
+            ps = pages;
+            if(p >= ps.length) {
+                AtomicLongArray[] grown = Arrays.copyOf(ps, p + 1);
+                for(int i = ps.length; i <= p; i ++) {
+                    grown[i] = new AtomicLongArray(WORDS_PER_PAGE);
+                }
+                pages = grown;
+                ps = grown;
+            }
+            return ps[p];
+        }
+    }
+}
@@ -1,9 +1,18 @@
 package com.mengnankk.mydatabase.backend.utils;
 
 public class Types {
-    public static long addressToUid(int pgno, short offset) {
+    // pos 为页内位置：旧格式页为字节偏移，槽式页为 [Gen][SlotNo]
+    public static long addressToUid(int pgno, int pos) {
         long u0 = (long)pgno;
-        long u1 = (long)offset;
+        long u1 = pos & 0xFFFFFFFFL;
         return u0 << 32 | u1;
     }
+
+    public static int uidToPgno(long uid) {
+        return (int)(uid >>> 32);
+    }
+
+    public static int uidToPos(long uid) {
+        return (int)uid;
+    }
 }
@@ -1,17 +1,25 @@
 package com.mengnankk.mydatabase.backend.vm;
 
 import java.util.Arrays;
+import java.util.Set;
 
 import com.google.common.primitives.Bytes;
 
 import com.mengnankk.mydatabase.backend.common.SubArray;
 import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
+import com.mengnankk.mydatabase.backend.dm.page.Page;
+import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+import com.mengnankk.mydatabase.backend.tm.TransactionManagerImpl;
 import com.mengnankk.mydatabase.backend.utils.Parser;
 
 /**
  * VM向上层抽象出entry
  * entry结构：
  * [XMIN] [XMAX] [data]
+ *
+ * XMIN/XMAX 的最高两位用作提示位，记录已经查到的最终状态：
+ * XMIN 的 bit63 表示 XMIN 已提交；XMAX 的 bit63 表示 XMAX 已提交，bit62 表示 XMAX 已回滚
+ * 提示位在第一次查到状态时顺便写入，不记日志，丢失了也只是重新查一次 TM
  */
 public class Entry {
 
@@ -19,6 +27,10 @@ public class Entry {
     private static final int OF_XMAX = OF_XMIN+8;
     private static final int OF_DATA = OF_XMAX+8;
 
+    private static final long HINT_COMMITTED = 1L << 63;
+    private static final long HINT_ABORTED = 1L << 62;
+    private static final long HINT_MASK = HINT_COMMITTED | HINT_ABORTED;
+
     private long uid;
     private DataItem dataItem;
     private VersionManager vm;
@@ -67,25 +79,104 @@ public class Entry {
     }
 
     public long getXmin() {
-        dataItem.rLock();
+        return xidOf(rawXmin());
+    }
+
+    public long getXmax() {
+        return xidOf(rawXmax());
+    }
+
+    // 带提示位的 XMIN/XMAX
+    long rawXmin() {
+        return readLong(OF_XMIN);
+    }
+
+    long rawXmax() {
+        return readLong(OF_XMAX);
+    }
+
+    static long xidOf(long raw) {
+        return raw & ~HINT_MASK;
+    }
+
+    /**
+     * rawXmin 对应的事务是否已提交，有提示位时不查 TM
+     */
+    boolean isXminCommitted(TransactionManager tm, long rawXmin) {
+        if((rawXmin & HINT_COMMITTED) != 0) {
+            return true;
+        }
+        long xmin = xidOf(rawXmin);
+        if(!tm.isCommitted(xmin)) {
+            return false;
+        }
+        if(xmin != TransactionManagerImpl.SUPER_XID) {
+            setHint(OF_XMIN, rawXmin, HINT_COMMITTED);
+        }
+        return true;
+    }
+
+    /**
+     * rawXmax 对应的事务是否已提交，有提示位时不查 TM
+     */
+    boolean isXmaxCommitted(TransactionManager tm, long rawXmax) {
+        if((rawXmax & HINT_COMMITTED) != 0) {
+            return true;
+        }
+        if((rawXmax & HINT_ABORTED) != 0) {
+            return false;
+        }
+        long xmax = xidOf(rawXmax);
+        if(xmax == 0) {
+            return tm.isCommitted(xmax);
+        }
+        if(tm.isCommitted(xmax)) {
+            setHint(OF_XMAX, rawXmax, HINT_COMMITTED);
+            return true;
+        }
+        if(tm.isAborted(xmax)) {
+            setHint(OF_XMAX, rawXmax, HINT_ABORTED);
+        }
+        return false;
+    }
+
+    // 字段仍为 expect 时写入提示位，与修改该 entry 的操作互斥
+    // 提示位都在大端存放的最高字节中，只改这一个字节，不分配临时数组
+    private void setHint(int of, long expect, long hint) {
+        dataItem.lock();
+        Page pg = dataItem.page();
+        pg.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMIN, sa.start+OF_XMAX));
+            if(getLong(sa, of) != expect) {
+                return;
+            }
+            sa.raw[sa.start+of] |= (byte)(hint >>> 56);
+            pg.setDirty(true);
         } finally {
-            dataItem.rUnLock();
+            pg.rUnLock();
+            dataItem.unlock();
         }
     }
 
-    public long getXmax() {
+    private long readLong(int of) {
         dataItem.rLock();
         try {
-            SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA));
+            return getLong(dataItem.data(), of);
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    // 按大端读出 of 处的 long，调用者持有 dataItem 的锁
+    private static long getLong(SubArray sa, int of) {
+        long v = 0;
+        for(int i = sa.start+of; i < sa.start+of+8; i ++) {
+            v = (v << 8) | (sa.raw[i] & 0xFF);
+        }
+        return v;
+    }
+
     public void setXmax(long xid) {
         dataItem.before();
         try {
@@ -96,6 +187,49 @@ public class Entry {
         }
     }
 
+    /**
+     * 冻结：早于 limit 的已提交 XMIN 改为 SUPER_XID，早于 limit 的已回滚 XMAX 清零
+     * 仍引用早于 limit 的已回滚事务的 XMIN 无法改写，记入 abortedRefs
+     * 修改以 SUPER_XID 的名义记日志
+     */
+    public void freeze(TransactionManager tm, long limit, Set<Long> abortedRefs) {
+        long xmin = getXmin();
+        long xmax = getXmax();
+        boolean freezeXmin = xmin != TransactionManagerImpl.SUPER_XID && xmin < limit && tm.isCommitted(xmin);
+        boolean clearXmax = xmax != 0 && xmax < limit && tm.isAborted(xmax);
+        if(xmin != TransactionManagerImpl.SUPER_XID && xmin < limit && tm.isAborted(xmin)) {
+            abortedRefs.add(xmin);
+        }
+        if(!freezeXmin && !clearXmax) {
+            return;
+        }
+        dataItem.before();
+        try {
+            SubArray sa = dataItem.data();
+            if(freezeXmin) {
+                System.arraycopy(Parser.long2Byte(TransactionManagerImpl.SUPER_XID), 0, sa.raw, sa.start+OF_XMIN, 8);
+            }
+            if(clearXmax && xidOf(Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start+OF_XMAX, sa.start+OF_DATA))) == xmax) {
+                System.arraycopy(Parser.long2Byte(0), 0, sa.raw, sa.start+OF_XMAX, 8);
+            }
+        } finally {
+            dataItem.after(TransactionManagerImpl.SUPER_XID);
+        }
+    }
+
+    /**
+     * 是否对所有事务都不可见：XMAX 早于 limit 且已提交，或 XMIN 早于 limit 且已回滚
+     */
+    boolean isDead(TransactionManager tm, long limit) {
+        long xmin = getXmin();
+        if(xmin != TransactionManagerImpl.SUPER_XID && xmin < limit && tm.isAborted(xmin)) {
+            return true;
+        }
+        long rawXmax = rawXmax();
+        long xmax = xidOf(rawXmax);
+        return xmax != 0 && xmax < limit && isXmaxCommitted(tm, rawXmax);
+    }
+
     public long getUid() {
         return uid;
     }
@@ -1,7 +1,6 @@
 package com.mengnankk.mydatabase.backend.vm;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 import com.mengnankk.mydatabase.backend.tm.TransactionManagerImpl;
 
@@ -9,19 +8,21 @@ import com.mengnankk.mydatabase.backend.tm.TransactionManagerImpl;
 public class Transaction {
     public long xid;
     public int level;
-    public Map<Long, Boolean> snapshot;
+    // 快照：开始时其他活跃事务的XID，有序，与其他事务共享，不可修改
+    // [snapshotXmin, xid) 之外的事务不在快照中
+    public long[] snapshot;
+    public long snapshotXmin;
     public Exception err;
     public boolean autoAborted;
+    public boolean written;         // 是否插入或删除过数据，只读事务提交时不必持久化状态
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    public static Transaction newTransaction(long xid, int level, long[] active) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
         if(level != 0) {
-            t.snapshot = new HashMap<>();
-            for(Long x : active.keySet()) {
-                t.snapshot.put(x, true);
-            }
+            t.snapshot = active;
+            t.snapshotXmin = active.length == 0 ? xid : active[0];
         }
         return t;
     }
@@ -30,6 +31,9 @@ public class Transaction {
         if(xid == TransactionManagerImpl.SUPER_XID) {
             return false;
         }
-        return snapshot.containsKey(xid);
+        if(xid < snapshotXmin || xid >= this.xid) {
+            return false;
+        }
+        return Arrays.binarySearch(snapshot, xid) >= 0;
     }
 }
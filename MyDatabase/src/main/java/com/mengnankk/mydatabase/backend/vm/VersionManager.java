@@ -1,5 +1,7 @@
 package com.mengnankk.mydatabase.backend.vm;
 
+import java.util.Set;
+
 import com.mengnankk.mydatabase.backend.dm.DataManager;
 import com.mengnankk.mydatabase.backend.tm.TransactionManager;
 
@@ -12,6 +14,14 @@ public interface VersionManager {
     void commit(long xid) throws Exception;
     void abort(long xid);
 
+    long freezeLimit();
+    void freeze(long uid, long limit, Set<Long> abortedRefs) throws Exception;
+    void truncateXids(long limit, Set<Long> abortedRefs);
+
+    byte[] readDead(long uid, long limit) throws Exception;
+    byte[] readVersion(long uid) throws Exception;
+    int purge(long uid) throws Exception;
+
     public static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
     }
@@ -1,7 +1,9 @@
 package com.mengnankk.mydatabase.backend.vm;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -17,14 +19,16 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     TransactionManager tm;
     DataManager dm;
     Map<Long, Transaction> activeTransaction;
-    Lock lock;
+    Lock lock;                              // 保护 activeXids 的修改，BEGIN 时分配XID与取快照是原子的
+    private volatile long[] activeXids;     // 活跃事务的XID，有序，写时复制，可直接作为快照
     LockTable lt;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new ConcurrentHashMap<>();
+        this.activeXids = new long[0];
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
@@ -32,9 +36,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
@@ -63,23 +65,20 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
         }
 
+        t.written = true;
         byte[] raw = Entry.wrapEntryRaw(xid, data);
         return dm.insert(xid, raw);
     }
 
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         if(t.err != null) {
             throw t.err;
@@ -123,6 +122,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
                 throw t.err;
             }
 
+            t.written = true;
             entry.setXmax(xid);
             return true;
 
@@ -136,7 +136,12 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lock.lock();
         try {
             long xid = tm.begin();
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+            long[] active = activeXids;
+            Transaction t = Transaction.newTransaction(xid, level, active);
+            // 新的XID总是最大的，追加在末尾仍然有序
+            long[] grown = Arrays.copyOf(active, active.length + 1);
+            grown[active.length] = xid;
+            activeXids = grown;
             activeTransaction.put(xid, t);
             return xid;
         } finally {
@@ -146,9 +151,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         try {
             if(t.err != null) {
@@ -160,12 +163,16 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(n);
         }
 
-        lock.lock();
-        activeTransaction.remove(xid);
-        lock.unlock();
-
+        // 先写入提交状态再释放行锁、移出活跃表：等待行锁的事务和新快照都不会看到一个还未提交的已结束事务
+        if(t.written) {
+            // 事务的日志落盘之后才能标记为已提交
+            dm.flushLog();
+            tm.commit(xid);
+        } else {
+            tm.commitReadOnly(xid);
+        }
         lt.remove(xid);
-        tm.commit(xid);
+        removeActive(xid);
     }
 
     @Override
@@ -174,16 +181,137 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     }
 
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
         Transaction t = activeTransaction.get(xid);
+        if(!t.autoAborted) {
+            tm.abort(xid);
+            lt.remove(xid);
+        }
         if(!autoAborted) {
-            activeTransaction.remove(xid);
+            removeActive(xid);
         }
-        lock.unlock();
+    }
 
-        if(t.autoAborted) return;
-        lt.remove(xid);
-        tm.abort(xid);
+    /**
+     * 可以冻结的XID上限：早于它的事务在所有活跃事务开始之前就已结束，
+     * 对所有活跃事务而言其修改要么都可见要么都不可见
+     */
+    @Override
+    public long freezeLimit() {
+        long limit = Long.MAX_VALUE;
+        lock.lock();
+        try {
+            long[] active = activeXids;
+            if(active.length > 0) {
+                limit = active[0];
+            }
+            for(Transaction t : activeTransaction.values()) {
+                if(t.snapshot != null) {
+                    limit = Math.min(limit, t.snapshotXmin);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        // 已从活跃表中移除、但还没写入提交或回滚状态的事务由 TM 排除
+        return tm.freezeLimit(limit);
+    }
+
+    @Override
+    public void freeze(long uid, long limit, Set<Long> abortedRefs) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return;
+            }
+            throw e;
+        }
+        try {
+            entry.freeze(tm, limit, abortedRefs);
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 冻结完成后截断XID文件
+     * 先做检查点，冻结之前的日志不会再被重做，恢复时不会把冻结过的数据改回去
+     */
+    @Override
+    public void truncateXids(long limit, Set<Long> abortedRefs) {
+        dm.checkpoint();
+        tm.truncate(limit, abortedRefs);
+    }
+
+    /**
+     * 不检查可见性，返回 uid 对应版本的内容，版本已被回收时返回 null
+     * 建索引时用，索引中要有每一个版本
+     */
+    @Override
+    public byte[] readVersion(long uid) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            }
+            throw e;
+        }
+        try {
+            return entry.data();
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * uid 对应的版本对所有事务都不可见时返回其内容，否则返回 null
+     * limit 取自 freezeLimit()，早于它结束的事务对所有活跃事务的可见性都已确定
+     */
+    @Override
+    public byte[] readDead(long uid, long limit) throws Exception {
+        Entry entry = null;
+        try {
+            entry = super.get(uid);
+        } catch(Exception e) {
+            if(e == Error.NullEntryException) {
+                return null;
+            }
+            throw e;
+        }
+        try {
+            return entry.isDead(tm, limit) ? entry.data() : null;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 回收 readDead() 确认过的版本，返回回收的字节数
+     */
+    @Override
+    public int purge(long uid) throws Exception {
+        return dm.free(uid);
+    }
+
+    private void removeActive(long xid) {
+        lock.lock();
+        try {
+            activeTransaction.remove(xid);
+            long[] active = activeXids;
+            int i = Arrays.binarySearch(active, xid);
+            if(i < 0) {
+                return;
+            }
+            long[] shrunk = new long[active.length - 1];
+            System.arraycopy(active, 0, shrunk, 0, i);
+            System.arraycopy(active, i + 1, shrunk, i, active.length - i - 1);
+            activeXids = shrunk;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void releaseEntry(Entry entry) {
@@ -2,14 +2,18 @@ package com.mengnankk.mydatabase.backend.vm;
 
 import com.mengnankk.mydatabase.backend.tm.TransactionManager;
 
+/**
+ * 可见性判断，XMIN/XMAX 的提交状态优先取 entry 上的提示位
+ */
 public class Visibility {
     
     public static boolean isVersionSkip(TransactionManager tm, Transaction t, Entry e) {
-        long xmax = e.getXmax();
         if(t.level == 0) {
             return false;
         } else {
-            return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+            long rawXmax = e.rawXmax();
+            long xmax = Entry.xidOf(rawXmax);
+            return e.isXmaxCommitted(tm, rawXmax) && (xmax > t.xid || t.isInSnapshot(xmax));
         }
     }
 
@@ -23,14 +27,16 @@ public class Visibility {
 
     private static boolean readCommitted(TransactionManager tm, Transaction t, Entry e) {
         long xid = t.xid;
-        long xmin = e.getXmin();
-        long xmax = e.getXmax();
+        long rawXmin = e.rawXmin();
+        long rawXmax = e.rawXmax();
+        long xmin = Entry.xidOf(rawXmin);
+        long xmax = Entry.xidOf(rawXmax);
         if(xmin == xid && xmax == 0) return true;
 
-        if(tm.isCommitted(xmin)) {
+        if(e.isXminCommitted(tm, rawXmin)) {
             if(xmax == 0) return true;
             if(xmax != xid) {
-                if(!tm.isCommitted(xmax)) {
+                if(!e.isXmaxCommitted(tm, rawXmax)) {
                     return true;
                 }
             }
@@ -40,14 +46,16 @@ public class Visibility {
 
     private static boolean repeatableRead(TransactionManager tm, Transaction t, Entry e) {
         long xid = t.xid;
-        long xmin = e.getXmin();
-        long xmax = e.getXmax();
+        long rawXmin = e.rawXmin();
+        long rawXmax = e.rawXmax();
+        long xmin = Entry.xidOf(rawXmin);
+        long xmax = Entry.xidOf(rawXmax);
         if(xmin == xid && xmax == 0) return true;
 
-        if(tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        if(e.isXminCommitted(tm, rawXmin) && xmin < xid && !t.isInSnapshot(xmin)) {
             if(xmax == 0) return true;
             if(xmax != xid) {
-                if(!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if(!e.isXmaxCommitted(tm, rawXmax) || xmax > xid || t.isInSnapshot(xmax)) {
                     return true;
                 }
             }
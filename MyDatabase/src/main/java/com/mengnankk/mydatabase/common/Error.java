@@ -12,6 +12,7 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception BadPageFormatException = new RuntimeException("Bad page format!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
@@ -25,6 +26,7 @@ public class Error {
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
     public static final Exception FieldNotFoundException = new RuntimeException("Field not found!");
     public static final Exception FieldNotIndexedException = new RuntimeException("Field not indexed!");
+    public static final Exception FieldAlreadyIndexedException = new RuntimeException("Field already indexed!");
     public static final Exception InvalidLogOpException = new RuntimeException("Invalid logic operation!");
     public static final Exception InvalidValuesException = new RuntimeException("Invalid values!");
     public static final Exception DuplicatedTableException = new RuntimeException("Table already exists!");
@@ -52,6 +54,10 @@ public class Error {
 
     // launcher
     public static final Exception InvalidMemException = new RuntimeException("Invalid memory!");
+    public static final Exception InvalidCachePolicyException = new RuntimeException("Invalid cache replacement policy!");
+    public static final Exception InvalidIOModeException = new RuntimeException("Invalid io mode!");
+    public static final Exception InvalidPageSizeException = new RuntimeException("Invalid page size!");
+    public static final Exception InvalidLogFlushException = new RuntimeException("Invalid log flush strategy!");
 
     // new additions
     public static final Exception TableAlreadyExistsException = new RuntimeException("表已存在");
@@ -0,0 +1,307 @@
+package com.mengnankk.mydatabase.backend.common;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+import com.mengnankk.mydatabase.common.Error;
+
+public class AbstractCacheTest {
+
+    static class Res {
+        final long key;
+        volatile boolean released;
+
+        Res(long key) {
+            this.key = key;
+        }
+    }
+
+    /**
+     * 记录装入和写回的测试缓存：同一 key 同时只能有一个驻留的资源，写回的资源不能再被取出
+     */
+    static class MockCache extends AbstractCache<Res> {
+        final ConcurrentHashMap<Long, Res> resident = new ConcurrentHashMap<>();
+        final AtomicInteger loads = new AtomicInteger();
+        final AtomicInteger releases = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        volatile CountDownLatch gate;
+        volatile long failKey = -1;
+        volatile CountDownLatch writing;        // 开始写回时计数
+        volatile CountDownLatch writeGate;      // 写回在此等待
+        volatile long writeNanos;               // 每次写回等待的时间
+
+        MockCache(int maxResource) {
+            super(maxResource);
+        }
+
+        @Override
+        protected Res getForCache(long key) throws Exception {
+            CountDownLatch g = gate;
+            if(g != null) {
+                g.await();
+            }
+            loads.incrementAndGet();
+            if(key == failKey) {
+                throw new IllegalStateException("load " + key);
+            }
+            Res r = new Res(key);
+            if(resident.putIfAbsent(key, r) != null) {
+                errors.incrementAndGet();
+            }
+            return r;
+        }
+
+        @Override
+        protected void releaseForCache(Res r) {
+            CountDownLatch w = writing;
+            if(w != null) {
+                w.countDown();
+            }
+            CountDownLatch g = writeGate;
+            if(g != null) {
+                try {
+                    g.await();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if(writeNanos > 0) {
+                // 模拟写回时等待IO
+                LockSupport.parkNanos(writeNanos);
+            }
+            if(r.released || !resident.remove(r.key, r)) {
+                errors.incrementAndGet();
+            }
+            r.released = true;
+            releases.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testConcurrentGetReleaseWithEviction() throws Exception {
+        final int max = 32, keys = 256, threads = 8, rounds = 20000;
+        MockCache cache = new MockCache(max);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> fs = new ArrayList<>();
+        for(int t = 0; t < threads; t ++) {
+            final long seed = t;
+            fs.add(pool.submit(() -> {
+                Random r = new Random(seed);
+                for(int i = 0; i < rounds; i ++) {
+                    // 热点 key 集中在前 16 个，其余 key 不断触发驱逐
+                    long key = r.nextInt(4) == 0 ? r.nextInt(keys) : r.nextInt(16);
+                    Res res = cache.get(key);
+                    assertEquals(key, res.key);
+                    assertFalse(res.released);
+                    if(r.nextInt(8) == 0) {
+                        // 同时持有两个资源
+                        long other = r.nextInt(keys);
+                        Res o = cache.get(other);
+                        assertFalse(o.released);
+                        cache.release(other);
+                    }
+                    assertFalse(res.released);
+                    cache.release(key);
+                }
+                return null;
+            }));
+        }
+        for(Future<?> f : fs) {
+            f.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertEquals(0, cache.errors.get());
+        assertTrue(cache.size() <= max);
+        assertEquals(cache.resident.size(), cache.size());
+        assertEquals(cache.loads.get() - cache.releases.get(), cache.size());
+        assertTrue(cache.releases.get() > 0);
+
+        cache.close();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.errors.get());
+        assertTrue(cache.resident.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentLoadSharesFuture() throws Exception {
+        final int threads = 8;
+        MockCache cache = new MockCache(16);
+        cache.gate = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Res>> fs = new ArrayList<>();
+        for(int t = 0; t < threads; t ++) {
+            fs.add(pool.submit(() -> cache.get(7)));
+        }
+        // 等所有线程都挂在同一次装入上
+        Thread.sleep(200);
+        cache.gate.countDown();
+        Res first = fs.get(0).get(10, TimeUnit.SECONDS);
+        for(Future<Res> f : fs) {
+            assertSame(first, f.get(10, TimeUnit.SECONDS));
+        }
+        pool.shutdown();
+        assertEquals(1, cache.loads.get());
+
+        for(int t = 0; t < threads; t ++) {
+            cache.release(7);
+        }
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.releases.get());
+    }
+
+    @Test
+    public void testFailedLoadIsSeenByWaitersAndRetried() throws Exception {
+        final int threads = 4;
+        MockCache cache = new MockCache(16);
+        cache.gate = new CountDownLatch(1);
+        cache.failKey = 3;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Res>> fs = new ArrayList<>();
+        for(int t = 0; t < threads; t ++) {
+            fs.add(pool.submit(() -> cache.get(3)));
+        }
+        Thread.sleep(200);
+        cache.gate.countDown();
+        for(Future<Res> f : fs) {
+            try {
+                f.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch(ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        pool.shutdown();
+        assertEquals(0, cache.size());
+
+        // 失败的装入不留在缓存中，之后可以重新装入
+        cache.failKey = -1;
+        Res r = cache.get(3);
+        assertEquals(3, r.key);
+        cache.release(3);
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testEvictsOnlyUnpinned() throws Exception {
+        MockCache cache = new MockCache(4);
+        for(long k = 0; k < 4; k ++) {
+            cache.get(k);
+        }
+        // 全部被引用时缓存已满
+        try {
+            cache.get(4);
+            fail();
+        } catch(Exception e) {
+            assertSame(Error.CacheFullException, e);
+        }
+        cache.release(2);
+        Res r = cache.get(4);
+        assertEquals(4, r.key);
+        assertFalse(cache.resident.containsKey(2L));
+        assertEquals(4, cache.size());
+        assertEquals(0, cache.errors.get());
+    }
+
+    @Test
+    public void testWriteBackOutsideSegmentLock() throws Exception {
+        // 0、16、48 落在同一段
+        MockCache cache = new MockCache(3);
+        cache.get(0);
+        cache.release(0);
+        cache.get(16);
+        cache.get(48);
+        cache.writing = new CountDownLatch(1);
+        cache.writeGate = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        // 缓存已满，取 32 时驱逐 0 并阻塞在写回上
+        Future<Res> evictor = pool.submit(() -> {
+            Res r = cache.get(32);
+            cache.release(32);
+            return r;
+        });
+        assertTrue(cache.writing.await(10, TimeUnit.SECONDS));
+
+        // 写回期间同段的其他资源照常可取
+        Future<Res> hit = pool.submit(() -> cache.get(16));
+        assertEquals(16, hit.get(10, TimeUnit.SECONDS).key);
+        cache.release(16);
+
+        // 正在写回的资源要等写回完成才重新装入
+        Future<Res> reload = pool.submit(() -> cache.get(0));
+        Thread.sleep(200);
+        assertFalse(reload.isDone());
+        cache.release(48);
+        cache.writeGate.countDown();
+        assertEquals(32, evictor.get(10, TimeUnit.SECONDS).key);
+        Res r = reload.get(10, TimeUnit.SECONDS);
+        assertEquals(0, r.key);
+        assertFalse(r.released);
+        pool.shutdown();
+        assertEquals(0, cache.errors.get());
+        assertTrue(cache.size() <= 3);
+    }
+
+    /**
+     * 1 到 8 个线程访问远大于缓存的 key 集合，每次驱逐都要等待一次写回IO；
+     * 写回不占段锁，吞吐量随线程数增长。打印各线程数下每秒的 get/release 次数
+     */
+    @Test
+    public void testEvictionScaling() throws Exception {
+        final int max = 64, keys = 4096, ops = 20000;
+        System.out.println("threads  ops/s  evictions");
+        double single = 0, best = 0;
+        for(int threads = 1; threads <= 8; threads *= 2) {
+            MockCache cache = new MockCache(max);
+            cache.writeNanos = 20_000;
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            List<Future<?>> fs = new ArrayList<>();
+            int perThread = ops / threads;
+            long start = System.nanoTime();
+            for(int t = 0; t < threads; t ++) {
+                final long seed = t;
+                fs.add(pool.submit(() -> {
+                    Random r = new Random(seed);
+                    for(int i = 0; i < perThread; i ++) {
+                        long key = r.nextInt(keys);
+                        cache.get(key);
+                        cache.release(key);
+                    }
+                    return null;
+                }));
+            }
+            for(Future<?> f : fs) {
+                f.get(120, TimeUnit.SECONDS);
+            }
+            double perSecond = perThread * threads / ((System.nanoTime() - start) / 1e9);
+            pool.shutdown();
+            System.out.printf("%7d  %5.0f  %9d%n", threads, perSecond, cache.releases.get());
+            assertEquals(0, cache.errors.get());
+            if(threads == 1) {
+                single = perSecond;
+            }
+            best = Math.max(best, perSecond);
+        }
+        // 写回互不阻塞，多个线程的等待可以重叠
+        assertTrue(best + " vs " + single, best > single * 2);
+    }
+}
@@ -0,0 +1,175 @@
+package com.mengnankk.mydatabase.backend.dm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.dm.page.Page;
+import com.mengnankk.mydatabase.backend.dm.page.PageX;
+import com.mengnankk.mydatabase.backend.dm.pageCache.PageSize;
+import com.mengnankk.mydatabase.backend.dm.pageIndex.FreeSpaceMap;
+import com.mengnankk.mydatabase.backend.dm.pageIndex.PageIndex;
+import com.mengnankk.mydatabase.backend.dm.pageIndex.PageInfo;
+import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+
+/**
+ * 空闲空间表：保存后加载只会低估且误差小于一档；与数据文件不符时不加载；
+ * 正常关闭后从表中加载，崩溃恢复后重新逐页扫描
+ */
+public class FreeSpaceMapTest {
+    private static final long MEM = 1 << 22;
+    private static final int PAGE_SIZE = PageSize.DEFAULT;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static Map<Integer, Integer> freeSpace(PageIndex pIndex) {
+        Map<Integer, Integer> m = new HashMap<>();
+        for(PageInfo pi : pIndex.pages()) {
+            m.put(pi.pgno, pi.freeSpace);
+        }
+        return m;
+    }
+
+    // 逐页读出的实际空闲空间
+    private static Map<Integer, Integer> scan(DataManagerImpl dm) throws Exception {
+        Map<Integer, Integer> m = new HashMap<>();
+        for(int pgno = 2; pgno <= dm.pc.getPageNumber(); pgno ++) {
+            Page pg = dm.pc.getPage(pgno);
+            m.put(pgno, PageX.getFreeSpace(pg));
+            pg.release();
+        }
+        return m;
+    }
+
+    private static void insertRows(DataManager dm, TransactionManager tm, int rows, long seed) throws Exception {
+        Random r = new Random(seed);
+        long xid = tm.begin();
+        for(int i = 0; i < rows; i ++) {
+            dm.insert(xid, new byte[1 + r.nextInt(PAGE_SIZE / 4)]);
+        }
+        tm.commit(xid);
+    }
+
+    @Test
+    public void testSaveAndLoad() {
+        String path = new File(tmp.getRoot(), "fsm").getPath();
+        final int pageNumber = 50;
+        PageIndex saved = new PageIndex(PAGE_SIZE);
+        Random r = new Random(1);
+        for(int pgno = 2; pgno <= pageNumber; pgno ++) {
+            saved.add(pgno, pgno == 2 ? PAGE_SIZE : r.nextInt(PAGE_SIZE));
+        }
+        FreeSpaceMap.save(path, saved, pageNumber);
+        assertTrue(new File(path + FreeSpaceMap.FSM_SUFFIX).exists());
+        assertFalse(new File(path + FreeSpaceMap.FSM_TMP_SUFFIX).exists());
+
+        PageIndex loaded = new PageIndex(PAGE_SIZE);
+        assertTrue(FreeSpaceMap.load(path, loaded, pageNumber));
+        Map<Integer, Integer> expected = freeSpace(saved);
+        Map<Integer, Integer> actual = freeSpace(loaded);
+        assertEquals(expected.keySet(), actual.keySet());
+        for(int pgno = 2; pgno <= pageNumber; pgno ++) {
+            int diff = expected.get(pgno) - actual.get(pgno);
+            assertTrue("page " + pgno + " diff " + diff, diff >= 0 && diff <= PAGE_SIZE / 255 + 1);
+        }
+        assertEquals(PAGE_SIZE, (int)actual.get(2));
+    }
+
+    @Test
+    public void testMismatchNotLoaded() throws Exception {
+        String path = new File(tmp.getRoot(), "mismatch").getPath();
+        assertFalse(FreeSpaceMap.load(path, new PageIndex(PAGE_SIZE), 10));
+
+        PageIndex saved = new PageIndex(PAGE_SIZE);
+        saved.add(2, 100);
+        FreeSpaceMap.save(path, saved, 10);
+        assertFalse(FreeSpaceMap.load(path, new PageIndex(PAGE_SIZE), 11));
+        assertFalse(FreeSpaceMap.load(path, new PageIndex(PAGE_SIZE * 2), 10));
+
+        // 文件被截短
+        try(RandomAccessFile raf = new RandomAccessFile(path + FreeSpaceMap.FSM_SUFFIX, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        PageIndex loaded = new PageIndex(PAGE_SIZE);
+        assertFalse(FreeSpaceMap.load(path, loaded, 10));
+        assertTrue(loaded.pages().isEmpty());
+    }
+
+    // 子进程：在正常关闭过的数据库上再插入数据后崩溃，留下的空闲空间表已经过时
+    public static void main(String[] args) throws Exception {
+        String path = args[0];
+        DMConfig conf = new DMConfig();
+        conf.checkpointInterval = 0;
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, MEM, tm, conf);
+        insertRows(dm, tm, 200, 2);
+        dm.flushLog();
+        Runtime.getRuntime().halt(0);
+    }
+
+    @Test
+    public void testLoadedAfterCleanCloseRescannedAfterCrash() throws Exception {
+        String path = new File(tmp.getRoot(), "db").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, MEM, tm);
+        insertRows(dm, tm, 100, 1);
+        dm.close();
+        tm.close();
+        assertTrue(new File(path + FreeSpaceMap.FSM_SUFFIX).exists());
+
+        // 正常关闭后加载的值不超过实际空闲空间，误差小于一档
+        tm = TransactionManager.open(path);
+        dm = (DataManagerImpl)DataManager.open(path, MEM, tm);
+        Map<Integer, Integer> loaded = freeSpace(dm.pIndex);
+        Map<Integer, Integer> actual = scan(dm);
+        assertEquals(actual.keySet(), loaded.keySet());
+        for(int pgno : actual.keySet()) {
+            int diff = actual.get(pgno) - loaded.get(pgno);
+            assertTrue("page " + pgno + " diff " + diff, diff >= 0 && diff <= PAGE_SIZE / 255 + 1);
+        }
+        dm.close();
+        tm.close();
+
+        runCrash(path);
+        // 崩溃之后逐页扫描，得到的就是实际值
+        tm = TransactionManager.open(path);
+        dm = (DataManagerImpl)DataManager.open(path, MEM, tm);
+        assertEquals(scan(dm), freeSpace(dm.pIndex));
+        dm.close();
+        tm.close();
+    }
+
+    private void runCrash(String path) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), FreeSpaceMapTest.class.getName(), path)
+            .redirectErrorStream(true)
+            .start();
+        List<String> out = new ArrayList<>();
+        try(BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = r.readLine()) != null) {
+                out.add(line);
+            }
+        }
+        assertTrue(p.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(String.join("\n", out), 0, p.exitValue());
+    }
+}
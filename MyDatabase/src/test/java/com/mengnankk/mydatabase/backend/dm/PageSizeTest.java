@@ -0,0 +1,117 @@
+package com.mengnankk.mydatabase.backend.dm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.common.SubArray;
+import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
+import com.mengnankk.mydatabase.backend.dm.pageCache.PageSize;
+import com.mengnankk.mydatabase.backend.im.BPlusTree;
+import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+import com.mengnankk.mydatabase.backend.tm.TransactionManagerImpl;
+
+/**
+ * 同一进程中同时打开页面大小不同的两个数据库，各自按自己的页面大小组织页面，互不影响
+ */
+public class PageSizeTest {
+    private static final long MEM = 1 << 23;
+    private static final int N = 300, KEYS = 3000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static DMConfig config(int pageSize) {
+        DMConfig conf = new DMConfig();
+        conf.pageSize = pageSize;
+        return conf;
+    }
+
+    // 第 i 条数据的长度在 [1, 单条数据的上限] 之间变化，大的几条只有大页面的库放得下
+    private static byte[] value(int i, int max) {
+        byte[] v = new byte[1 + (int)((long)i * 7919 % max)];
+        Arrays.fill(v, (byte)i);
+        return v;
+    }
+
+    @Test
+    public void testTwoPageSizesInOneProcess() throws Exception {
+        String small = new File(tmp.getRoot(), "small").getPath();
+        String large = new File(tmp.getRoot(), "large").getPath();
+        int[] sizes = { PageSize.MIN, PageSize.MAX };
+        String[] paths = { small, large };
+
+        TransactionManager[] tms = new TransactionManager[2];
+        DataManager[] dms = new DataManager[2];
+        for(int d = 0; d < 2; d ++) {
+            tms[d] = TransactionManager.create(paths[d]);
+            dms[d] = DataManager.create(paths[d], MEM, tms[d], config(sizes[d]));
+            assertEquals(sizes[d], dms[d].pageSize());
+        }
+
+        // 两个库交替插入，各自的数据上限与页面大小相符
+        long[][] uids = new long[2][N];
+        int[] max = new int[2];
+        for(int d = 0; d < 2; d ++) {
+            max[d] = DataItem.maxDataSize(sizes[d]);
+        }
+        for(int i = 0; i < N; i ++) {
+            for(int d = 0; d < 2; d ++) {
+                uids[d][i] = dms[d].insert(TransactionManagerImpl.SUPER_XID, value(i, max[d]));
+            }
+        }
+        long[] boots = new long[2];
+        for(int d = 0; d < 2; d ++) {
+            boots[d] = BPlusTree.create(dms[d]);
+            BPlusTree tree = BPlusTree.load(boots[d], dms[d]);
+            for(long k = 0; k < KEYS; k ++) {
+                tree.insert(k, k + 1);
+            }
+            tree.close();
+        }
+        verify(dms, uids, max, boots);
+        for(int d = 0; d < 2; d ++) {
+            dms[d].close();
+            tms[d].close();
+        }
+
+        // 按相反的顺序打开，页面大小从各自的数据文件中读出
+        for(int d = 1; d >= 0; d --) {
+            tms[d] = TransactionManager.open(paths[d]);
+            dms[d] = DataManager.open(paths[d], MEM, tms[d], new DMConfig());
+            assertEquals(sizes[d], dms[d].pageSize());
+        }
+        verify(dms, uids, max, boots);
+        for(int d = 0; d < 2; d ++) {
+            assertEquals(0, new File(paths[d] + ".db").length() % sizes[d]);
+            dms[d].close();
+            tms[d].close();
+        }
+    }
+
+    private void verify(DataManager[] dms, long[][] uids, int[] max, long[] boots) throws Exception {
+        for(int d = 0; d < 2; d ++) {
+            for(int i = 0; i < N; i ++) {
+                DataItem di = dms[d].read(uids[d][i]);
+                assertNotNull(di);
+                SubArray data = di.data();
+                assertArrayEquals(value(i, max[d]), Arrays.copyOfRange(data.raw, data.start, data.end));
+                di.release();
+            }
+            BPlusTree tree = BPlusTree.load(boots[d], dms[d]);
+            for(long k = 0; k < KEYS; k += 11) {
+                assertTrue(tree.search(k).contains(k + 1));
+            }
+            assertEquals(KEYS, tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE - 1).size());
+            tree.close();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.mengnankk.mydatabase.backend.dm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.common.SubArray;
+import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
+import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+import com.mengnankk.mydatabase.backend.utils.Parser;
+
+/**
+ * 一遍读日志、并行 redo 和 undo：多个线程的事务交错更新同一批页面上的数据，
+ * 每个数据被同一事务改写多次，崩溃后已提交的值全部重做，未提交事务的多次改写倒序撤销回提交过的值
+ */
+public class ParallelRecoverTest {
+    private static final long MEM = 1 << 22;
+    private static final int THREADS = 8, ITEMS_PER_THREAD = 25, TXNS = 20, UPDATES = 5;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // 就地把数据改成 value，同一事务可以对同一数据调用多次
+    private static void update(DataManager dm, long xid, long uid, long value) throws Exception {
+        DataItem di = dm.read(uid);
+        di.before();
+        SubArray data = di.data();
+        System.arraycopy(Parser.long2Byte(value), 0, data.raw, data.start, 8);
+        di.after(xid);
+        di.release();
+    }
+
+    private static long value(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        assertNotNull(di);
+        SubArray data = di.data();
+        long v = Parser.parseLong(Arrays.copyOfRange(data.raw, data.start, data.start + 8));
+        di.release();
+        return v;
+    }
+
+    // 子进程：各线程只改自己的数据，但数据交错分布在同一批页面上；最后每个线程留下一个未提交的事务
+    public static void main(String[] args) throws Exception {
+        String path = args[0];
+        DMConfig conf = new DMConfig();
+        conf.checkpointInterval = 0;
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm, conf);
+
+        long[][] uids = new long[THREADS][ITEMS_PER_THREAD];
+        long xid = tm.begin();
+        for(int i = 0; i < ITEMS_PER_THREAD; i ++) {
+            for(int t = 0; t < THREADS; t ++) {
+                uids[t][i] = dm.insert(xid, Parser.long2Byte(0));
+            }
+        }
+        tm.commit(xid);
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        List<Future<List<String>>> fs = new ArrayList<>();
+        for(int t = 0; t < THREADS; t ++) {
+            final int thread = t;
+            fs.add(pool.submit(() -> {
+                Random r = new Random(thread);
+                long[] committed = new long[ITEMS_PER_THREAD];
+                for(int n = 0; n < TXNS; n ++) {
+                    long x = tm.begin();
+                    for(int u = 0; u < UPDATES; u ++) {
+                        int i = r.nextInt(ITEMS_PER_THREAD);
+                        committed[i] = (long)thread << 32 | n << 8 | u;
+                        update(dm, x, uids[thread][i], committed[i]);
+                    }
+                    dm.flushLog();
+                    tm.commit(x);
+                }
+                // 未提交的事务把每个数据改写两次
+                long x = tm.begin();
+                for(int i = 0; i < ITEMS_PER_THREAD; i += 2) {
+                    update(dm, x, uids[thread][i], -1);
+                    update(dm, x, uids[thread][i], -2);
+                }
+                List<String> out = new ArrayList<>();
+                for(int i = 0; i < ITEMS_PER_THREAD; i ++) {
+                    out.add("item " + uids[thread][i] + " " + committed[i]);
+                }
+                return out;
+            }));
+        }
+        for(Future<List<String>> f : fs) {
+            for(String line : f.get()) {
+                System.out.println(line);
+            }
+        }
+        dm.flushLog();
+        System.out.flush();
+        Runtime.getRuntime().halt(0);
+    }
+
+    @Test
+    public void testRedoAndUndoAfterCrash() throws Exception {
+        String path = new File(tmp.getRoot(), "db").getPath();
+        Map<Long, Long> expected = new HashMap<>();
+        for(String line : runCrash(path)) {
+            String[] f = line.split(" ");
+            if(f.length == 3 && f[0].equals("item")) {
+                expected.put(Long.parseLong(f[1]), Long.parseLong(f[2]));
+            }
+        }
+        assertEquals(THREADS * ITEMS_PER_THREAD, expected.size());
+
+        for(int round = 0; round < 2; round ++) {
+            TransactionManager tm = TransactionManager.open(path);
+            DataManager dm = DataManager.open(path, MEM, tm);
+            for(Map.Entry<Long, Long> e : expected.entrySet()) {
+                assertEquals("uid " + e.getKey(), (long)e.getValue(), value(dm, e.getKey()));
+            }
+            dm.close();
+            tm.close();
+        }
+    }
+
+    private List<String> runCrash(String path) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ParallelRecoverTest.class.getName(), path)
+            .redirectErrorStream(true)
+            .start();
+        List<String> out = new ArrayList<>();
+        try(BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = r.readLine()) != null) {
+                out.add(line);
+            }
+        }
+        assertTrue(p.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(String.join("\n", out), 0, p.exitValue());
+        return out;
+    }
+}
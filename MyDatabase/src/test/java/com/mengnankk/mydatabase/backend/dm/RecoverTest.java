@@ -0,0 +1,328 @@
+package com.mengnankk.mydatabase.backend.dm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.common.SubArray;
+import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
+import com.mengnankk.mydatabase.backend.dm.logger.FlushStrategy;
+import com.mengnankk.mydatabase.backend.dm.logger.Logger;
+import com.mengnankk.mydatabase.backend.dm.page.Page;
+import com.mengnankk.mydatabase.backend.dm.page.PageOne;
+import com.mengnankk.mydatabase.backend.dm.pageCache.PageCache;
+import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+import com.mengnankk.mydatabase.backend.utils.Types;
+
+/**
+ * 检查点之后崩溃：子进程写数据、做检查点、再写数据后直接退出，不调用 close
+ * 内存映射方式下文件被撑大到段的整数倍，重新打开时页面数不能按文件长度算
+ */
+public class RecoverTest {
+    private static final long MEM = 1 << 22;
+    private static final int PRE = 200, POST = 100, ACTIVE = 20;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // 子进程：在 args[0] 建库并在检查点之后崩溃，args[1] 为IO方式
+    public static void main(String[] args) throws Exception {
+        String path = args[0];
+        DMConfig conf = config(args[1]);
+        conf.checkpointInterval = 0;
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl)DataManager.create(path, MEM, tm, conf);
+
+        long xid = tm.begin();
+        for(int i = 0; i < PRE; i ++) {
+            System.out.println("pre " + i + " " + dm.insert(xid, value(i)));
+        }
+        tm.commit(xid);
+        dm.checkpoint();
+        System.out.println("ckpt " + PageOne.getCheckpointLsn(dm.pageOne));
+        System.out.println("pages " + PageOne.getCheckpointPages(dm.pageOne));
+
+        xid = tm.begin();
+        for(int i = PRE; i < PRE + POST; i ++) {
+            System.out.println("post " + i + " " + dm.insert(xid, value(i)));
+        }
+        tm.commit(xid);
+
+        // 没有提交的事务，恢复时应当撤销
+        xid = tm.begin();
+        for(int i = 0; i < ACTIVE; i ++) {
+            System.out.println("active " + i + " " + dm.insert(xid, value(-i-1)));
+        }
+        dm.flushLog();
+        System.out.flush();
+        Runtime.getRuntime().halt(0);
+    }
+
+    private static DMConfig config(String io) {
+        DMConfig conf = new DMConfig();
+        conf.io = io;
+        return conf;
+    }
+
+    private static byte[] value(int i) {
+        StringBuilder sb = new StringBuilder("value-").append(i).append('-');
+        for(int j = 0; j < Math.floorMod(i, 50) * 5; j ++) {
+            sb.append((char)('a' + j % 26));
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRecoverFromCheckpointAfterCrash() throws Exception {
+        File crashed = tmp.newFolder("crashed");
+        List<String> out = runCrash(new File(crashed, "db").getPath(), DMConfig.IO_CHANNEL);
+
+        long ckpt = -1;
+        List<long[]> committed = new ArrayList<>();
+        List<Long> aborted = new ArrayList<>();
+        for(String line : out) {
+            String[] f = line.split(" ");
+            switch(f[0]) {
+                case "ckpt": ckpt = Long.parseLong(f[1]); break;
+                case "pre": case "post": committed.add(new long[]{Long.parseLong(f[1]), Long.parseLong(f[2])}); break;
+                case "active": aborted.add(Long.parseLong(f[2])); break;
+                default:
+            }
+        }
+        assertEquals(PRE + POST, committed.size());
+        assertEquals(ACTIVE, aborted.size());
+        assertTrue(ckpt > 0);
+
+        // 一份拷贝手动恢复，检查 redo 从检查点开始，只读到检查点之后的日志
+        File manual = copy(crashed, tmp.newFolder("manual"));
+        String mpath = new File(manual, "db").getPath();
+        TransactionManager tm = TransactionManager.open(mpath);
+        PageCache pc = PageCache.open(mpath, MEM, new DMConfig());
+        RecordingLogger lg = new RecordingLogger(Logger.open(mpath, FlushStrategy.newStrategy(FlushStrategy.SYNC, 1 << 20)));
+        pc.setLogger(lg);
+        Page one = pc.getPage(1);
+        long pageOneCkpt = PageOne.getCheckpointLsn(one);
+        int ckptPages = PageOne.getCheckpointPages(one);
+        one.release();
+        assertEquals(ckpt, pageOneCkpt);
+
+        Recover.recover(tm, lg, pc, pageOneCkpt, ckptPages);
+        assertEquals(ckpt, lg.rewoundTo);
+        assertEquals(POST + ACTIVE, lg.read);
+        pc.close();
+        lg.close();
+        tm.close();
+
+        // 另一份按正常流程打开
+        String path = new File(crashed, "db").getPath();
+        tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, MEM, tm, new DMConfig());
+        verify(dm, committed, aborted);
+        dm.close();
+        tm.close();
+
+        // 恢复之后正常关闭，再打开时数据不变
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, MEM, tm, new DMConfig());
+        verify(dm, committed, aborted);
+        dm.close();
+        tm.close();
+    }
+
+    @Test
+    public void testMmapReopenAfterCrash() throws Exception {
+        String path = new File(tmp.newFolder("mmap"), "db").getPath();
+        List<String> out = runCrash(path, DMConfig.IO_MMAP);
+
+        int ckptPages = -1;
+        List<long[]> committed = new ArrayList<>();
+        List<Long> aborted = new ArrayList<>();
+        int maxPgno = 0;
+        for(String line : out) {
+            String[] f = line.split(" ");
+            switch(f[0]) {
+                case "pages": ckptPages = Integer.parseInt(f[1]); break;
+                case "pre": case "post": committed.add(new long[]{Long.parseLong(f[1]), Long.parseLong(f[2])}); break;
+                case "active": aborted.add(Long.parseLong(f[2])); break;
+                default: continue;
+            }
+            if(f.length > 2) {
+                maxPgno = Math.max(maxPgno, Types.uidToPgno(Long.parseLong(f[2])));
+            }
+        }
+        assertTrue(ckptPages > 0);
+        int pageSize = new DMConfig().pageSize;
+        File db = new File(path + ".db");
+        // 映射把文件撑大到了整段，按文件长度算的页面数远多于实际
+        assertTrue(db.length() / pageSize > maxPgno * 2);
+
+        // 页面数取自检查点，恢复按日志补齐，并截掉多出来的部分
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, MEM, tm, config(DMConfig.IO_MMAP));
+        verify(dm, committed, aborted);
+        long xid = tm.begin();
+        List<long[]> more = new ArrayList<>();
+        for(int i = 0; i < POST; i ++) {
+            more.add(new long[]{PRE + POST + i, dm.insert(xid, value(PRE + POST + i))});
+        }
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+        committed.addAll(more);
+
+        PageCache pc = PageCache.open(path, MEM, config(DMConfig.IO_MMAP));
+        int pages = pc.getPageNumber();
+        pc.close();
+        for(long[] c : committed) {
+            assertTrue(Types.uidToPgno(c[1]) <= pages);
+        }
+        assertTrue(pages + " pages", pages <= maxPgno + POST);
+
+        // 两种IO方式打开的都是同样的页面数和数据
+        for(String io : new String[]{ DMConfig.IO_CHANNEL, DMConfig.IO_MMAP }) {
+            pc = PageCache.open(path, MEM, config(io));
+            assertEquals(pages, pc.getPageNumber());
+            pc.close();
+            tm = TransactionManager.open(path);
+            dm = DataManager.open(path, MEM, tm, config(io));
+            verify(dm, committed, aborted);
+            dm.close();
+            tm.close();
+        }
+    }
+
+    @Test
+    public void testMmapTruncate() throws Exception {
+        String path = new File(tmp.getRoot(), "trunc").getPath();
+        PageCache pc = PageCache.create(path, MEM, config(DMConfig.IO_MMAP));
+        int pageSize = pc.getPageSize();
+        for(int i = 1; i <= 10; i ++) {
+            assertEquals(i, pc.newPage(page(pageSize, i)));
+        }
+        pc.truncateByBgno(4);
+        assertEquals(4, pc.getPageNumber());
+        // 截掉的页面由新页面整页覆盖
+        assertEquals(5, pc.newPage(page(pageSize, 50)));
+        assertEquals(5, pc.getPageNumber());
+        Page pg = pc.getPage(5);
+        assertArrayEquals(page(pageSize, 50), pg.getData());
+        pg.release();
+        pg = pc.getPage(4);
+        assertArrayEquals(page(pageSize, 4), pg.getData());
+        pg.release();
+        pc.close();
+    }
+
+    private static byte[] page(int pageSize, int b) {
+        byte[] data = new byte[pageSize];
+        Arrays.fill(data, (byte)b);
+        return data;
+    }
+
+    private void verify(DataManager dm, List<long[]> committed, List<Long> aborted) throws Exception {
+        for(long[] c : committed) {
+            DataItem di = dm.read(c[1]);
+            assertNotNull("row " + c[0], di);
+            SubArray data = di.data();
+            assertArrayEquals(value((int)c[0]), Arrays.copyOfRange(data.raw, data.start, data.end));
+            di.release();
+        }
+        for(long uid : aborted) {
+            assertNull(dm.read(uid));
+        }
+    }
+
+    private List<String> runCrash(String path, String io) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), RecoverTest.class.getName(), path, io)
+            .redirectErrorStream(true)
+            .start();
+        List<String> out = new ArrayList<>();
+        try(BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = r.readLine()) != null) {
+                out.add(line);
+            }
+        }
+        assertTrue(p.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(String.join("\n", out), 0, p.exitValue());
+        return out;
+    }
+
+    private static File copy(File from, File to) throws Exception {
+        for(File f : from.listFiles()) {
+            Files.copy(f.toPath(), new File(to, f.getName()).toPath());
+        }
+        return to;
+    }
+
+    // 记下恢复从哪个LSN开始、读了多少条日志
+    static class RecordingLogger implements Logger {
+        final Logger lg;
+        long rewoundTo = -1;
+        int read;
+
+        RecordingLogger(Logger lg) {
+            this.lg = lg;
+        }
+
+        public long log(byte[] data) {
+            return lg.log(data);
+        }
+
+        public void flush(long lsn) {
+            lg.flush(lsn);
+        }
+
+        public long endLsn() {
+            return lg.endLsn();
+        }
+
+        public void reclaim(long lsn) {
+            lg.reclaim(lsn);
+        }
+
+        public void truncate(long x) throws Exception {
+            lg.truncate(x);
+        }
+
+        public byte[] next() {
+            byte[] log = lg.next();
+            if(log != null) {
+                read ++;
+            }
+            return log;
+        }
+
+        public void rewind() {
+            lg.rewind();
+        }
+
+        public void rewind(long lsn) {
+            rewoundTo = lsn;
+            read = 0;
+            lg.rewind(lsn);
+        }
+
+        public void close() {
+            lg.close();
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package com.mengnankk.mydatabase.backend.dm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.common.SubArray;
+import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
+import com.mengnankk.mydatabase.backend.dm.page.Page;
+import com.mengnankk.mydatabase.backend.dm.page.PageImpl;
+import com.mengnankk.mydatabase.backend.dm.page.PageOne;
+import com.mengnankk.mydatabase.backend.dm.page.PageX;
+import com.mengnankk.mydatabase.backend.dm.pageCache.PageCache;
+import com.mengnankk.mydatabase.backend.dm.pageCache.PageSize;
+import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+import com.mengnankk.mydatabase.backend.tm.TransactionManagerImpl;
+import com.mengnankk.mydatabase.backend.utils.Types;
+
+/**
+ * 槽式页：空槽复用时 Gen 加一，旧 uid 读不到新数据；旧格式页的数据全部失效后改为槽式页；
+ * 崩溃后按槽式页插入日志 redo/undo，复用过的槽得到正确的数据
+ */
+public class SlottedPageTest {
+    private static final long MEM = 1 << 22;
+    private static final int ROWS = 21, FREED = 10, ACTIVE_FREED = 5;
+    private static final int VALUE_LEN = 2500;        // 一页放三条
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] value(int i) {
+        byte[] v = new byte[VALUE_LEN];
+        Arrays.fill(v, (byte)i);
+        return v;
+    }
+
+    @Test
+    public void testSlotReuseBumpsGen() {
+        Page pg = new PageImpl(2, PageX.initRaw(PageSize.DEFAULT), null);
+        byte[] a = DataItem.wrapDataItemRaw(value(1));
+        int posA = PageX.allocSlot(pg);
+        assertTrue(PageX.hasRoom(pg, a.length));
+        PageX.insert(pg, posA, a);
+        assertTrue(PageX.itemOffset(pg, posA) > 0);
+
+        // 数据失效后整理，槽变为空槽但保留 Gen
+        byte[] dead = a.clone();
+        DataItem.setDataItemRawInvalid(dead);
+        PageX.recoverUpdate(pg, posA, dead, 0, dead.length);
+        PageX.compact(pg);
+        assertEquals(-1, PageX.itemOffset(pg, posA));
+
+        // 复用同一个槽，Gen 加一，旧 uid 仍然读不到
+        int posB = PageX.allocSlot(pg);
+        assertEquals(posA & 0xFFFF, posB & 0xFFFF);
+        assertEquals((posA >>> 16) + 1, posB >>> 16);
+        byte[] b = DataItem.wrapDataItemRaw(value(2));
+        PageX.insert(pg, posB, b);
+        assertEquals(-1, PageX.itemOffset(pg, posA));
+        int offset = PageX.itemOffset(pg, posB);
+        assertArrayEquals(b, Arrays.copyOfRange(pg.getData(), offset, offset + b.length));
+
+        // 重放旧 Gen 的插入日志时跳过，不覆盖新数据
+        PageX.recoverSlotInsert(pg, posA, a, 0, a.length);
+        assertEquals(offset, PageX.itemOffset(pg, posB));
+        assertArrayEquals(b, Arrays.copyOfRange(pg.getData(), offset, offset + b.length));
+        assertEquals(-1, PageX.itemOffset(pg, posA));
+
+        // 页面还停在旧 Gen 的失效数据上时，重放新 Gen 的插入把它放进槽里
+        Page old = new PageImpl(2, PageX.initRaw(PageSize.DEFAULT), null);
+        PageX.recoverSlotInsert(old, posA, dead, 0, dead.length);
+        PageX.recoverSlotInsert(old, posB, b, 0, b.length);
+        assertEquals(-1, PageX.itemOffset(old, posA));
+        offset = PageX.itemOffset(old, posB);
+        assertArrayEquals(b, Arrays.copyOfRange(old.getData(), offset, offset + b.length));
+    }
+
+    @Test
+    public void testLegacyPageConvertedWhenAllInvalid() throws Exception {
+        String path = new File(tmp.getRoot(), "legacy").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm);
+        long first = dm.insert(TransactionManagerImpl.SUPER_XID, value(0));
+        dm.close();
+        tm.close();
+
+        // 在文件末尾加一个旧格式页：[FreeSpaceOffset] [Data]，uid 的低16位为字节偏移
+        PageCache pc = PageCache.open(path, MEM);
+        byte[] raw = new byte[pc.getPageSize()];
+        int fso = 2;
+        List<Integer> offsets = new ArrayList<>();
+        for(int i = 1; i <= 2; i ++) {
+            byte[] item = DataItem.wrapDataItemRaw(value(i));
+            System.arraycopy(item, 0, raw, fso, item.length);
+            offsets.add(fso);
+            fso += item.length;
+        }
+        raw[0] = (byte)(fso >>> 8);
+        raw[1] = (byte)fso;
+        int legacy = pc.newPage(raw);
+        Page one = pc.getPage(1);
+        PageOne.setCheckpoint(one, PageOne.getCheckpointLsn(one), legacy);
+        pc.flushPage(one);
+        one.release();
+        pc.close();
+
+        tm = TransactionManager.open(path);
+        DataManagerImpl dmi = (DataManagerImpl)DataManager.open(path, MEM, tm, new DMConfig());
+        long[] uids = { Types.addressToUid(legacy, offsets.get(0)), Types.addressToUid(legacy, offsets.get(1)) };
+        for(int i = 0; i < 2; i ++) {
+            assertValue(dmi, uids[i], i + 1);
+        }
+        assertFalse(isSlotted(dmi, legacy));
+
+        // 还有有效数据时保持旧格式，全部失效后整页改为槽式页
+        assertTrue(dmi.free(uids[0]) > 0);
+        assertFalse(isSlotted(dmi, legacy));
+        assertValue(dmi, uids[1], 2);
+        assertTrue(dmi.free(uids[1]) > 0);
+        assertTrue(isSlotted(dmi, legacy));
+        assertNull(dmi.read(uids[1]));
+
+        // 改好的页面可以放下一条最大的数据
+        byte[] big = new byte[DataItem.maxDataSize(dmi.pageSize())];
+        Arrays.fill(big, (byte)9);
+        long bigUid = dmi.insert(TransactionManagerImpl.SUPER_XID, big);
+        assertEquals(legacy, Types.uidToPgno(bigUid));
+        dmi.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, MEM, tm);
+        assertTrue(isSlotted((DataManagerImpl)dm, legacy));
+        assertValue(dm, first, 0);
+        DataItem di = dm.read(bigUid);
+        assertNotNull(di);
+        SubArray data = di.data();
+        assertArrayEquals(big, Arrays.copyOfRange(data.raw, data.start, data.end));
+        di.release();
+        assertNull(dm.read(uids[0]));
+        dm.close();
+        tm.close();
+    }
+
+    private static boolean isSlotted(DataManagerImpl dm, int pgno) throws Exception {
+        Page pg = dm.pc.getPage(pgno);
+        try {
+            return PageX.isSlotted(pg);
+        } finally {
+            pg.release();
+        }
+    }
+
+    private static void assertValue(DataManager dm, long uid, int i) throws Exception {
+        DataItem di = dm.read(uid);
+        assertNotNull("uid " + uid, di);
+        SubArray data = di.data();
+        assertArrayEquals(value(i), Arrays.copyOfRange(data.raw, data.start, data.end));
+        di.release();
+    }
+
+    // 子进程：插入并提交，释放一部分后再插入（复用空槽），再开一个不提交的事务复用空槽，然后崩溃
+    public static void main(String[] args) throws Exception {
+        String path = args[0];
+        DMConfig conf = new DMConfig();
+        conf.checkpointInterval = 0;
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm, conf);
+
+        long xid = tm.begin();
+        long[] old = new long[ROWS];
+        for(int i = 0; i < ROWS; i ++) {
+            old[i] = dm.insert(xid, value(i));
+            System.out.println("old " + i + " " + old[i]);
+        }
+        tm.commit(xid);
+
+        for(int i = 0; i < FREED; i ++) {
+            dm.free(old[i]);
+        }
+        xid = tm.begin();
+        for(int i = 0; i < FREED; i ++) {
+            System.out.println("new " + (100 + i) + " " + dm.insert(xid, value(100 + i)));
+        }
+        tm.commit(xid);
+
+        for(int i = FREED; i < FREED + ACTIVE_FREED; i ++) {
+            dm.free(old[i]);
+        }
+        xid = tm.begin();
+        for(int i = 0; i < ACTIVE_FREED; i ++) {
+            System.out.println("active " + (200 + i) + " " + dm.insert(xid, value(200 + i)));
+        }
+        dm.flushLog();
+        System.out.flush();
+        Runtime.getRuntime().halt(0);
+    }
+
+    @Test
+    public void testSlotInsertRecoveredAfterCrash() throws Exception {
+        String path = new File(tmp.getRoot(), "crash").getPath();
+        Map<String, List<long[]>> rows = new HashMap<>();
+        for(String line : runCrash(path)) {
+            String[] f = line.split(" ");
+            if(f.length == 3 && (f[0].equals("old") || f[0].equals("new") || f[0].equals("active"))) {
+                rows.computeIfAbsent(f[0], k -> new ArrayList<>()).add(new long[]{Long.parseLong(f[1]), Long.parseLong(f[2])});
+            }
+        }
+        List<long[]> old = rows.get("old"), fresh = rows.get("new"), active = rows.get("active");
+        assertEquals(ROWS, old.size());
+        assertEquals(FREED, fresh.size());
+        assertEquals(ACTIVE_FREED, active.size());
+
+        // 有新插入的数据复用了释放掉的槽：页号和槽号相同，Gen 不同
+        int reused = 0;
+        for(long[] n : fresh) {
+            for(long[] o : old) {
+                if(sameSlot(n[1], o[1])) {
+                    assertNotEquals(o[1], n[1]);
+                    reused ++;
+                }
+            }
+        }
+        assertTrue(reused > 0);
+
+        for(int round = 0; round < 2; round ++) {
+            TransactionManager tm = TransactionManager.open(path);
+            DataManager dm = DataManager.open(path, MEM, tm);
+            for(long[] o : old) {
+                if(o[0] < FREED + ACTIVE_FREED) {
+                    assertNull(dm.read(o[1]));
+                } else {
+                    assertValue(dm, o[1], (int)o[0]);
+                }
+            }
+            for(long[] n : fresh) {
+                assertValue(dm, n[1], (int)n[0]);
+            }
+            for(long[] a : active) {
+                assertNull(dm.read(a[1]));
+            }
+            dm.close();
+            tm.close();
+        }
+    }
+
+    private static boolean sameSlot(long a, long b) {
+        return Types.uidToPgno(a) == Types.uidToPgno(b) && (Types.uidToPos(a) & 0xFFFF) == (Types.uidToPos(b) & 0xFFFF);
+    }
+
+    private List<String> runCrash(String path) throws Exception {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), SlottedPageTest.class.getName(), path)
+            .redirectErrorStream(true)
+            .start();
+        List<String> out = new ArrayList<>();
+        try(BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while((line = r.readLine()) != null) {
+                out.add(line);
+            }
+        }
+        assertTrue(p.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(String.join("\n", out), 0, p.exitValue());
+        return out;
+    }
+}
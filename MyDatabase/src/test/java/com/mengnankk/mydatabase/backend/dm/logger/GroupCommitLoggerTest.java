@@ -0,0 +1,170 @@
+package com.mengnankk.mydatabase.backend.dm.logger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.dm.pageCache.PageSize;
+
+/**
+ * 组提交日志：超长的日志不会让写入者挂死；1、8、64 个客户端并发“提交”（写一条日志并等它落盘）时
+ * 每条日志都落盘且按序可读，多个客户端时一次 fsync 覆盖多个提交。
+ * 同时打印与逐条 fsync 相比的提交吞吐量和延迟
+ */
+public class GroupCommitLoggerTest {
+    private static final int COMMITS = 1280;
+    private static final int[] CLIENTS = { 1, 8, 64 };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // 记下 fsync 的次数
+    static class CountingGroupStrategy extends GroupCommitStrategy {
+        final AtomicInteger fsyncs = new AtomicInteger();
+
+        CountingGroupStrategy(int bufferSize) {
+            super(bufferSize);
+        }
+
+        @Override
+        public void flush(FileChannel fc) {
+            fsyncs.incrementAndGet();
+            super.flush(fc);
+        }
+    }
+
+    @Test
+    public void testRecordLargerThanRequestedBuffer() throws Exception {
+        String path = new File(tmp.getRoot(), "big").getPath();
+        GroupCommitStrategy strategy = new GroupCommitStrategy(1);
+        // 最大页面上的 update 日志：新旧两份数据加上头部
+        byte[] big = new byte[2 * PageSize.MAX + 64];
+        Arrays.fill(big, (byte)7);
+        assertTrue(strategy.getBufferSize() >= 2 * big.length);
+
+        Logger lg = Logger.create(path, strategy);
+        List<byte[]> written = new ArrayList<>();
+        for(int i = 0; i < 5; i ++) {
+            byte[] small = ("small-" + i).getBytes(StandardCharsets.UTF_8);
+            lg.flush(lg.log(small));
+            lg.flush(lg.log(big));
+            written.add(small);
+            written.add(big);
+        }
+        lg.close();
+
+        lg = Logger.open(path, FlushStrategy.newStrategy(FlushStrategy.SYNC, 0));
+        lg.rewind();
+        for(byte[] expected : written) {
+            assertArrayEquals(expected, lg.next());
+        }
+        assertNull(lg.next());
+        lg.close();
+    }
+
+    @Test
+    public void testConcurrentCommits() throws Exception {
+        System.out.println("clients  strategy  commits/s  p50(us)  p99(us)  fsyncs");
+        for(int clients : CLIENTS) {
+            Result sync = run(clients, new SyncFlushStrategy(), null);
+            CountingGroupStrategy group = new CountingGroupStrategy(1 << 20);
+            Result grouped = run(clients, group, group);
+            print(clients, "sync", sync, COMMITS);
+            print(clients, "group", grouped, group.fsyncs.get());
+            if(clients > 1) {
+                assertTrue(group.fsyncs.get() + " fsyncs for " + COMMITS + " commits", group.fsyncs.get() < COMMITS);
+            }
+        }
+    }
+
+    private static class Result {
+        double perSecond;
+        long p50, p99;
+    }
+
+    // clients 个线程共提交 COMMITS 次，结束后重新打开检查每条日志都在
+    private Result run(int clients, FlushStrategy strategy, Object tag) throws Exception {
+        String path = new File(tmp.newFolder(), "log").getPath();
+        Logger lg = Logger.create(path, strategy);
+        int perClient = COMMITS / clients;
+        long[][] latencies = new long[clients][perClient];
+
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        List<Future<?>> fs = new ArrayList<>();
+        long start = System.nanoTime();
+        for(int c = 0; c < clients; c ++) {
+            final int client = c;
+            fs.add(pool.submit(() -> {
+                for(int i = 0; i < perClient; i ++) {
+                    long t0 = System.nanoTime();
+                    lg.flush(lg.log(record(client, i)));
+                    latencies[client][i] = System.nanoTime() - t0;
+                }
+                return null;
+            }));
+        }
+        for(Future<?> f : fs) {
+            f.get(120, TimeUnit.SECONDS);
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        lg.close();
+
+        Set<String> expected = new HashSet<>();
+        for(int c = 0; c < clients; c ++) {
+            for(int i = 0; i < perClient; i ++) {
+                expected.add(new String(record(c, i), StandardCharsets.UTF_8));
+            }
+        }
+        Logger reader = Logger.open(path, FlushStrategy.newStrategy(FlushStrategy.SYNC, 0));
+        reader.rewind();
+        int[] last = new int[clients];
+        Arrays.fill(last, -1);
+        byte[] log;
+        while((log = reader.next()) != null) {
+            String s = new String(log, StandardCharsets.UTF_8);
+            assertTrue(s, expected.remove(s));
+            // 同一客户端的日志按提交顺序排列
+            String[] f = s.split(":");
+            int client = Integer.parseInt(f[0]), seq = Integer.parseInt(f[1]);
+            assertEquals(last[client] + 1, seq);
+            last[client] = seq;
+        }
+        reader.close();
+        assertTrue(expected.size() + " commits lost", expected.isEmpty());
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        Result r = new Result();
+        r.perSecond = perClient * clients / (elapsed / 1e9);
+        r.p50 = all[all.length / 2] / 1000;
+        r.p99 = all[all.length * 99 / 100] / 1000;
+        return r;
+    }
+
+    private static byte[] record(int client, int seq) {
+        return (client + ":" + seq + ":commit").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void print(int clients, String strategy, Result r, int fsyncs) {
+        System.out.printf("%7d  %-8s  %9.0f  %7d  %7d  %6d%n", clients, strategy, r.perSecond, r.p50, r.p99, fsyncs);
+    }
+}
@@ -0,0 +1,134 @@
+package com.mengnankk.mydatabase.backend.dm.logger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 日志校验：CRC32/CRC32C 与标准值一致；校验失败的日志及其之后的部分在打开时被截掉；
+ * 按 CRC32 写下的段仍可读取，新日志写入 CRC32C 的新段
+ */
+public class LogChecksumTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static FlushStrategy sync() {
+        return FlushStrategy.newStrategy(FlushStrategy.SYNC, 0);
+    }
+
+    private static byte[] record(int i) {
+        return ("record-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testKnownValues() {
+        byte[] check = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xCBF43926, LogChecksum.forVersion(LogChecksum.VERSION_CRC32).checksum(ByteBuffer.wrap(check)));
+        assertEquals(0xE3069283, LogChecksum.forVersion(LogChecksum.VERSION_CRC32C).checksum(ByteBuffer.wrap(check)));
+
+        // 只校验 position 到 limit 之间的字节，且不移动 position
+        byte[] padded = "xx123456789yy".getBytes(StandardCharsets.US_ASCII);
+        ByteBuffer buf = ByteBuffer.wrap(padded, 2, 9);
+        for(int version : new int[]{ LogChecksum.VERSION_LEGACY, LogChecksum.VERSION_CRC32, LogChecksum.VERSION_CRC32C }) {
+            LogChecksum c = LogChecksum.forVersion(version);
+            assertEquals(c.checksum(ByteBuffer.wrap(check)), c.checksum(buf));
+            assertEquals(2, buf.position());
+        }
+    }
+
+    @Test
+    public void testCorruptRecordTruncated() throws Exception {
+        String path = new File(tmp.getRoot(), "corrupt").getPath();
+        Logger lg = Logger.create(path, sync());
+        List<Long> lsns = new ArrayList<>();
+        for(int i = 0; i < 5; i ++) {
+            lsns.add(lg.log(record(i)));
+        }
+        lg.flush(Long.MAX_VALUE);
+        lg.close();
+
+        // 改坏第三条日志数据的最后一个字节；第一个段的 BaseLSN 等于段头大小，LSN 即文件中的偏移
+        File seg = LogSegment.list(path + LoggerImpl.LOG_SUFFIX).get(0);
+        long lsn = lsns.get(2);
+        long position = lsn + 8 + record(2).length - 1;
+        try(RandomAccessFile raf = new RandomAccessFile(seg, "rw")) {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x40);
+        }
+
+        lg = Logger.open(path, sync());
+        lg.rewind();
+        assertArrayEquals(record(0), lg.next());
+        assertArrayEquals(record(1), lg.next());
+        assertNull(lg.next());
+        assertEquals(lsn, lg.endLsn());
+        // 截断之后接着写
+        lg.flush(lg.log(record(9)));
+        lg.close();
+
+        lg = Logger.open(path, sync());
+        lg.rewind();
+        assertArrayEquals(record(0), lg.next());
+        assertArrayEquals(record(1), lg.next());
+        assertArrayEquals(record(9), lg.next());
+        assertNull(lg.next());
+        lg.close();
+    }
+
+    @Test
+    public void testCrc32SegmentStillReadable() throws Exception {
+        String path = new File(tmp.getRoot(), "crc32").getPath();
+        String prefix = path + LoggerImpl.LOG_SUFFIX;
+        // 手工写一个 CRC32 的段
+        LogChecksum crc32 = LogChecksum.forVersion(LogChecksum.VERSION_CRC32);
+        ByteBuffer buf = ByteBuffer.allocate(1024);
+        buf.putInt(LogSegment.MAGIC).putInt(LogChecksum.VERSION_CRC32).putLong(LogSegment.HEADER_SIZE);
+        for(int i = 0; i < 3; i ++) {
+            byte[] data = record(i);
+            buf.putInt(data.length).putInt(crc32.checksum(ByteBuffer.wrap(data))).put(data);
+        }
+        buf.flip();
+        try(RandomAccessFile raf = new RandomAccessFile(LogSegment.segmentFile(prefix, LogSegment.HEADER_SIZE), "rw")) {
+            raf.getChannel().write(buf);
+        }
+
+        Logger lg = Logger.open(path, sync());
+        lg.rewind();
+        for(int i = 0; i < 3; i ++) {
+            assertArrayEquals(record(i), lg.next());
+        }
+        assertNull(lg.next());
+        lg.flush(lg.log(record(3)));
+        lg.close();
+
+        // 新日志没有追加到 CRC32 段上，而是在新的 CRC32C 段中
+        List<File> files = LogSegment.list(prefix);
+        assertTrue(files.size() >= 2);
+        try(RandomAccessFile raf = new RandomAccessFile(files.get(files.size() - 1), "r")) {
+            raf.seek(4);
+            assertEquals(LogChecksum.VERSION_CRC32C, raf.readInt());
+        }
+        lg = Logger.open(path, sync());
+        lg.rewind();
+        for(int i = 0; i < 4; i ++) {
+            assertArrayEquals(record(i), lg.next());
+        }
+        assertNull(lg.next());
+        lg.close();
+    }
+}
@@ -0,0 +1,108 @@
+package com.mengnankk.mydatabase.backend.dm.logger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 打开日志时头部读不出的段：新建段时崩溃留下的最后一段移到一边，不删除；
+ * 已经写入过日志的段头部损坏时拒绝打开，文件保持原样
+ */
+public class LogSegmentTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static FlushStrategy sync() {
+        return FlushStrategy.newStrategy(FlushStrategy.SYNC, 0);
+    }
+
+    private static byte[] record(int i) {
+        return ("record-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // 写几条日志后关闭，在末尾放一个内容为 tail 的新段，返回该段文件
+    private static File prepare(String path, byte[] tail) throws Exception {
+        Logger lg = Logger.create(path, sync());
+        for(int i = 0; i < 3; i ++) {
+            lg.log(record(i));
+        }
+        lg.flush(Long.MAX_VALUE);
+        long end = lg.endLsn();
+        lg.close();
+        File f = LogSegment.segmentFile(path + LoggerImpl.LOG_SUFFIX, end);
+        try(RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.write(tail);
+        }
+        return f;
+    }
+
+    private static void assertRecords(String path, int n) {
+        Logger lg = Logger.open(path, sync());
+        lg.rewind();
+        for(int i = 0; i < n; i ++) {
+            assertArrayEquals(record(i), lg.next());
+        }
+        assertNull(lg.next());
+        lg.close();
+    }
+
+    @Test
+    public void testIncompleteTailMovedAside() throws Exception {
+        // 头部只写了一部分；头部长度已落盘而内容没有落盘
+        byte[][] tails = { new byte[7], new byte[LogSegment.HEADER_SIZE] };
+        for(int t = 0; t < tails.length; t ++) {
+            String path = new File(tmp.getRoot(), "tail" + t).getPath();
+            File seg = prepare(path, tails[t]);
+            assertRecords(path, 3);
+            assertFalse(seg.exists());
+            File bad = new File(seg.getPath() + LoggerImpl.BAD_SUFFIX);
+            assertTrue(bad.exists());
+            assertEquals(tails[t].length, bad.length());
+
+            // 之后可以正常写入，移走的文件不被当作段
+            Logger lg = Logger.open(path, sync());
+            lg.flush(lg.log(record(3)));
+            lg.close();
+            assertRecords(path, 4);
+        }
+    }
+
+    // 子进程：打开日志，头部损坏时 Panic 以状态 1 退出
+    public static void main(String[] args) {
+        Logger.open(args[0], sync()).close();
+        System.exit(0);
+    }
+
+    @Test
+    public void testDamagedTailWithDataRejected() throws Exception {
+        String path = new File(tmp.getRoot(), "damaged").getPath();
+        byte[] tail = new byte[LogSegment.HEADER_SIZE + 64];
+        Arrays.fill(tail, (byte)0x5A);
+        File seg = prepare(path, tail);
+
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), LogSegmentTest.class.getName(), path)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        assertTrue(p.waitFor(60, TimeUnit.SECONDS));
+        assertEquals(1, p.exitValue());
+        assertTrue(seg.exists());
+        assertEquals(tail.length, seg.length());
+        assertFalse(new File(seg.getPath() + LoggerImpl.BAD_SUFFIX).exists());
+    }
+}
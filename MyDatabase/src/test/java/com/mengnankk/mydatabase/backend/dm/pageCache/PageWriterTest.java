@@ -0,0 +1,162 @@
+package com.mengnankk.mydatabase.backend.dm.pageCache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.dm.logger.Logger;
+import com.mengnankk.mydatabase.backend.dm.page.Page;
+
+/**
+ * 脏页写回：后台线程按批写回，每批 fsync 一次；脏页超过上限时提前写回；
+ * 不论后台写回还是驱逐，页面写出之前修改它的日志都已刷盘
+ */
+public class PageWriterTest {
+    private static final int PAGES = 64;
+    private static final int PAGE_SIZE = PageSize.DEFAULT;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // 只记下刷盘到的LSN
+    static class FlushLogger implements Logger {
+        volatile long flushed;
+
+        public synchronized void flush(long lsn) {
+            flushed = Math.max(flushed, lsn);
+        }
+
+        public long log(byte[] data) { throw new UnsupportedOperationException(); }
+        public long endLsn() { throw new UnsupportedOperationException(); }
+        public void reclaim(long lsn) { throw new UnsupportedOperationException(); }
+        public void truncate(long x) { throw new UnsupportedOperationException(); }
+        public byte[] next() { throw new UnsupportedOperationException(); }
+        public void rewind() { throw new UnsupportedOperationException(); }
+        public void rewind(long lsn) { throw new UnsupportedOperationException(); }
+        public void close() { }
+    }
+
+    // 写页面时检查 WAL：该页最近一次修改的日志必须已经刷盘
+    static class CheckedCache extends PageCacheImpl {
+        final FlushLogger logger = new FlushLogger();
+        final Map<Integer, Long> lsns = new ConcurrentHashMap<>();
+        final AtomicInteger violations = new AtomicInteger();
+
+        CheckedCache(RandomAccessFile raf, int maxResource) {
+            super(raf, raf.getChannel(), PAGE_SIZE, 0, maxResource, new LRUPolicy());
+            setLogger(logger);
+        }
+
+        @Override
+        protected void writePage(int pgno, byte[] data) {
+            Long lsn = lsns.get(pgno);
+            if(lsn != null && logger.flushed < lsn) {
+                violations.incrementAndGet();
+            }
+            super.writePage(pgno, data);
+        }
+    }
+
+    private CheckedCache newCache(String name, int maxResource) throws Exception {
+        return new CheckedCache(new RandomAccessFile(new File(tmp.getRoot(), name), "rw"), maxResource);
+    }
+
+    // 把每个页面改成 round 的内容并标上新的LSN
+    private static void dirtyAll(CheckedCache pc, int round) throws Exception {
+        for(int pgno = 1; pgno <= PAGES; pgno ++) {
+            Page pg = pc.getPage(pgno);
+            pg.rLock();
+            Arrays.fill(pg.getData(), (byte)(pgno + round));
+            long lsn = (long)round * PAGES + pgno;
+            pc.lsns.put(pgno, lsn);
+            pg.setLsn(lsn);
+            pg.setDirty(true);
+            pg.rUnLock();
+            pg.release();
+        }
+    }
+
+    private static void awaitDirty(CheckedCache pc, int atMost) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while(pc.getDirtyPageCount() > atMost && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(pc.getDirtyPageCount() + " dirty pages", pc.getDirtyPageCount() <= atMost);
+    }
+
+    private void verifyFile(String name, int round) throws Exception {
+        try(RandomAccessFile raf = new RandomAccessFile(new File(tmp.getRoot(), name), "r")) {
+            assertEquals((long)PAGES * PAGE_SIZE, raf.length());
+            byte[] data = new byte[PAGE_SIZE];
+            byte[] expected = new byte[PAGE_SIZE];
+            for(int pgno = 1; pgno <= PAGES; pgno ++) {
+                raf.readFully(data);
+                Arrays.fill(expected, (byte)(pgno + round));
+                assertArrayEquals("page " + pgno, expected, data);
+            }
+        }
+    }
+
+    @Test
+    public void testBackgroundBatches() throws Exception {
+        CheckedCache pc = newCache("batch", PAGES * 2);
+        for(int pgno = 1; pgno <= PAGES; pgno ++) {
+            pc.newPage(new byte[PAGE_SIZE]);
+        }
+        pc.startWriter(20, 0, 16);
+        dirtyAll(pc, 1);
+        awaitDirty(pc, 0);
+
+        FlushStats stats = pc.getFlushStats();
+        assertEquals(PAGES, stats.batchWrites);
+        assertTrue(stats.batches >= PAGES / 16);
+        // 每批只 fsync 一次
+        assertEquals(stats.batches, stats.fsyncs);
+        assertEquals(0, stats.evictionWrites);
+        assertEquals(0, pc.violations.get());
+        pc.close();
+        verifyFile("batch", 1);
+    }
+
+    @Test
+    public void testDirtyLimitWakesWriter() throws Exception {
+        CheckedCache pc = newCache("limit", PAGES * 2);
+        for(int pgno = 1; pgno <= PAGES; pgno ++) {
+            pc.newPage(new byte[PAGE_SIZE]);
+        }
+        // 定时写回要一小时后才会发生，只能是脏页超限触发的
+        pc.startWriter(3600_000, 8, 16);
+        dirtyAll(pc, 2);
+        awaitDirty(pc, 8);
+        assertTrue(pc.getFlushStats().batches > 0);
+        assertEquals(0, pc.violations.get());
+        pc.close();
+        verifyFile("limit", 2);
+    }
+
+    @Test
+    public void testEvictionFollowsWal() throws Exception {
+        CheckedCache pc = newCache("evict", 16);
+        for(int pgno = 1; pgno <= PAGES; pgno ++) {
+            pc.newPage(new byte[PAGE_SIZE]);
+        }
+        dirtyAll(pc, 3);
+        assertTrue(pc.getFlushStats().evictionWrites >= PAGES - 16);
+        assertEquals(0, pc.violations.get());
+        pc.flushAll();
+        assertEquals(0, pc.getDirtyPageCount());
+        pc.close();
+        verifyFile("evict", 3);
+    }
+}
@@ -0,0 +1,145 @@
+package com.mengnankk.mydatabase.backend.dm.pageCache;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.dm.DMConfig;
+import com.mengnankk.mydatabase.backend.dm.page.Page;
+
+/**
+ * 页面置换策略：被引用的页面不会被选出；LRU-K 和 2Q 在顺序扫描下保住热点页；
+ * 四种策略下页面缓存的读写结果都一样
+ */
+public class ReplacementPolicyTest {
+    private static final String[] POLICIES = {
+        ReplacementPolicy.LRU, ReplacementPolicy.CLOCK, ReplacementPolicy.LRU_K, ReplacementPolicy.TWO_Q
+    };
+    private static final int CAPACITY = 8;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    // 按 AbstractCache 的调用顺序模拟容量为 capacity 的缓存，返回命中次数
+    private static int simulate(ReplacementPolicy p, int capacity, List<Long> trace) {
+        Set<Long> resident = new HashSet<>();
+        int hits = 0;
+        for(long pgno : trace) {
+            if(resident.contains(pgno)) {
+                hits ++;
+                p.pin(pgno);
+            } else {
+                if(resident.size() >= capacity) {
+                    long victim = p.victim();
+                    assertTrue(resident.remove(victim));
+                    p.remove(victim);
+                }
+                resident.add(pgno);
+            }
+            p.access(pgno);
+            p.unpin(pgno);
+        }
+        return hits;
+    }
+
+    @Test
+    public void testPinnedNeverVictim() {
+        for(String name : POLICIES) {
+            ReplacementPolicy p = ReplacementPolicy.newPolicy(name, CAPACITY);
+            for(long pgno = 1; pgno <= CAPACITY; pgno ++) {
+                p.access(pgno);
+            }
+            // 全部被引用时没有可淘汰的页面
+            assertEquals(name, -1, p.victim());
+            for(long pgno = 1; pgno <= CAPACITY; pgno += 2) {
+                p.unpin(pgno);
+            }
+            Set<Long> victims = new HashSet<>();
+            for(int i = 0; i < CAPACITY / 2; i ++) {
+                long v = p.victim();
+                assertTrue(name + " picked " + v, v % 2 == 1);
+                assertTrue(name, victims.add(v));
+                p.remove(v);
+            }
+            assertEquals(name, -1, p.victim());
+
+            // 重新引用过的页面要等再次 unpin 才能被选出
+            p.unpin(2);
+            p.pin(2);
+            p.access(2);
+            assertEquals(name, -1, p.victim());
+            p.unpin(2);
+            assertEquals(name, 2, p.victim());
+        }
+    }
+
+    @Test
+    public void testScanResistance() {
+        // 4 个热点页反复访问，每轮之间夹着 6 个只访问一次的页面，LRU 下热点页每轮都被挤出
+        List<Long> trace = new ArrayList<>();
+        long next = 1000;
+        for(int round = 0; round < 50; round ++) {
+            for(long hot = 1; hot <= 4; hot ++) {
+                trace.add(hot);
+            }
+            for(int i = 0; i < CAPACITY - 2; i ++) {
+                trace.add(next ++);
+            }
+        }
+        int lru = simulate(ReplacementPolicy.newPolicy(ReplacementPolicy.LRU, CAPACITY), CAPACITY, trace);
+        int lruk = simulate(ReplacementPolicy.newPolicy(ReplacementPolicy.LRU_K, CAPACITY), CAPACITY, trace);
+        int twoQ = simulate(ReplacementPolicy.newPolicy(ReplacementPolicy.TWO_Q, CAPACITY), CAPACITY, trace);
+        int clock = simulate(ReplacementPolicy.newPolicy(ReplacementPolicy.CLOCK, CAPACITY), CAPACITY, trace);
+        System.out.println("hits lru=" + lru + " clock=" + clock + " lruk=" + lruk + " 2q=" + twoQ);
+        assertTrue(lruk > lru);
+        assertTrue(twoQ > lru);
+    }
+
+    @Test
+    public void testPageCacheWithEachPolicy() throws Exception {
+        final int pages = 64;
+        for(String name : POLICIES) {
+            DMConfig conf = new DMConfig();
+            conf.replacement = name;
+            String path = new File(tmp.getRoot(), name).getPath();
+            PageCache pc = PageCache.create(path, (long)CAPACITY * 2 * conf.pageSize, conf);
+            for(int i = 1; i <= pages; i ++) {
+                assertEquals(i, pc.newPage(content(conf.pageSize, i)));
+            }
+            Random r = new Random(name.hashCode());
+            for(int i = 0; i < 2000; i ++) {
+                int pgno = 1 + r.nextInt(pages);
+                Page pg = pc.getPage(pgno);
+                assertArrayEquals(name, content(conf.pageSize, pgno), pg.getData());
+                // 偶尔同时引用两个页面
+                if(r.nextInt(4) == 0) {
+                    int other = 1 + r.nextInt(pages);
+                    Page o = pc.getPage(other);
+                    assertArrayEquals(name, content(conf.pageSize, other), o.getData());
+                    o.release();
+                }
+                pg.release();
+            }
+            pc.close();
+            assertEquals(name, (long)pages * conf.pageSize, new File(path + ".db").length());
+        }
+    }
+
+    private static byte[] content(int pageSize, int pgno) {
+        byte[] data = new byte[pageSize];
+        Arrays.fill(data, (byte)pgno);
+        return data;
+    }
+}
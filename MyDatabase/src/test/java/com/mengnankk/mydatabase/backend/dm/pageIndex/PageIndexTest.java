@@ -0,0 +1,53 @@
+package com.mengnankk.mydatabase.backend.dm.pageIndex;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import com.mengnankk.mydatabase.backend.dm.pageCache.PageSize;
+
+/**
+ * 页面索引：重复 add 同一页时以最后一次为准，被替换的 PageInfo 不会再被选出；
+ * 优先取本线程上次用的页面
+ */
+public class PageIndexTest {
+    private static final int PAGE_SIZE = PageSize.DEFAULT;
+
+    @Test
+    public void testAddSupersedes() {
+        PageIndex pIndex = new PageIndex(PAGE_SIZE);
+        pIndex.add(5, 100);
+        pIndex.add(5, PAGE_SIZE / 2);
+        assertEquals(1, pIndex.pages().size());
+
+        PageInfo pi = pIndex.select(PAGE_SIZE / 4);
+        assertEquals(5, pi.pgno);
+        assertEquals(PAGE_SIZE / 2, pi.freeSpace);
+        // 旧的 PageInfo 还在小的档里，取出时被丢弃
+        assertNull(pIndex.select(50));
+
+        // 反复替换后索引中仍只有最后的值
+        for(int i = 0; i < 5000; i ++) {
+            pIndex.add(7, i % PAGE_SIZE);
+        }
+        assertEquals(1, pIndex.pages().size());
+        pi = pIndex.select(1);
+        assertEquals(7, pi.pgno);
+        assertEquals(4999, pi.freeSpace);
+        assertNull(pIndex.select(1));
+    }
+
+    @Test
+    public void testPreferredPage() {
+        PageIndex pIndex = new PageIndex(PAGE_SIZE);
+        pIndex.add(2, PAGE_SIZE);
+        pIndex.add(3, 2000);
+        assertEquals(3, pIndex.select(100, 3).pgno);
+        // 首选页放不下时按空闲空间选
+        pIndex.add(3, 2000);
+        assertEquals(2, pIndex.select(3000, 3).pgno);
+        assertEquals(3, pIndex.select(1000).pgno);
+        assertNull(pIndex.select(1));
+    }
+}
@@ -0,0 +1,355 @@
+package com.mengnankk.mydatabase.backend.im;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.common.SubArray;
+import com.mengnankk.mydatabase.backend.dm.DMConfig;
+import com.mengnankk.mydatabase.backend.dm.DataManager;
+import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
+import com.mengnankk.mydatabase.backend.dm.logger.FlushStrategy;
+import com.mengnankk.mydatabase.backend.dm.pageCache.PageSize;
+import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+import com.mengnankk.mydatabase.backend.tm.TransactionManagerImpl;
+import com.mengnankk.mydatabase.common.Error;
+
+public class BPlusTreeTest {
+    private static final long MEM = 1 << 26;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String path;
+    private TransactionManager tm;
+    private DataManager dm;
+
+    // 每条日志都落盘时插入太慢，改为成组落盘
+    private static DMConfig config() {
+        DMConfig conf = new DMConfig();
+        conf.logFlush = FlushStrategy.GROUP;
+        return conf;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        path = new File(tmp.getRoot(), "bt").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm, config());
+    }
+
+    @After
+    public void tearDown() {
+        if(dm != null) {
+            dm.close();
+            tm.close();
+        }
+    }
+
+    private void reopen() {
+        dm.close();
+        tm.close();
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, MEM, tm, config());
+    }
+
+    /**
+     * 多个线程并发插入（键有大量重复，插入位置交错），同时有线程查找已插入的键；
+     * 结束后每个插入过的 (key, uid) 都能查到，重新打开后也一样
+     */
+    @Test
+    public void testConcurrentInsertAndSearch() throws Exception {
+        final int writers = 8, readers = 4, perWriter = 4000, keyRange = 3000;
+        long boot = BPlusTree.create(dm);
+        final BPlusTree tree = BPlusTree.load(boot, dm);
+
+        long[][] keys = new long[writers][perWriter];
+        long[][] uids = new long[writers][perWriter];
+        Random r = new Random(23);
+        for(int t = 0; t < writers; t ++) {
+            for(int i = 0; i < perWriter; i ++) {
+                keys[t][i] = r.nextInt(keyRange);
+                uids[t][i] = (long)(t + 1) << 32 | i;
+            }
+        }
+        AtomicIntegerArray done = new AtomicIntegerArray(writers);     // 各线程已插入的个数
+        AtomicBoolean stop = new AtomicBoolean(false);
+
+        ExecutorService pool = Executors.newFixedThreadPool(writers + readers);
+        List<Future<?>> ws = new ArrayList<>(), rs = new ArrayList<>();
+        for(int t = 0; t < writers; t ++) {
+            final int w = t;
+            ws.add(pool.submit(() -> {
+                for(int i = 0; i < perWriter; i ++) {
+                    tree.insert(keys[w][i], uids[w][i]);
+                    done.set(w, i + 1);
+                }
+                return null;
+            }));
+        }
+        for(int t = 0; t < readers; t ++) {
+            final long seed = t;
+            rs.add(pool.submit(() -> {
+                Random rr = new Random(seed);
+                int checked = 0;
+                while(!stop.get()) {
+                    int w = rr.nextInt(writers);
+                    int n = done.get(w);
+                    if(n == 0) {
+                        continue;
+                    }
+                    // 多查刚插入完成的项，它们所在的节点可能刚分裂
+                    int i = rr.nextBoolean() ? n - 1 - rr.nextInt(Math.min(n, 8)) : rr.nextInt(n);
+                    // 查找开始之前已插入完成的项必须能查到
+                    List<Long> found = tree.search(keys[w][i]);
+                    assertTrue("key " + keys[w][i] + " uid " + uids[w][i], found.contains(uids[w][i]));
+                    checked ++;
+                }
+                return checked;
+            }));
+        }
+        for(Future<?> f : ws) {
+            f.get(120, TimeUnit.SECONDS);
+        }
+        stop.set(true);
+        for(Future<?> f : rs) {
+            assertTrue((Integer)f.get(10, TimeUnit.SECONDS) > 0);
+        }
+        pool.shutdown();
+
+        verifyAll(tree, keys, uids);
+        tree.close();
+
+        reopen();
+        BPlusTree reloaded = BPlusTree.load(boot, dm);
+        verifyAll(reloaded, keys, uids);
+        reloaded.close();
+    }
+
+    /**
+     * 键的范围不断右移：几个线程交错地插入新一轮的键、删去上一轮的键。
+     * 删空的叶子（以及只剩空叶子的内部节点）被摘除回收，节点数和 .db 文件的大小不随轮数增长
+     */
+    @Test
+    public void testChurnKeepsTreeBounded() throws Exception {
+        final int threads = 4, perRound = 2000, rounds = 15;
+        long boot = BPlusTree.create(dm);
+        final BPlusTree tree = BPlusTree.load(boot, dm);
+        File db = new File(path + ".db");
+
+        churn(tree, threads, perRound, 0, rounds);
+        long size = db.length();
+        churn(tree, threads, perRound, rounds, rounds * 2);
+        // 第二批同样多的插入和删除重用回收的空间，不重用时文件会增长几倍；页内碎片留些余量
+        assertTrue(db.length() + " > " + size, db.length() <= size + size / 2);
+
+        // 只剩最后一轮的键，每层的节点数与这些键所需的相当
+        int nodes = perRound / Node.balanceNumber(PageSize.DEFAULT) + 2;
+        for(int n : countNodes(tree)) {
+            assertTrue(n + " > " + nodes, n <= nodes + 4);
+            nodes = nodes / Node.balanceNumber(PageSize.DEFAULT) + 2;
+        }
+        long last = (long)(rounds * 2 - 1) * perRound;
+        assertEquals(perRound, tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE - 1).size());
+        for(long k = last - perRound; k < last + perRound; k += 7) {
+            assertEquals("key " + k, k >= last ? 1 : 0, tree.search(k).size());
+        }
+        tree.close();
+    }
+
+    /**
+     * 旧格式的树：叶子的 LeafFlag 为 1，上界那一格为 0。
+     * 重新打开后所有的键都能查到，插入和删除落在正确的叶子上，被修改的叶子改写为新格式
+     */
+    @Test
+    public void testOpenLegacyLeaves() throws Exception {
+        final int n = 3000;
+        long boot = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(boot, dm);
+        for(long k = 0; k < n; k += 2) {
+            tree.insert(k, k + 1);
+        }
+        List<Long> leaves = leaves(tree);
+        assertTrue(leaves.size() > 2);
+        tree.close();
+        // 改写成旧格式
+        for(long uid : leaves) {
+            DataItem di = dm.read(uid);
+            di.before();
+            SubArray raw = di.data();
+            raw.raw[raw.start + Node.IS_LEAF_OFFSET] = Node.LEGACY_LEAF;
+            Node.setRawKthKey(raw, 0, Node.balanceNumber(PageSize.DEFAULT)*2+1);
+            di.after(TransactionManagerImpl.SUPER_XID);
+            di.release();
+        }
+        reopen();
+
+        tree = BPlusTree.load(boot, dm);
+        for(long k = 0; k < n; k += 2) {
+            assertEquals("key " + k, Collections.singletonList(k + 1), tree.search(k));
+        }
+        // 每个叶子的范围内都有插入和删除
+        for(long k = 1; k < n; k += 2) {
+            tree.insert(k, k + 1);
+        }
+        for(long k = 0; k < n; k += 6) {
+            assertTrue("key " + k, tree.delete(k, k + 1));
+        }
+        for(long k = 0; k < n; k ++) {
+            assertEquals("key " + k, k % 6 == 0 ? 0 : 1, tree.search(k).size());
+        }
+        List<Long> all = tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE - 1);
+        assertEquals(n - n / 6, all.size());
+        for(int i = 1; i < all.size(); i ++) {
+            assertTrue(all.get(i - 1) < all.get(i));
+        }
+        for(long uid : leaves) {
+            SubArray raw = tree.loadNode(uid).raw;
+            assertEquals(Node.LEAF, raw.raw[raw.start + Node.IS_LEAF_OFFSET]);
+        }
+        tree.close();
+    }
+
+    // 叶子层从左到右的所有节点
+    private static List<Long> leaves(BPlusTree tree) throws Exception {
+        long uid = tree.rootUid();
+        while(!tree.loadNode(uid).isLeaf()) {
+            uid = tree.loadNode(uid).firstSon();
+        }
+        List<Long> res = new ArrayList<>();
+        for(; uid != 0; uid = tree.loadNode(uid).siblingUid()) {
+            res.add(uid);
+        }
+        return res;
+    }
+
+    // 线程 t 负责第 t, t+threads, ... 个键：每轮插入本轮的键，再删去上一轮的键
+    private static void churn(BPlusTree tree, int threads, int perRound, int from, int to) throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> fs = new ArrayList<>();
+        for(int t = 0; t < threads; t ++) {
+            final int w = t;
+            fs.add(pool.submit(() -> {
+                for(int r = from; r < to; r ++) {
+                    for(long k = (long)r * perRound + w; k < (long)(r + 1) * perRound; k += threads) {
+                        tree.insert(k, k + 1);
+                    }
+                    if(r > 0) {
+                        for(long k = (long)(r - 1) * perRound + w; k < (long)r * perRound; k += threads) {
+                            assertTrue("key " + k, tree.delete(k, k + 1));
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        for(Future<?> f : fs) {
+            f.get(120, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+    }
+
+    // 从叶子层开始，每层沿第一个子节点找到最左边的节点，再沿兄弟指针数出这一层的节点数
+    private static List<Integer> countNodes(BPlusTree tree) throws Exception {
+        List<Long> firsts = new ArrayList<>();
+        long uid = tree.rootUid();
+        while(true) {
+            firsts.add(0, uid);
+            Node node = tree.loadNode(uid);
+            if(node.isLeaf()) {
+                break;
+            }
+            uid = node.firstSon();
+        }
+        List<Integer> counts = new ArrayList<>();
+        for(long first : firsts) {
+            int n = 0;
+            for(uid = first; uid != 0; uid = tree.loadNode(uid).siblingUid()) {
+                n ++;
+            }
+            counts.add(n);
+        }
+        return counts;
+    }
+
+    /**
+     * 数据量不满一段时切成几块并行排序，归并后建出的树与逐个插入的结果相同，之后还能正常插入
+     */
+    @Test
+    public void testBulkLoadSmallInput() throws Exception {
+        final int n = 50000, keyRange = 20000;
+        long[][] keys = new long[1][n + 1000];
+        long[][] uids = new long[1][n + 1000];
+        Random r = new Random(7);
+        BulkLoader loader = new BulkLoader(dm);
+        long boot;
+        try {
+            for(int i = 0; i < n; i ++) {
+                keys[0][i] = r.nextInt(keyRange);
+                uids[0][i] = i + 1;
+                loader.add(keys[0][i], uids[0][i]);
+            }
+            boot = loader.build();
+        } finally {
+            loader.close();
+        }
+        BPlusTree tree = BPlusTree.load(boot, dm);
+        for(int i = n; i < n + 1000; i ++) {
+            keys[0][i] = r.nextInt(keyRange);
+            uids[0][i] = i + 1;
+            tree.insert(keys[0][i], uids[0][i]);
+        }
+        verifyAll(tree, keys, uids);
+        tree.close();
+    }
+
+    /**
+     * 读不到的节点（已被回收）报 NullEntryException，而不是在断言关闭时带着 null 继续执行
+     */
+    @Test
+    public void testLoadFreedNode() throws Exception {
+        long uid = dm.insert(TransactionManagerImpl.SUPER_XID, Node.newNilRootRaw(PageSize.DEFAULT));
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+        Node.loadNode(tree, uid).release();
+        dm.free(uid);
+        try {
+            Node.loadNode(tree, uid);
+            fail();
+        } catch(Exception e) {
+            assertSame(Error.NullEntryException, e);
+        }
+        tree.close();
+    }
+
+    private void verifyAll(BPlusTree tree, long[][] keys, long[][] uids) throws Exception {
+        int total = 0;
+        for(int t = 0; t < keys.length; t ++) {
+            for(int i = 0; i < keys[t].length; i ++) {
+                List<Long> found = tree.search(keys[t][i]);
+                assertTrue("key " + keys[t][i] + " uid " + uids[t][i], found.contains(uids[t][i]));
+                total ++;
+            }
+        }
+        // 整棵树按键顺序扫描恰好得到所有插入的项
+        assertEquals(total, tree.searchRange(Long.MIN_VALUE, Long.MAX_VALUE - 1).size());
+    }
+}
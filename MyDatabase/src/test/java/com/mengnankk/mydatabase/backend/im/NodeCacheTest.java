@@ -0,0 +1,100 @@
+package com.mengnankk.mydatabase.backend.im;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.dm.DataManager;
+import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+
+/**
+ * B+树节点缓存：失效之后用旧版本号放入的副本被丢弃；按访问频率淘汰，容量为 0 时不缓存；
+ * 查找经过的节点被缓存，修改节点后缓存的副本失效，下次查找读到新内容
+ */
+public class NodeCacheTest {
+    private static final long MEM = 1 << 22;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void testStaleStampRejected() {
+        NodeCache cache = new NodeCache(64);
+        Node before = new Node();
+        long stamp = cache.stamp(1);
+        // 读取者取得版本号之后节点被修改
+        cache.invalidate(1);
+        cache.put(1, before, stamp);
+        assertNull(cache.get(1));
+
+        Node after = new Node();
+        cache.put(1, after, cache.stamp(1));
+        assertSame(after, cache.get(1));
+        cache.invalidate(1);
+        assertNull(cache.get(1));
+    }
+
+    @Test
+    public void testFrequentNodesKept() {
+        final int capacity = 64;
+        NodeCache cache = new NodeCache(capacity);
+        Node hot = new Node();
+        cache.put(0, hot, cache.stamp(0));
+        for(int i = 0; i < 10; i ++) {
+            assertSame(hot, cache.get(0));
+        }
+        for(long uid = 1; uid <= 1000; uid ++) {
+            cache.put(uid, new Node(), cache.stamp(uid));
+        }
+        assertSame(hot, cache.get(0));
+        int cached = 0;
+        for(long uid = 1; uid <= 1000; uid ++) {
+            if(cache.get(uid) != null) {
+                cached ++;
+            }
+        }
+        assertEquals(capacity - 1, cached);
+
+        cache.clear();
+        assertNull(cache.get(0));
+
+        NodeCache disabled = new NodeCache(0);
+        disabled.put(1, hot, disabled.stamp(1));
+        assertNull(disabled.get(1));
+    }
+
+    @Test
+    public void testModifiedNodeInvalidated() throws Exception {
+        String path = new File(tmp.getRoot(), "nc").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm);
+        BPlusTree tree = BPlusTree.load(BPlusTree.create(dm), dm);
+        for(long key = 0; key < 10; key ++) {
+            tree.insert(key, key + 100);
+        }
+
+        // 只有一个叶子作根，查找后它在缓存中
+        long root = tree.rootUid();
+        assertEquals(Arrays.asList(105L), tree.search(5));
+        Node cached = tree.nodeCache.get(root);
+        assertNotNull(cached);
+        assertSame(cached, tree.loadNode(root));
+
+        tree.insert(5, 200);
+        assertNull(tree.nodeCache.get(root));
+        assertEquals(2, tree.search(5).size());
+        assertNotNull(tree.nodeCache.get(root));
+
+        tree.close();
+        dm.close();
+        tm.close();
+    }
+}
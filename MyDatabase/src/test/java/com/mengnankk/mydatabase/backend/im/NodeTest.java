@@ -0,0 +1,134 @@
+package com.mengnankk.mydatabase.backend.im;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.mengnankk.mydatabase.backend.common.SubArray;
+import com.mengnankk.mydatabase.backend.dm.pageCache.PageSize;
+import com.mengnankk.mydatabase.backend.utils.Parser;
+
+/**
+ * 节点中的键：就地读写的字节与 Parser 的大端编码一致，不受 SubArray 起点影响；
+ * 二分查找与逐个比较的结果相同，含重复键和负数键；内部节点和叶子上的查找结果正确
+ */
+public class NodeTest {
+    private static final int PAGE_SIZE = PageSize.DEFAULT;
+    private static final int PAD = 13;
+
+    // 节点放在一个更大的数组中间，起点不对齐
+    private static SubArray newRaw() {
+        int size = Node.nodeSize(PAGE_SIZE);
+        return new SubArray(new byte[PAD + size + PAD], PAD, PAD + size);
+    }
+
+    // 按 keys 填一个节点，第 i 个子节点为 1000 + i
+    private static Node newNode(boolean leaf, long[] keys) {
+        SubArray raw = newRaw();
+        Node.setRawIsLeaf(raw, leaf);
+        Node.setRawNoKeys(raw, keys.length);
+        Node.setRawSibling(raw, 77);
+        for(int i = 0; i < keys.length; i ++) {
+            Node.setRawKthSon(raw, 1000 + i, i);
+            Node.setRawKthKey(raw, keys[i], i);
+        }
+        Node n = new Node();
+        n.raw = raw;
+        return n;
+    }
+
+    @Test
+    public void testRawLayout() {
+        SubArray raw = newRaw();
+        Node.setRawNoKeys(raw, 40);
+        Node.setRawSibling(raw, -2);
+        Node.setRawKthSon(raw, 0x0102030405060708L, 3);
+        Node.setRawKthKey(raw, Long.MIN_VALUE + 1, 3);
+
+        assertEquals(40, Node.getRawNoKeys(raw));
+        assertEquals(-2, Node.getRawSibling(raw));
+        int pair = PAD + Node.NODE_HEADER_SIZE + 3 * 16;
+        assertArrayEquals(Parser.long2Byte(0x0102030405060708L), Arrays.copyOfRange(raw.raw, pair, pair + 8));
+        assertArrayEquals(Parser.long2Byte(Long.MIN_VALUE + 1), Arrays.copyOfRange(raw.raw, pair + 8, pair + 16));
+        assertArrayEquals(Parser.long2Byte(-2), Arrays.copyOfRange(raw.raw, PAD + Node.SIBLING_OFFSET, PAD + Node.SIBLING_OFFSET + 8));
+        assertArrayEquals(Parser.short2Byte((short)40), Arrays.copyOfRange(raw.raw, PAD + Node.NO_KEYS_OFFSET, PAD + Node.NO_KEYS_OFFSET + 2));
+        assertEquals(Long.MIN_VALUE + 1, Node.getRawKthKey(raw, 3));
+        // 两侧的填充没有被写到
+        for(int i = 0; i < PAD; i ++) {
+            assertEquals(0, raw.raw[i]);
+            assertEquals(0, raw.raw[raw.raw.length - 1 - i]);
+        }
+
+        // 后移一格
+        Node.setRawKthKey(raw, 9, 2);
+        Node.setRawNoKeys(raw, 4);
+        Node.shiftRawKth(raw, 2);
+        assertEquals(9, Node.getRawKthKey(raw, 3));
+        assertEquals(Long.MIN_VALUE + 1, Node.getRawKthKey(raw, 4));
+    }
+
+    @Test
+    public void testBoundsMatchLinearScan() {
+        Random r = new Random(7);
+        for(int round = 0; round < 200; round ++) {
+            int noKeys = r.nextInt(Node.balanceNumber(PAGE_SIZE) * 2 + 1);
+            long[] keys = new long[noKeys];
+            for(int i = 0; i < noKeys; i ++) {
+                keys[i] = r.nextInt(20) - 10;
+            }
+            Arrays.sort(keys);
+            SubArray raw = newNode(true, keys).raw;
+            for(long key = -12; key <= 12; key ++) {
+                int lower = 0, upper = 0;
+                while(lower < noKeys && keys[lower] < key) lower ++;
+                while(upper < noKeys && keys[upper] <= key) upper ++;
+                assertEquals(lower, Node.lowerBound(raw, noKeys, key));
+                assertEquals(upper, Node.upperBound(raw, noKeys, key));
+            }
+        }
+    }
+
+    @Test
+    public void testSearchNext() {
+        Node n = newNode(false, new long[]{ 10, 20, 20, 30 });
+        // 查找取相同键中最左边的子节点，插入取最右边的
+        Node.SearchNextRes res = n.searchNext(20, true);
+        assertEquals(1001, res.uid);
+        assertEquals(1000, res.leftUid);
+        res = n.searchNext(20, false);
+        assertEquals(1003, res.uid);
+        assertEquals(1002, res.leftUid);
+        res = n.searchNext(-5, true);
+        assertEquals(1000, res.uid);
+        assertEquals(0, res.leftUid);
+        // 大于所有键时转到兄弟节点
+        res = n.searchNext(30, false);
+        assertEquals(0, res.uid);
+        assertEquals(77, res.siblingUid);
+    }
+
+    @Test
+    public void testLeafSearchRange() {
+        Node n = newNode(true, new long[]{ -3, 1, 1, 4, 8 });
+        Node.LeafSearchRangeRes res = n.leafSearchRange(1, 4);
+        assertEquals(Arrays.asList(1001L, 1002L, 1003L), res.uids);
+        assertEquals(0, res.siblingUid);
+
+        // 范围延伸到叶子之外时继续查兄弟节点
+        res = n.leafSearchRange(5, 100);
+        assertEquals(Arrays.asList(1004L), res.uids);
+        assertEquals(77, res.siblingUid);
+
+        res = n.leafSearchRange(2, 3);
+        assertEquals(new ArrayList<Long>(), res.uids);
+        assertEquals(0, res.siblingUid);
+        List<Long> all = n.leafSearchRange(Long.MIN_VALUE, Long.MAX_VALUE).uids;
+        assertEquals(5, all.size());
+    }
+}
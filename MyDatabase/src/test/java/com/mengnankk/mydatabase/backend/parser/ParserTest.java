@@ -0,0 +1,56 @@
+package com.mengnankk.mydatabase.backend.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import com.mengnankk.mydatabase.backend.parser.statement.Delete;
+import com.mengnankk.mydatabase.backend.parser.statement.Drop;
+
+/**
+ * DELETE 和 DROP 的关键字 from / table 只出现一次
+ */
+public class ParserTest {
+
+    private static Object parse(String sql) throws Exception {
+        return Parser.Parse(sql.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        Object stat = parse("delete from t where id = 5");
+        assertTrue(stat instanceof Delete);
+        Delete delete = (Delete)stat;
+        assertEquals("t", delete.tableName);
+        assertEquals("id", delete.where.singleExp1.field);
+        assertEquals("=", delete.where.singleExp1.compareOp);
+        assertEquals("5", delete.where.singleExp1.value);
+
+        delete = (Delete)parse("delete from t where id > 1 and id < 9");
+        assertEquals("and", delete.where.logicOp);
+        assertEquals("<", delete.where.singleExp2.compareOp);
+        assertEquals("9", delete.where.singleExp2.value);
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        Object stat = parse("drop table t");
+        assertTrue(stat instanceof Drop);
+        assertEquals("t", ((Drop)stat).tableName);
+    }
+
+    @Test
+    public void testKeywordRequiredOnce() {
+        for(String sql : new String[] { "delete from from t where id = 5", "drop table table t", "delete t where id = 5", "drop t" }) {
+            try {
+                parse(sql);
+                fail(sql);
+            } catch(Exception expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.mengnankk.mydatabase.backend.tbm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.dm.DataManager;
+import com.mengnankk.mydatabase.backend.server.Executor;
+import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+import com.mengnankk.mydatabase.backend.vm.VersionManagerImpl;
+
+/**
+ * 冻结并截断XID文件：已提交的行仍然可见，仍被引用的已回滚事务写下的行仍然不可见，
+ * 重新打开后不变；冻结了一部分数据、还没截断时崩溃，恢复后结果相同
+ */
+public class FreezeTest {
+    private static final long MEM = 1 << 22;
+    private static final int ROWS = 20;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private TableManagerImpl tbm;
+    private Executor exe;
+
+    @After
+    public void tearDown() {
+        close();
+    }
+
+    private void create(String path) {
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+        tbm = (TableManagerImpl)TableManager.create(path, new VersionManagerImpl(tm, dm), dm);
+        exe = new Executor(tbm);
+    }
+
+    private void open(String path) {
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, MEM, tm);
+        tbm = (TableManagerImpl)TableManager.open(path, new VersionManagerImpl(tm, dm), dm);
+        exe = new Executor(tbm);
+    }
+
+    private void close() {
+        if(dm != null) {
+            dm.close();
+            tm.close();
+            dm = null;
+        }
+    }
+
+    private static String exec(Executor exe, String sql) throws Exception {
+        return new String(exe.execute(sql.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8).trim();
+    }
+
+    // 已提交、已回滚的插入，已回滚和已提交的删除，以及更新
+    private static void populate(Executor exe) throws Exception {
+        exec(exe, "create table t (id int64, n int64) (index id)");
+        for(int i = 0; i < ROWS / 2; i ++) {
+            exec(exe, "insert into t values " + i + " " + i);
+        }
+        exec(exe, "begin");
+        exec(exe, "insert into t values 100 100");
+        exec(exe, "insert into t values 101 101");
+        exec(exe, "abort");
+        exec(exe, "begin");
+        exec(exe, "delete from t where id = 3");
+        exec(exe, "abort");
+        exec(exe, "delete from t where id = 4");
+        exec(exe, "update t set n = 50 where id = 5");
+        for(int i = ROWS / 2; i < ROWS; i ++) {
+            exec(exe, "insert into t values " + i + " " + i);
+        }
+    }
+
+    private static Set<String> expected() {
+        Set<String> rows = new TreeSet<>();
+        for(int i = 0; i < ROWS; i ++) {
+            if(i != 4) {
+                rows.add("[" + i + ", " + (i == 5 ? 50 : i) + "]");
+            }
+        }
+        return rows;
+    }
+
+    private void verify(Set<String> rows) throws Exception {
+        assertEquals(rows, new TreeSet<>(Arrays.asList(exec(exe, "select * from t").split("\n"))));
+        assertEquals("", exec(exe, "select * from t where id = 100"));
+        assertEquals("", exec(exe, "select * from t where id = 101"));
+        assertEquals("", exec(exe, "select * from t where id = 4"));
+        assertEquals("[3, 3]", exec(exe, "select * from t where id = 3"));
+    }
+
+    // 截断过的XID文件以负数的 Magic 开头
+    private static boolean truncated(String path) throws Exception {
+        try(RandomAccessFile raf = new RandomAccessFile(path + ".xid", "r")) {
+            return raf.readLong() < 0;
+        }
+    }
+
+    @Test
+    public void testFreezeTruncateReopen() throws Exception {
+        String path = new File(tmp.getRoot(), "freeze").getPath();
+        create(path);
+        populate(exe);
+        verify(expected());
+        assertFalse(truncated(path));
+
+        tbm.freeze();
+        assertTrue(truncated(path));
+        verify(expected());
+
+        // 截断之后的新事务照常提交和回滚
+        Set<String> rows = expected();
+        exec(exe, "insert into t values 200 200");
+        rows.add("[200, 200]");
+        exec(exe, "begin");
+        exec(exe, "insert into t values 201 201");
+        exec(exe, "abort");
+        verify(rows);
+        assertEquals("", exec(exe, "select * from t where id = 201"));
+
+        close();
+        open(path);
+        verify(rows);
+        // 再冻结一次，把截断之后结束的事务也截掉
+        tbm.freeze();
+        verify(rows);
+        close();
+        open(path);
+        verify(rows);
+        assertEquals("", exec(exe, "select * from t where id = 201"));
+    }
+
+    // 子进程：args[1] 为 "entries" 时只冻结数据不截断，为 "all" 时完整冻结，然后崩溃
+    public static void main(String[] args) throws Exception {
+        String path = args[0];
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm);
+        TableManagerImpl tbm = (TableManagerImpl)TableManager.create(path, new VersionManagerImpl(tm, dm), dm);
+        populate(new Executor(tbm));
+        if("all".equals(args[1])) {
+            tbm.freeze();
+        } else {
+            long limit = tbm.vm.freezeLimit();
+            Set<Long> abortedRefs = new HashSet<>();
+            for(Table tb : tbm.tables()) {
+                for(long uid : tb.entryUids()) {
+                    tbm.vm.freeze(uid, limit, abortedRefs);
+                }
+            }
+        }
+        dm.flushLog();
+        Runtime.getRuntime().halt(0);
+    }
+
+    @Test
+    public void testCrashBetweenFreezeAndTruncate() throws Exception {
+        String path = new File(tmp.getRoot(), "entries").getPath();
+        runCrash(path, "entries");
+        assertFalse(truncated(path));
+        open(path);
+        verify(expected());
+        tbm.freeze();
+        assertTrue(truncated(path));
+        verify(expected());
+        close();
+        open(path);
+        verify(expected());
+    }
+
+    @Test
+    public void testCrashAfterTruncate() throws Exception {
+        String path = new File(tmp.getRoot(), "all").getPath();
+        runCrash(path, "all");
+        assertTrue(truncated(path));
+        open(path);
+        verify(expected());
+        close();
+        open(path);
+        verify(expected());
+    }
+
+    private void runCrash(String path, String mode) throws Exception {
+        File out = new File(tmp.getRoot(), mode + ".out");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), FreezeTest.class.getName(), path, mode)
+            .redirectErrorStream(true)
+            .redirectOutput(out)
+            .start();
+        assertTrue(p.waitFor(120, TimeUnit.SECONDS));
+        assertEquals(new String(Files.readAllBytes(out.toPath()), StandardCharsets.UTF_8), 0, p.exitValue());
+    }
+}
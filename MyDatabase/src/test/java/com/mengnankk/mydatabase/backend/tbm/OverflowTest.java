@@ -0,0 +1,174 @@
+package com.mengnankk.mydatabase.backend.tbm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.dm.DataManager;
+import com.mengnankk.mydatabase.backend.dm.pageCache.PageSize;
+import com.mengnankk.mydatabase.backend.server.Executor;
+import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+import com.mengnankk.mydatabase.backend.vm.VersionManagerImpl;
+
+/**
+ * 超长字符串存到行外的溢出链中：插入、读取、更新、清理、重新打开以及崩溃恢复后值都不变
+ */
+public class OverflowTest {
+    private static final long MEM = 1 << 24;
+    private static final int VALUE_LEN = 1 << 20;      // 跨越上百个溢出页
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private TableManager tbm;
+    private Executor exe;
+
+    @After
+    public void tearDown() {
+        close();
+    }
+
+    private void create(String path) {
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+        tbm = TableManager.create(path, new VersionManagerImpl(tm, dm), dm);
+        exe = new Executor(tbm);
+    }
+
+    private void open(String path) {
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, MEM, tm);
+        tbm = TableManager.open(path, new VersionManagerImpl(tm, dm), dm);
+        exe = new Executor(tbm);
+    }
+
+    private void close() {
+        if(dm != null) {
+            dm.close();
+            tm.close();
+            dm = null;
+        }
+    }
+
+    // 只用 ASCII 字符，结果的编码与平台默认字符集无关
+    private static String value(int i) {
+        StringBuilder sb = new StringBuilder(VALUE_LEN + 8);
+        for(int j = 0; j < VALUE_LEN; j ++) {
+            sb.append((char)('a' + (i + j) % 26));
+        }
+        return sb.append(i).toString();
+    }
+
+    private static String row(int id, int n) {
+        return "[" + id + ", " + value(id) + ", " + n + "]";
+    }
+
+    private static String exec(Executor exe, String sql) throws Exception {
+        return new String(exe.execute(sql.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8).trim();
+    }
+
+    private String exec(String sql) throws Exception {
+        return exec(exe, sql);
+    }
+
+    private static void insert(Executor exe, int id, int n) throws Exception {
+        exec(exe, "insert into big values " + id + " '" + value(id) + "' " + n);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        assertTrue(VALUE_LEN > 4 * PageSize.DEFAULT);
+        String path = new File(tmp.getRoot(), "of").getPath();
+        create(path);
+        exec("create table big (id int64, s string, n int64) (index id)");
+        for(int i = 0; i < 3; i ++) {
+            insert(exe, i, i);
+        }
+        // 只取其他列时不读溢出链
+        assertEquals("[1, 1]", exec("select id, n from big where id = 1"));
+        assertEquals(row(1, 1), exec("select * from big where id = 1"));
+
+        exec("update big set n = 7 where id = 1");
+        assertEquals(row(1, 7), exec("select * from big where id = 1"));
+        assertEquals(row(0, 0), exec("select * from big where id = 0"));
+
+        // 旧版本连同它的溢出链一起回收
+        VacuumStats st = tbm.vacuum();
+        assertTrue(st.reclaimedRows >= 1);
+        assertTrue(st.reclaimedBytes >= VALUE_LEN);
+
+        // 回收的溢出页被新的长字符串重用，文件基本不增长
+        long size = new File(path + ".db").length();
+        insert(exe, 9, 9);
+        assertTrue(new File(path + ".db").length() - size < VALUE_LEN / 2);
+        assertEquals(row(9, 9), exec("select * from big where id = 9"));
+
+        close();
+        open(path);
+        assertEquals(row(0, 0), exec("select * from big where id = 0"));
+        assertEquals(row(1, 7), exec("select * from big where id = 1"));
+        assertEquals(row(2, 2), exec("select * from big where id = 2"));
+        assertEquals(row(9, 9), exec("select * from big where id = 9"));
+    }
+
+    // 子进程：写入长字符串后留下一个未提交的事务，直接退出
+    public static void main(String[] args) throws Exception {
+        String path = args[0];
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm);
+        Executor exe = new Executor(TableManager.create(path, new VersionManagerImpl(tm, dm), dm));
+        exec(exe, "create table big (id int64, s string, n int64) (index id)");
+        for(int i = 0; i < 3; i ++) {
+            insert(exe, i, i);
+        }
+        exec(exe, "update big set n = 7 where id = 1");
+
+        exec(exe, "begin");
+        insert(exe, 5, 5);
+        exec(exe, "update big set n = 8 where id = 2");
+        dm.flushLog();
+        Runtime.getRuntime().halt(0);
+    }
+
+    @Test
+    public void testRecoverAfterCrash() throws Exception {
+        String path = new File(tmp.getRoot(), "crashed").getPath();
+        File out = new File(tmp.getRoot(), "child.out");
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), OverflowTest.class.getName(), path)
+            .redirectErrorStream(true)
+            .redirectOutput(out)
+            .start();
+        assertTrue(p.waitFor(120, TimeUnit.SECONDS));
+        assertEquals(tail(out), 0, p.exitValue());
+
+        open(path);
+        assertEquals(row(0, 0), exec("select * from big where id = 0"));
+        assertEquals(row(1, 7), exec("select * from big where id = 1"));
+        // 未提交的插入和更新被撤销
+        assertEquals(row(2, 2), exec("select * from big where id = 2"));
+        assertEquals("", exec("select * from big where id = 5"));
+
+        close();
+        open(path);
+        assertEquals(row(1, 7), exec("select * from big where id = 1"));
+        assertEquals(row(2, 2), exec("select * from big where id = 2"));
+    }
+
+    private static String tail(File f) throws Exception {
+        String s = new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+        return s.substring(Math.max(0, s.length() - 2000));
+    }
+}
@@ -0,0 +1,125 @@
+package com.mengnankk.mydatabase.backend.tbm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.dm.DataManager;
+import com.mengnankk.mydatabase.backend.server.Executor;
+import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+import com.mengnankk.mydatabase.backend.vm.VersionManagerImpl;
+
+/**
+ * 旧版本清理：仍对某个打开的快照可见的版本不被清理；统计的行数与实际回收的旧版本相符
+ */
+public class VacuumTest {
+    private static final long MEM = 1 << 22;
+    private static final int ROWS = 20;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private TableManager tbm;
+
+    @Before
+    public void setUp() throws Exception {
+        String path = new File(tmp.getRoot(), "vacuum").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+        tbm = TableManager.create(path, new VersionManagerImpl(tm, dm), dm);
+        Executor exe = new Executor(tbm);
+        exec(exe, "create table t (id int64, n int64) (index id)");
+        for(int i = 0; i < ROWS; i ++) {
+            exec(exe, "insert into t values " + i + " " + i);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        dm.close();
+        tm.close();
+    }
+
+    private static String exec(Executor exe, String sql) throws Exception {
+        return new String(exe.execute(sql.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8).trim();
+    }
+
+    @Test
+    public void testVersionVisibleToOpenSnapshotSurvives() throws Exception {
+        Executor reader = new Executor(tbm);
+        Executor writer = new Executor(tbm);
+        exec(reader, "begin isolation level repeatable read");
+        assertEquals("[1, 1]", exec(reader, "select * from t where id = 1"));
+
+        // 快照之后提交的更新和删除，旧版本对 reader 仍然可见
+        exec(writer, "update t set n = 100 where id = 1");
+        exec(writer, "delete from t where id = 2");
+        VacuumStats st = tbm.vacuum();
+        assertEquals(0, st.reclaimedRows);
+        assertEquals(0, st.reclaimedBytes);
+        assertEquals("[1, 1]", exec(reader, "select * from t where id = 1"));
+        assertEquals("[2, 2]", exec(reader, "select * from t where id = 2"));
+
+        // 快照结束后两个旧版本都可以清理
+        exec(reader, "commit");
+        st = tbm.vacuum();
+        assertEquals(2, st.reclaimedRows);
+        assertTrue(st.reclaimedBytes > 0);
+        assertEquals("[1, 100]", exec(writer, "select * from t where id = 1"));
+        assertEquals("", exec(writer, "select * from t where id = 2"));
+    }
+
+    @Test
+    public void testStatsMatchReclaimedRows() throws Exception {
+        Executor exe = new Executor(tbm);
+        final int deleted = 3, updated = 4, aborted = 2;
+        for(int i = 0; i < deleted; i ++) {
+            exec(exe, "delete from t where id = " + i);
+        }
+        for(int i = deleted; i < deleted + updated; i ++) {
+            exec(exe, "update t set n = " + (i + 1000) + " where id = " + i);
+        }
+        exec(exe, "begin");
+        for(int i = 0; i < aborted; i ++) {
+            exec(exe, "insert into t values " + (500 + i) + " 0");
+        }
+        exec(exe, "abort");
+        int dead = deleted + updated + aborted;
+        int live = ROWS - deleted;
+
+        // 每个旧版本都还在索引中，被检查一次
+        VacuumStats first = tbm.vacuum();
+        assertEquals(1, first.runs);
+        assertEquals(live + dead, first.scannedRows);
+        assertEquals(dead, first.reclaimedRows);
+        assertTrue(first.reclaimedBytes > 0);
+
+        // 回收过的版本已从索引删去，第二轮只检查存活的行
+        VacuumStats second = tbm.vacuum();
+        assertEquals(live, second.scannedRows);
+        assertEquals(0, second.reclaimedRows);
+        assertEquals(0, second.reclaimedBytes);
+
+        VacuumStats total = tbm.getVacuumStats();
+        assertEquals(2, total.runs);
+        assertEquals(first.scannedRows + second.scannedRows, total.scannedRows);
+        assertEquals(dead, total.reclaimedRows);
+        assertEquals(first.reclaimedBytes, total.reclaimedBytes);
+
+        assertEquals(live, exec(exe, "select * from t").split("\n").length);
+        for(int i = deleted; i < deleted + updated; i ++) {
+            assertEquals("[" + i + ", " + (i + 1000) + "]", exec(exe, "select * from t where id = " + i));
+        }
+        assertEquals("", exec(exe, "select * from t where id = 500"));
+    }
+}
@@ -0,0 +1,132 @@
+package com.mengnankk.mydatabase.backend.tm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * XID 成块预留：重启后跳过上次预留而没有用到的XID；预留时崩溃留下的过长文件在打开时被截掉；
+ * 并发的提交和回滚合并刷盘后状态都已写入文件
+ */
+public class XidReserveTest {
+    private static final int BLOCK = 1024;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private String path(String name) {
+        return new File(tmp.getRoot(), name).getPath();
+    }
+
+    private static long fileLength(String path) {
+        return new File(path + TransactionManagerImpl.XID_SUFFIX).length();
+    }
+
+    @Test
+    public void testUnusedReservationSkipped() {
+        String path = path("skip");
+        TransactionManager tm = TransactionManager.create(path);
+        assertEquals(TransactionManagerImpl.LEN_XID_HEADER_LENGTH, fileLength(path));
+        for(long i = 1; i <= 3; i ++) {
+            assertEquals(i, tm.begin());
+            tm.commit(i);
+        }
+        // 只有第一次 begin 延长了文件
+        assertEquals(TransactionManagerImpl.LEN_XID_HEADER_LENGTH + BLOCK, fileLength(path));
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        long xid = tm.begin();
+        assertEquals(BLOCK + 1, xid);
+        assertEquals(TransactionManagerImpl.LEN_XID_HEADER_LENGTH + 2 * BLOCK, fileLength(path));
+        for(long i = 1; i <= 3; i ++) {
+            assertTrue(tm.isCommitted(i));
+        }
+        // 跳过的XID从未用过，仍为活跃
+        assertTrue(tm.isActive(4));
+        assertTrue(tm.isActive(BLOCK));
+        tm.close();
+    }
+
+    @Test
+    public void testOverlongFileTruncated() throws Exception {
+        String path = path("overlong");
+        TransactionManager tm = TransactionManager.create(path);
+        long committed = tm.begin();
+        tm.commit(committed);
+        long aborted = tm.begin();
+        tm.abort(aborted);
+        tm.close();
+
+        // 模拟预留时崩溃：文件已经延长，头部的 XIDCounter 还没有更新
+        long expected = TransactionManagerImpl.LEN_XID_HEADER_LENGTH + BLOCK;
+        try(RandomAccessFile raf = new RandomAccessFile(path + TransactionManagerImpl.XID_SUFFIX, "rw")) {
+            raf.setLength(expected + BLOCK);
+        }
+
+        tm = TransactionManager.open(path);
+        assertEquals(expected, fileLength(path));
+        assertTrue(tm.isCommitted(committed));
+        assertTrue(tm.isAborted(aborted));
+        assertEquals(BLOCK + 1, tm.begin());
+        tm.close();
+    }
+
+    @Test
+    public void testConcurrentStatusChanges() throws Exception {
+        String path = path("group");
+        TransactionManager tm = TransactionManager.create(path);
+        final int threads = 8, perThread = 500;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<List<Long>>> fs = new ArrayList<>();
+        for(int t = 0; t < threads; t ++) {
+            fs.add(pool.submit(() -> {
+                // 偶数位置提交，奇数位置回滚，返回提交的XID
+                List<Long> commits = new ArrayList<>();
+                for(int i = 0; i < perThread; i ++) {
+                    long xid = tm.begin();
+                    if(i % 2 == 0) {
+                        tm.commit(xid);
+                        commits.add(xid);
+                    } else {
+                        tm.abort(xid);
+                    }
+                }
+                return commits;
+            }));
+        }
+        List<Long> commits = new ArrayList<>();
+        for(Future<List<Long>> f : fs) {
+            commits.addAll(f.get());
+        }
+        pool.shutdown();
+        tm.close();
+
+        TransactionManager reopened = TransactionManager.open(path);
+        int committed = 0, aborted = 0;
+        for(long xid = 1; xid <= threads * perThread; xid ++) {
+            if(reopened.isCommitted(xid)) {
+                committed ++;
+            } else if(reopened.isAborted(xid)) {
+                aborted ++;
+            }
+        }
+        assertEquals(threads * perThread / 2, committed);
+        assertEquals(threads * perThread / 2, aborted);
+        for(long xid : commits) {
+            assertTrue("xid " + xid, reopened.isCommitted(xid));
+        }
+        reopened.close();
+    }
+}
@@ -0,0 +1,103 @@
+package com.mengnankk.mydatabase.backend.tm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * 内存事务状态表：同一个 long 中相邻事务的并发写互不覆盖；跨页、从 base 开始的下标正确；
+ * 重新打开时从XID文件载入的状态与关闭前一致
+ */
+public class XidStatusTableTest {
+    // 一页有 32 * 4096 个事务
+    private static final long XIDS_PER_PAGE = 32L * 4096;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte status(long xid) {
+        return (byte)(xid % 3);
+    }
+
+    @Test
+    public void testConcurrentSetsInSameWord() throws Exception {
+        final int threads = 8;
+        final long xids = XIDS_PER_PAGE * 2 + 100;
+        XidStatusTable table = new XidStatusTable(1);
+        // 线程 t 只写 xid % threads == t 的事务，每个 long 都被多个线程同时改写
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> fs = new ArrayList<>();
+        for(int t = 0; t < threads; t ++) {
+            final int thread = t;
+            fs.add(pool.submit(() -> {
+                for(long xid = 1 + thread; xid <= xids; xid += threads) {
+                    table.set(xid, status(xid));
+                }
+            }));
+        }
+        for(Future<?> f : fs) {
+            f.get();
+        }
+        pool.shutdown();
+        for(long xid = 1; xid <= xids; xid ++) {
+            assertEquals("xid " + xid, status(xid), table.get(xid));
+        }
+        // 还没有分配到的页面读出活跃
+        assertEquals(0, table.get(XIDS_PER_PAGE * 10));
+    }
+
+    @Test
+    public void testBaseOffset() {
+        long base = XIDS_PER_PAGE - 5;
+        XidStatusTable table = new XidStatusTable(base);
+        assertEquals(base, table.base());
+        for(long xid = base; xid < base + 10; xid ++) {
+            table.set(xid, (byte)2);
+        }
+        table.set(base + 3, (byte)1);
+        table.set(base + 4, (byte)0);
+        for(long xid = base; xid < base + 10; xid ++) {
+            byte expected = xid == base + 3 ? (byte)1 : xid == base + 4 ? (byte)0 : (byte)2;
+            assertEquals("xid " + xid, expected, table.get(xid));
+        }
+        assertEquals(0, table.get(base + 10));
+    }
+
+    @Test
+    public void testStatusLoadedOnOpen() throws Exception {
+        String path = new File(tmp.getRoot(), "status").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        final int n = 3000;
+        for(int i = 1; i <= n; i ++) {
+            long xid = tm.begin();
+            assertEquals(i, xid);
+            if(i % 3 == 1) {
+                tm.commit(xid);
+            } else if(i % 3 == 2) {
+                tm.abort(xid);
+            }
+        }
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        for(long xid = 1; xid <= n; xid ++) {
+            assertEquals("xid " + xid, xid % 3 == 1, tm.isCommitted(xid));
+            assertEquals("xid " + xid, xid % 3 == 2, tm.isAborted(xid));
+            assertEquals("xid " + xid, xid % 3 == 0, tm.isActive(xid));
+        }
+        assertTrue(tm.isCommitted(TransactionManagerImpl.SUPER_XID));
+        assertFalse(tm.isActive(TransactionManagerImpl.SUPER_XID));
+        tm.close();
+    }
+}
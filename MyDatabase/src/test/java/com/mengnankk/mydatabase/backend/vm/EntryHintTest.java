@@ -0,0 +1,123 @@
+package com.mengnankk.mydatabase.backend.vm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.common.SubArray;
+import com.mengnankk.mydatabase.backend.dm.DataManager;
+import com.mengnankk.mydatabase.backend.dm.dataItem.DataItem;
+import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+import com.mengnankk.mydatabase.backend.utils.Parser;
+
+/**
+ * 提示位：查到 XMIN/XMAX 的最终状态后只在最高字节上置位，XID 的其余字节不变；
+ * 字段已被改写时不写入过时的提示位
+ */
+public class EntryHintTest {
+    private static final long MEM = 1 << 22;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private VersionManagerImpl vm;
+
+    @Before
+    public void setUp() {
+        String path = new File(tmp.getRoot(), "hint").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+        vm = new VersionManagerImpl(tm, dm);
+    }
+
+    @After
+    public void tearDown() {
+        dm.close();
+        tm.close();
+    }
+
+    // entry 中 of 处的 8 个字节
+    private byte[] field(long uid, int of) throws Exception {
+        DataItem di = dm.read(uid);
+        try {
+            SubArray sa = di.data();
+            return Arrays.copyOfRange(sa.raw, sa.start + of, sa.start + of + 8);
+        } finally {
+            di.release();
+        }
+    }
+
+    private static byte[] hinted(long xid, int hintByte) {
+        byte[] b = Parser.long2Byte(xid);
+        b[0] |= hintByte;
+        return b;
+    }
+
+    @Test
+    public void testHintBitsInPlace() throws Exception {
+        byte[] value = Parser.long2Byte(42);
+        long writer = vm.begin(0);
+        long uid = vm.insert(writer, value);
+        vm.commit(writer);
+        assertArrayEquals(Parser.long2Byte(writer), field(uid, 0));
+
+        long reader = vm.begin(0);
+        assertArrayEquals(value, vm.read(reader, uid));
+        assertArrayEquals(hinted(writer, 0x80), field(uid, 0));
+
+        // 删除后回滚：XMAX 记为已回滚，仍然可见
+        long deleter = vm.begin(0);
+        vm.delete(deleter, uid);
+        vm.abort(deleter);
+        assertArrayEquals(value, vm.read(reader, uid));
+        assertArrayEquals(hinted(deleter, 0x40), field(uid, 8));
+
+        // 再次删除时整个 XMAX 被改写，旧的提示位随之清除；提交后记为已提交
+        long deleter2 = vm.begin(0);
+        vm.delete(deleter2, uid);
+        assertArrayEquals(Parser.long2Byte(deleter2), field(uid, 8));
+        vm.commit(deleter2);
+        assertNull(vm.read(reader, uid));
+        assertArrayEquals(hinted(deleter2, 0x80), field(uid, 8));
+        vm.commit(reader);
+
+        // XID 本身不受提示位影响
+        Entry entry = Entry.loadEntry(vm, uid);
+        assertEquals(writer, entry.getXmin());
+        assertEquals(deleter2, entry.getXmax());
+        entry.remove();
+    }
+
+    @Test
+    public void testStaleHintNotWritten() throws Exception {
+        long writer = vm.begin(0);
+        long uid = vm.insert(writer, Parser.long2Byte(7));
+        vm.commit(writer);
+        long aborted = vm.begin(0);
+        vm.delete(aborted, uid);
+        vm.abort(aborted);
+
+        // 查状态之前读到的 XMAX
+        Entry entry = Entry.loadEntry(vm, uid);
+        long staleXmax = entry.rawXmax();
+        long deleter = vm.begin(0);
+        vm.delete(deleter, uid);
+        // aborted 已回滚，但 XMAX 已经改为 deleter，不能给它写上回滚的提示位
+        assertFalse(entry.isXmaxCommitted(tm, staleXmax));
+        assertArrayEquals(Parser.long2Byte(deleter), field(uid, 8));
+        entry.remove();
+        vm.commit(deleter);
+    }
+}
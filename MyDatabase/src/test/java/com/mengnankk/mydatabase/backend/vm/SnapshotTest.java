@@ -0,0 +1,142 @@
+package com.mengnankk.mydatabase.backend.vm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.mengnankk.mydatabase.backend.dm.DataManager;
+import com.mengnankk.mydatabase.backend.tm.TransactionManager;
+import com.mengnankk.mydatabase.backend.tm.TransactionManagerImpl;
+import com.mengnankk.mydatabase.backend.utils.Parser;
+
+/**
+ * 事务表和快照：快照是开始时活跃事务的有序数组，之后的提交不会改动已取得的快照；
+ * 并发开始和结束事务时每个快照都有序且只含更早的XID；可重复读下快照之后提交的插入不可见
+ */
+public class SnapshotTest {
+    private static final long MEM = 1 << 22;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private TransactionManager tm;
+    private DataManager dm;
+    private VersionManagerImpl vm;
+
+    @Before
+    public void setUp() {
+        String path = new File(tmp.getRoot(), "snapshot").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+        vm = new VersionManagerImpl(tm, dm);
+    }
+
+    @After
+    public void tearDown() {
+        dm.close();
+        tm.close();
+    }
+
+    @Test
+    public void testIsInSnapshot() {
+        Transaction t = Transaction.newTransaction(20, 1, new long[]{ 5, 9, 12 });
+        assertEquals(5, t.snapshotXmin);
+        assertTrue(t.isInSnapshot(5));
+        assertTrue(t.isInSnapshot(12));
+        assertFalse(t.isInSnapshot(4));
+        assertFalse(t.isInSnapshot(10));
+        assertFalse(t.isInSnapshot(20));
+        assertFalse(t.isInSnapshot(21));
+        assertFalse(t.isInSnapshot(TransactionManagerImpl.SUPER_XID));
+
+        // 没有其他活跃事务时快照从自己开始
+        Transaction alone = Transaction.newTransaction(7, 1, new long[0]);
+        assertEquals(7, alone.snapshotXmin);
+        assertFalse(alone.isInSnapshot(6));
+        // 读已提交不取快照
+        assertNull(Transaction.newTransaction(8, 0, new long[]{ 1 }).snapshot);
+    }
+
+    @Test
+    public void testSnapshotUnchangedByLaterCommits() throws Exception {
+        long x1 = vm.begin(0);
+        long x2 = vm.begin(0);
+        long x3 = vm.begin(1);
+        Transaction t3 = vm.activeTransaction.get(x3);
+        assertArrayEquals(new long[]{ x1, x2 }, t3.snapshot);
+
+        vm.commit(x1);
+        vm.abort(x2);
+        // 写时复制，已取得的快照不受影响
+        assertArrayEquals(new long[]{ x1, x2 }, t3.snapshot);
+        long x4 = vm.begin(1);
+        assertArrayEquals(new long[]{ x3 }, vm.activeTransaction.get(x4).snapshot);
+        vm.commit(x3);
+        vm.commit(x4);
+        assertEquals(1, vm.activeTransaction.size());
+    }
+
+    @Test
+    public void testConcurrentBeginAndCommit() throws Exception {
+        final int threads = 8, perThread = 300;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<?>> fs = new ArrayList<>();
+        for(int i = 0; i < threads; i ++) {
+            fs.add(pool.submit(() -> {
+                for(int n = 0; n < perThread; n ++) {
+                    long xid = vm.begin(1);
+                    long[] snapshot = vm.activeTransaction.get(xid).snapshot;
+                    for(int k = 0; k < snapshot.length; k ++) {
+                        assertTrue(snapshot[k] < xid);
+                        assertTrue(k == 0 || snapshot[k - 1] < snapshot[k]);
+                    }
+                    if(n % 2 == 0) {
+                        vm.commit(xid);
+                    } else {
+                        vm.abort(xid);
+                    }
+                }
+                return null;
+            }));
+        }
+        for(Future<?> f : fs) {
+            f.get();
+        }
+        pool.shutdown();
+        // 只剩超级事务；新事务的快照为空
+        assertEquals(1, vm.activeTransaction.size());
+        long xid = vm.begin(1);
+        assertEquals(0, vm.activeTransaction.get(xid).snapshot.length);
+        vm.commit(xid);
+    }
+
+    @Test
+    public void testRepeatableReadHidesLaterCommit() throws Exception {
+        long reader = vm.begin(1);
+        long writer = vm.begin(0);
+        long uid = vm.insert(writer, Parser.long2Byte(42));
+        vm.commit(writer);
+
+        // writer 在 reader 的快照中，提交后仍不可见
+        assertNull(vm.read(reader, uid));
+        long later = vm.begin(1);
+        assertArrayEquals(Parser.long2Byte(42), vm.read(later, uid));
+        vm.commit(reader);
+        vm.commit(later);
+    }
+}